@@ -0,0 +1,136 @@
+package manvin.digitalreminder.digitalreminderlibrary.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import manvin.digitalreminder.digitalreminderlibrary.broadcasts.BroadcastDispatcher;
+
+/**
+ * Benchmark do rearme de ReminderRehydrator com um armazenamento de 10 mil lembretes.
+ *
+ * Os lembretes são agendados em ReminderScheduler, exceto PER_REMINDER_COUNT, que armam o seu próprio alarme, pois o AlarmManager limita a quantidade de alarmes de uma aplicação. Cada etapa usa o mesmo tempo de RehydrationBroadcast, e o tempo de cada uma é registrado no log.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ReminderRehydratorBenchmark {
+
+  @Before
+  public void setUp()
+  {
+    m_context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+    clear();
+
+    final ReminderManager manager = new ReminderManager(m_context);
+    final ArrayList<TimeReminderRequest> scheduled = new ArrayList<>();
+    final ArrayList<TimeReminderRequest> perReminder = new ArrayList<>();
+
+    for (int i = 0; i < REMINDER_COUNT; i++)
+    {
+      final TimeReminderRequest request = new TimeReminderRequest(idOf(i), ReminderManager.DayOfWeek.values()[i % 7], LocalTime.of(i % 24, i % 60), new StatelessTimeListener());
+
+      (i < PER_REMINDER_COUNT ? perReminder : scheduled).add(request);
+    }
+
+    try
+    {
+      ReminderManager.setSchedulerMode(ReminderManager.SchedulerMode.SINGLE_ALARM);
+      manager.registerTimeReminders(scheduled);
+      ReminderManager.setSchedulerMode(ReminderManager.SchedulerMode.PER_REMINDER);
+      manager.registerTimeReminders(perReminder);
+    }
+    finally
+    {
+      ReminderManager.setSchedulerMode(ReminderManager.SchedulerMode.PER_REMINDER);
+    }
+  }
+
+  @After
+  public void tearDown()
+  {
+    for (int i = 0; i < PER_REMINDER_COUNT; i++)
+    {
+      ReminderManager.cancelTimeReminderAlarm(m_context, idOf(i));
+    }
+
+    clear();
+  }
+
+  @Test
+  public void rehydratesTenThousandRemindersWithinTheDispatchBudget()
+  {
+    final long budgetInMs = Math.max(MIN_BUDGET_IN_MS, BroadcastDispatcher.getDispatchTimeout() - BUDGET_MARGIN_IN_MS);
+    String resumeAfter = null;
+    int stages = 0;
+    long totalInMs = 0;
+    long maxStageInMs = 0;
+
+    do
+    {
+      final long start = SystemClock.elapsedRealtime();
+
+      resumeAfter = new ReminderRehydrator(m_context).rehydrate(resumeAfter, budgetInMs);
+
+      final long elapsedInMs = SystemClock.elapsedRealtime() - start;
+
+      totalInMs += elapsedInMs;
+      maxStageInMs = Math.max(maxStageInMs, elapsedInMs);
+      stages++;
+    }
+    while (resumeAfter != null && stages < MAX_STAGES);
+
+    Log.i(TAG, "Rehydrated " + REMINDER_COUNT + " reminders in " + totalInMs + "ms over " + stages + " stage(s), longest stage " + maxStageInMs + "ms.");
+
+    assertNull(resumeAfter);
+    assertTrue("Longest stage took " + maxStageInMs + "ms.", maxStageInMs <= BroadcastDispatcher.getDispatchTimeout());
+    assertEquals(REMINDER_COUNT - PER_REMINDER_COUNT, new ReminderScheduler(m_context).size());
+  }
+
+  /**
+   * Esvaziar o armazenamento e a fila de ReminderScheduler, cancelando o seu alarme.
+   */
+  private void clear()
+  {
+    try
+    {
+      ReminderLocalStorage.getInstance(m_context).serialize(new HashMap<>());
+    }
+    catch (Exception ex)
+    {
+      throw new RuntimeException(ex);
+    }
+
+    new File(m_context.getDataDir(), SCHEDULE_FILE_NAME).delete();
+    new ReminderScheduler(m_context).rehydrate();
+  }
+
+  private static String idOf(final int i)
+  {
+    return String.format("benchmark%05d", i);
+  }
+
+  private static final String TAG = "ReminderRehydratorBenchmark";
+  private static final String SCHEDULE_FILE_NAME = "reminderSchedule";
+  private static final int REMINDER_COUNT = 10000;
+  private static final int PER_REMINDER_COUNT = 200;
+  private static final int MAX_STAGES = 20;
+  private static final long BUDGET_MARGIN_IN_MS = 2000;
+  private static final long MIN_BUDGET_IN_MS = 1000;
+  private Context m_context;
+}
@@ -0,0 +1,247 @@
+package manvin.digitalreminder.digitalreminderlibrary.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.Message;
+import android.os.Messenger;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Testes de concorrência de ReminderLocalStorage e de ReminderScheduler.
+ *
+ * Várias threads do processo dos testes, e opcionalmente RemoteWriterService em outro processo, registram e removem lembretes em paralelo. Ao final, o conteúdo deve ser exatamente o conjunto de ids que permanecem em cada carga, ou seja, nenhuma atualização pode ser perdida.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ReminderStoreConcurrencyTest {
+
+  @Before
+  public void setUp()
+  {
+    m_context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+    clear();
+  }
+
+  @After
+  public void tearDown()
+  {
+    if (m_connection != null)
+    {
+      m_context.unbindService(m_connection);
+      m_connection = null;
+    }
+
+    if (m_replies != null)
+    {
+      m_replies.quitSafely();
+      m_replies = null;
+    }
+
+    clear();
+  }
+
+  @Test
+  public void storageKeepsEveryUpdateAcrossThreads() throws Exception
+  {
+    final HashSet<String> expected = writeInParallel(RemoteWriterService.TARGET_STORAGE, false);
+
+    assertEquals(expected, ReminderLocalStorage.getInstance(m_context).deserialize().keySet());
+  }
+
+  @Test
+  public void storageKeepsEveryUpdateAcrossProcesses() throws Exception
+  {
+    final HashSet<String> expected = writeInParallel(RemoteWriterService.TARGET_STORAGE, true);
+
+    assertEquals(expected, ReminderLocalStorage.getInstance(m_context).deserialize().keySet());
+  }
+
+  @Test
+  public void schedulerKeepsEveryUpdateAcrossThreads() throws Exception
+  {
+    final HashSet<String> expected = writeInParallel(RemoteWriterService.TARGET_SCHEDULER, false);
+
+    assertEquals(expected, new ReminderScheduler(m_context).getScheduledIds());
+  }
+
+  @Test
+  public void schedulerKeepsEveryUpdateAcrossProcesses() throws Exception
+  {
+    final HashSet<String> expected = writeInParallel(RemoteWriterService.TARGET_SCHEDULER, true);
+
+    assertEquals(expected, new ReminderScheduler(m_context).getScheduledIds());
+  }
+
+  /**
+   * Executar a carga de escrita de RemoteWriterService em THREAD_COUNT threads e, opcionalmente, em outro processo, ao mesmo tempo.
+   *
+   * @param target
+   * @param acrossProcesses
+   *
+   * @return os ids que devem permanecer.
+   *
+   * @throws Exception
+   */
+  private HashSet<String> writeInParallel(final int target, final boolean acrossProcesses) throws Exception
+  {
+    final HashSet<String> expected = new HashSet<>();
+    final CountDownLatch remoteDone = new CountDownLatch(acrossProcesses ? 1 : 0);
+    final AtomicInteger remoteResult = new AtomicInteger(RemoteWriterService.RESULT_OK);
+
+    if (acrossProcesses)
+    {
+      final Message request = Message.obtain(null, target);
+      final Bundle data = new Bundle();
+
+      data.putString(RemoteWriterService.EXTRA_PREFIX, REMOTE_PREFIX);
+      data.putInt(RemoteWriterService.EXTRA_COUNT, COUNT_PER_WRITER);
+      request.setData(data);
+      request.replyTo = new Messenger(new Handler(replyLooperThread().getLooper(), reply ->
+      {
+        remoteResult.set(reply.arg1);
+        remoteDone.countDown();
+        return true;
+      }));
+
+      bindRemote().send(request);
+      expected.addAll(RemoteWriterService.survivors(REMOTE_PREFIX, COUNT_PER_WRITER));
+    }
+
+    final ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
+    final List<Future<?>> writers = new ArrayList<>();
+
+    try
+    {
+      for (int t = 0; t < THREAD_COUNT; t++)
+      {
+        final String prefix = LOCAL_PREFIX + t + "_";
+
+        writers.add(executor.submit(() ->
+        {
+          RemoteWriterService.write(m_context, target, prefix, COUNT_PER_WRITER);
+          return null;
+        }));
+        expected.addAll(RemoteWriterService.survivors(prefix, COUNT_PER_WRITER));
+      }
+
+      for (Future<?> writer : writers)
+      {
+        writer.get(TIMEOUT_IN_S, TimeUnit.SECONDS);
+      }
+    }
+    finally
+    {
+      executor.shutdownNow();
+    }
+
+    assertTrue("The remote writer did not finish.", remoteDone.await(TIMEOUT_IN_S, TimeUnit.SECONDS));
+    assertEquals(RemoteWriterService.RESULT_OK, remoteResult.get());
+
+    return expected;
+  }
+
+  /**
+   * Conectar-se a RemoteWriterService, iniciando o seu processo.
+   *
+   * @return o Messenger do serviço.
+   *
+   * @throws InterruptedException
+   */
+  private Messenger bindRemote() throws InterruptedException
+  {
+    final CountDownLatch connected = new CountDownLatch(1);
+    final Messenger[] remote = new Messenger[1];
+
+    m_connection = new ServiceConnection()
+    {
+      @Override
+      public void onServiceConnected(final ComponentName name, final IBinder binder)
+      {
+        remote[0] = new Messenger(binder);
+        connected.countDown();
+      }
+
+      @Override
+      public void onServiceDisconnected(final ComponentName name)
+      {
+      }
+    };
+
+    assertTrue(m_context.bindService(new Intent(m_context, RemoteWriterService.class), m_connection, Context.BIND_AUTO_CREATE));
+    assertTrue("RemoteWriterService did not connect.", connected.await(TIMEOUT_IN_S, TimeUnit.SECONDS));
+
+    return remote[0];
+  }
+
+  /**
+   * Obter a thread que recebe as respostas de RemoteWriterService, iniciando-a se necessário.
+   *
+   * @return a thread.
+   */
+  private HandlerThread replyLooperThread()
+  {
+    if (m_replies == null)
+    {
+      m_replies = new HandlerThread(TAG);
+      m_replies.start();
+    }
+
+    return m_replies;
+  }
+
+  /**
+   * Esvaziar o armazenamento e a fila de ReminderScheduler, cancelando o seu alarme.
+   */
+  private void clear()
+  {
+    try
+    {
+      ReminderLocalStorage.getInstance(m_context).serialize(new HashMap<>());
+    }
+    catch (Exception ex)
+    {
+      throw new RuntimeException(ex);
+    }
+
+    new File(m_context.getDataDir(), SCHEDULE_FILE_NAME).delete();
+    new ReminderScheduler(m_context).rehydrate();
+  }
+
+  private static final String TAG = "ReminderStoreConcurrencyTest";
+  private static final String SCHEDULE_FILE_NAME = "reminderSchedule";
+  private static final String LOCAL_PREFIX = "local";
+  private static final String REMOTE_PREFIX = "remote";
+  private static final int THREAD_COUNT = 8;
+  private static final int COUNT_PER_WRITER = 150;
+  private static final long TIMEOUT_IN_S = 120;
+  private Context m_context;
+  private ServiceConnection m_connection;
+  private HandlerThread m_replies;
+}
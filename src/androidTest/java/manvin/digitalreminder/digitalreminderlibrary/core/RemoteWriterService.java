@@ -0,0 +1,152 @@
+package manvin.digitalreminder.digitalreminderlibrary.core;
+
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.RemoteException;
+import android.util.Log;
+import android.util.Pair;
+
+import java.time.LocalTime;
+import java.util.EnumSet;
+import java.util.HashSet;
+
+/**
+ * Classe que representa um Service executado em outro processo (":remote"), usado para escrever em ReminderLocalStorage e em ReminderScheduler em paralelo ao processo dos testes.
+ *
+ * Cada Message pede uma carga de escrita (ver write), com o alvo em what e o prefixo e a quantidade de ids nos dados. A carga é executada em uma thread própria, e a resposta, com o mesmo what e arg1 igual a RESULT_OK ou RESULT_FAILED, é enviada a replyTo quando ela termina.
+ */
+public class RemoteWriterService extends Service {
+
+  //****** INHERITED FROM Service ******
+  @Override
+  public IBinder onBind(final Intent intent)
+  {
+    return m_messenger.getBinder();
+  }
+  //****** END OF INHERITED ******
+
+  /**
+   * Executar a carga de escrita no alvo especificado.
+   *
+   * Para cada id, o lembrete é registrado e, se o seu índice for múltiplo de 3, removido em seguida. Os ids que devem permanecer são os de survivors.
+   *
+   * @param context
+   * @param target TARGET_STORAGE ou TARGET_SCHEDULER.
+   * @param prefix
+   * @param count
+   *
+   * @throws Exception
+   */
+  static void write(final Context context, final int target, final String prefix, final int count) throws Exception
+  {
+    for (int i = 0; i < count; i++)
+    {
+      final String id = prefix + i;
+
+      if (target == TARGET_STORAGE)
+      {
+        final ReminderLocalStorage storage = ReminderLocalStorage.getInstance(context);
+
+        storage.append(new Pair<>(id, new LocationReminderDetails(EnumSet.of(ReminderManager.DayOfWeek.values()[i % 7]), LocalTime.of(i % 24, i % 60), 0, new StatelessTimeListener())));
+
+        if (i % 3 == 0)
+        {
+          storage.remove(id);
+        }
+      }
+      else
+      {
+        final ReminderScheduler scheduler = new ReminderScheduler(context);
+
+        scheduler.scheduleTimeLocationReminder(id, 1 << (i % 7), LocalTime.of(i % 24, i % 60));
+
+        if (i % 3 == 0)
+        {
+          scheduler.unschedule(id);
+        }
+      }
+    }
+  }
+
+  /**
+   * Obter os ids que devem permanecer após write.
+   *
+   * @param prefix
+   * @param count
+   *
+   * @return os ids.
+   */
+  static HashSet<String> survivors(final String prefix, final int count)
+  {
+    final HashSet<String> ids = new HashSet<>();
+
+    for (int i = 0; i < count; i++)
+    {
+      if (i % 3 != 0)
+      {
+        ids.add(prefix + i);
+      }
+    }
+
+    return ids;
+  }
+
+  /**
+   * Classe que recebe os pedidos de carga de escrita.
+   */
+  private final class RequestHandler extends Handler
+  {
+    RequestHandler()
+    {
+      super(Looper.getMainLooper());
+    }
+
+    @Override
+    public void handleMessage(final Message message)
+    {
+      final int target = message.what;
+      final String prefix = message.getData().getString(EXTRA_PREFIX);
+      final int count = message.getData().getInt(EXTRA_COUNT);
+      final Messenger replyTo = message.replyTo;
+
+      new Thread(() ->
+      {
+        int result = RESULT_OK;
+
+        try
+        {
+          write(getApplicationContext(), target, prefix, count);
+        }
+        catch (Exception ex)
+        {
+          Log.e(TAG, "Remote write failed.", ex);
+          result = RESULT_FAILED;
+        }
+
+        try
+        {
+          replyTo.send(Message.obtain(null, target, result, 0));
+        }
+        catch (RemoteException ex)
+        {
+          Log.e(TAG, "Could not reply to the test process.", ex);
+        }
+      }).start();
+    }
+  }
+
+  static final int TARGET_STORAGE = 1;
+  static final int TARGET_SCHEDULER = 2;
+  static final int RESULT_OK = 0;
+  static final int RESULT_FAILED = 1;
+  static final String EXTRA_PREFIX = "prefix";
+  static final String EXTRA_COUNT = "count";
+  private static final String TAG = "RemoteWriterService";
+  private final Messenger m_messenger = new Messenger(new RequestHandler());
+}
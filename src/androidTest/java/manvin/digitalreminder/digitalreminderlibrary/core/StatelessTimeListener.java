@@ -0,0 +1,28 @@
+package manvin.digitalreminder.digitalreminderlibrary.core;
+
+import android.content.Context;
+import android.os.Parcel;
+
+import java.time.LocalTime;
+
+/**
+ * Classe que representa um listener sem estado, usado pelos testes que registram lembretes que nunca são acionados.
+ */
+public class StatelessTimeListener implements ReminderManager.TimeReminderListener, ListenerRegistry.Stateless {
+
+  @Override
+  public void onReminder(final Context context, final ReminderManager.DayOfWeek dayOfWeek, final LocalTime time)
+  {
+  }
+
+  @Override
+  public int describeContents()
+  {
+    return 0;
+  }
+
+  @Override
+  public void writeToParcel(final Parcel parcel, final int flags)
+  {
+  }
+}
@@ -0,0 +1,400 @@
+package manvin.digitalreminder.digitalreminderlibrary.broadcasts;
+
+import android.content.BroadcastReceiver;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.gms.tasks.Task;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Classe que despacha o trabalho dos Broadcasts de lembretes fora da thread principal.
+ *
+ * O Broadcast invoca goAsync e o trabalho é executado em um executor limitado compartilhado por todos os Broadcasts. Se a fila do executor estiver cheia, o trabalho é enviado a uma fila de reserva, também limitada, consumida por uma thread própria; o trabalho nunca é executado na thread principal, que é a que o despacha. Se a fila de reserva também estiver cheia, o trabalho é cancelado.
+ *
+ * O PendingResult é finalizado apenas quando o trabalho termina ou é cancelado, pois o trabalho pode estar escrevendo no armazenamento. Caso o tempo de despacho configurado seja excedido antes do trabalho começar, ele é cancelado e o PendingResult é finalizado, de forma que o sistema não considere o Broadcast travado; caso o trabalho já esteja em execução, o excesso é apenas registrado.
+ *
+ * Um trabalho assíncrono libera a thread de despacho assim que retorna a sua task, e o PendingResult é finalizado quando a task é completada, ou quando o tempo de despacho se esgota, o que ocorrer primeiro.
+ *
+ * O tempo de cada despacho, desde o recebimento até o término do trabalho, é medido e acumulado em estatísticas.
+ */
+public final class BroadcastDispatcher {
+
+  /**
+   * Despachar o trabalho especificado do Broadcast especificado.
+   *
+   * Deve ser invocado de dentro de onReceive.
+   *
+   * @param receiver
+   * @param work
+   */
+  public static void dispatch(final BroadcastReceiver receiver, final Runnable work)
+  {
+    execute(new DispatchTask(receiver.getClass().getSimpleName(), receiver.goAsync(), work, null));
+  }
+
+  /**
+   * Despachar o trabalho assíncrono especificado do Broadcast especificado.
+   *
+   * O trabalho é invocado na thread de despacho, mas a task retornada não é aguardada nela: o Broadcast permanece ativo até que a task seja completada, no máximo pelo tempo de despacho configurado, e o PendingResult é finalizado a partir do listener de conclusão da task. Uma falha é apenas registrada.
+   *
+   * Deve ser invocado de dentro de onReceive.
+   *
+   * @param receiver
+   * @param work
+   */
+  public static void dispatchTask(final BroadcastReceiver receiver, final Callable<? extends Task<?>> work)
+  {
+    execute(new DispatchTask(receiver.getClass().getSimpleName(), receiver.goAsync(), null, work));
+  }
+
+  /**
+   * Armar o tempo de despacho do trabalho especificado e enviá-lo ao executor.
+   *
+   * @param task
+   */
+  private static void execute(final DispatchTask task)
+  {
+    task.m_watchdog = WATCHDOG.schedule(task::timeOut, s_dispatchTimeoutInMs, TimeUnit.MILLISECONDS);
+    EXECUTOR.execute(task);
+  }
+
+  /**
+   * Definir o tempo máximo, em milissegundos, que um despacho pode manter o Broadcast ativo.
+   *
+   * O padrão é 9000ms, abaixo do limite de 10s que o sistema concede a Broadcasts em primeiro plano.
+   *
+   * @param timeoutInMs
+   */
+  public static void setDispatchTimeout(final long timeoutInMs)
+  {
+    if (timeoutInMs <= 0)
+    {
+      throw new IllegalArgumentException("timeoutInMs must be positive.");
+    }
+
+    s_dispatchTimeoutInMs = timeoutInMs;
+  }
+
+  /**
+   * Obter o tempo máximo de despacho.
+   *
+   * @return o tempo em milissegundos.
+   */
+  public static long getDispatchTimeout()
+  {
+    return s_dispatchTimeoutInMs;
+  }
+
+  /**
+   * Obter a quantidade de despachos concluídos.
+   *
+   * @return a quantidade.
+   */
+  public static long getDispatchCount()
+  {
+    return s_dispatchCount.get();
+  }
+
+  /**
+   * Obter o tempo acumulado dos despachos concluídos.
+   *
+   * @return o tempo em milissegundos.
+   */
+  public static long getTotalDispatchTime()
+  {
+    return s_totalDispatchTimeInMs.get();
+  }
+
+  /**
+   * Obter o maior tempo de um despacho concluído.
+   *
+   * @return o tempo em milissegundos.
+   */
+  public static long getMaxDispatchTime()
+  {
+    return s_maxDispatchTimeInMs.get();
+  }
+
+  /**
+   * Obter a quantidade de despachos que excederam o tempo máximo.
+   *
+   * @return a quantidade.
+   */
+  public static long getTimedOutCount()
+  {
+    return s_timedOutCount.get();
+  }
+
+  /**
+   * Zerar as estatísticas de despacho.
+   */
+  public static void resetStatistics()
+  {
+    s_dispatchCount.set(0);
+    s_totalDispatchTimeInMs.set(0);
+    s_maxDispatchTimeInMs.set(0);
+    s_timedOutCount.set(0);
+  }
+
+  /**
+   * Acumular o tempo de um despacho concluído.
+   *
+   * @param elapsedInMs
+   */
+  private static void record(final long elapsedInMs)
+  {
+    s_dispatchCount.incrementAndGet();
+    s_totalDispatchTimeInMs.addAndGet(elapsedInMs);
+    s_maxDispatchTimeInMs.accumulateAndGet(elapsedInMs, Math::max);
+  }
+
+  /**
+   * Classe que representa um trabalho despachado, que finaliza o PendingResult do seu Broadcast quando termina ou é cancelado.
+   *
+   * Um trabalho assíncrono (m_asyncWork) termina quando a task que retorna é completada, ou quando o tempo de despacho se esgota enquanto ela é aguardada.
+   */
+  private static final class DispatchTask implements Runnable
+  {
+    DispatchTask(final String receiverName, final BroadcastReceiver.PendingResult result, final Runnable work, final Callable<? extends Task<?>> asyncWork)
+    {
+      m_receiverName = receiverName;
+      m_result = result;
+      m_work = work;
+      m_asyncWork = asyncWork;
+      m_start = SystemClock.elapsedRealtime();
+    }
+
+    @Override
+    public void run()
+    {
+      if (!m_state.compareAndSet(STATE_QUEUED, STATE_RUNNING))
+      {
+        return;
+      }
+
+      if (m_asyncWork == null)
+      {
+        try
+        {
+          m_work.run();
+        }
+        finally
+        {
+          finish(STATE_RUNNING);
+        }
+
+        return;
+      }
+
+      final Task<?> pending = startAsyncWork();
+
+      if (pending == null)
+      {
+        finish(STATE_RUNNING);
+        return;
+      }
+
+      m_state.set(STATE_AWAITING);
+      pending.addOnCompleteListener(WATCHDOG, this::onAsyncWorkComplete);
+
+      // O tempo pode ter se esgotado enquanto o trabalho ainda estava em execução.
+      if (m_timedOut && expire())
+      {
+        Log.w(TAG, m_receiverName + " exceeded the dispatch time of " + s_dispatchTimeoutInMs + "ms before its task completed.");
+      }
+    }
+
+    /**
+     * Invocar o trabalho assíncrono.
+     *
+     * @return a task retornada, ou null se o trabalho falhou ou não retornou uma task.
+     */
+    private Task<?> startAsyncWork()
+    {
+      try
+      {
+        return m_asyncWork.call();
+      }
+      catch (Exception ex)
+      {
+        Log.w(TAG, m_receiverName + " work did not complete.", ex);
+        return null;
+      }
+    }
+
+    /**
+     * Tratar a conclusão da task do trabalho assíncrono.
+     *
+     * @param task
+     */
+    private void onAsyncWorkComplete(final Task<?> task)
+    {
+      if (!task.isSuccessful())
+      {
+        Log.w(TAG, m_receiverName + " work did not complete.", task.getException());
+      }
+
+      finish(STATE_AWAITING);
+    }
+
+    /**
+     * Tratar o fim do tempo de despacho.
+     *
+     * O trabalho que ainda não começou é cancelado. Se a task de um trabalho assíncrono ainda não foi completada, o PendingResult é finalizado sem aguardá-la. O trabalho que já está em execução continua, e o PendingResult é finalizado quando terminar.
+     */
+    void timeOut()
+    {
+      if (cancel())
+      {
+        s_timedOutCount.incrementAndGet();
+        Log.w(TAG, m_receiverName + " was cancelled after waiting " + s_dispatchTimeoutInMs + "ms to start.");
+        return;
+      }
+
+      if (m_state.get() == STATE_DONE)
+      {
+        return;
+      }
+
+      s_timedOutCount.incrementAndGet();
+      m_timedOut = true;
+
+      if (expire())
+      {
+        Log.w(TAG, m_receiverName + " exceeded the dispatch time of " + s_dispatchTimeoutInMs + "ms before its task completed.");
+        return;
+      }
+
+      if (m_state.get() == STATE_RUNNING)
+      {
+        Log.w(TAG, m_receiverName + " exceeded the dispatch time of " + s_dispatchTimeoutInMs + "ms and is still running.");
+      }
+    }
+
+    /**
+     * Tratar a rejeição do trabalho pela fila de reserva cheia.
+     */
+    void reject()
+    {
+      if (cancel())
+      {
+        Log.w(TAG, m_receiverName + " was cancelled because the dispatch backlog is full.");
+      }
+    }
+
+    /**
+     * Cancelar o trabalho, caso ainda não tenha começado, e finalizar o PendingResult.
+     *
+     * @return true se o trabalho foi cancelado.
+     */
+    private boolean cancel()
+    {
+      if (!m_state.compareAndSet(STATE_QUEUED, STATE_CANCELLED))
+      {
+        return false;
+      }
+
+      if (m_watchdog != null)
+      {
+        m_watchdog.cancel(false);
+      }
+
+      m_result.finish();
+      return true;
+    }
+
+    /**
+     * Finalizar o PendingResult de um trabalho assíncrono cuja task ainda não foi completada, após o fim do tempo de despacho.
+     *
+     * @return true se o PendingResult foi finalizado.
+     */
+    private boolean expire()
+    {
+      if (!m_state.compareAndSet(STATE_AWAITING, STATE_DONE))
+      {
+        return false;
+      }
+
+      record(SystemClock.elapsedRealtime() - m_start);
+      m_result.finish();
+      return true;
+    }
+
+    /**
+     * Finalizar o PendingResult após o término do trabalho, caso ainda não tenha sido finalizado.
+     *
+     * @param expected estado em que o trabalho deve estar.
+     */
+    private void finish(final int expected)
+    {
+      if (!m_state.compareAndSet(expected, STATE_DONE))
+      {
+        return;
+      }
+
+      m_watchdog.cancel(false);
+      record(SystemClock.elapsedRealtime() - m_start);
+      m_result.finish();
+    }
+
+    private static final int STATE_QUEUED = 0;
+    private static final int STATE_RUNNING = 1;
+    private static final int STATE_AWAITING = 2;
+    private static final int STATE_DONE = 3;
+    private static final int STATE_CANCELLED = 4;
+    private final String m_receiverName;
+    private final BroadcastReceiver.PendingResult m_result;
+    private final Runnable m_work;
+    private final Callable<? extends Task<?>> m_asyncWork;
+    private final long m_start;
+    private final AtomicInteger m_state = new AtomicInteger(STATE_QUEUED);
+    private volatile ScheduledFuture<?> m_watchdog;
+    private volatile boolean m_timedOut;
+  }
+
+  private static ThreadPoolExecutor createExecutor()
+  {
+    final ThreadPoolExecutor executor = new ThreadPoolExecutor(DISPATCH_THREADS, DISPATCH_THREADS, KEEP_ALIVE_IN_S, TimeUnit.SECONDS, new ArrayBlockingQueue<>(DISPATCH_QUEUE_CAPACITY), (task, rejectedBy) -> BACKLOG_EXECUTOR.execute(task));
+
+    executor.allowCoreThreadTimeOut(true);
+
+    return executor;
+  }
+
+  private static ThreadPoolExecutor createBacklogExecutor()
+  {
+    final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, KEEP_ALIVE_IN_S, TimeUnit.SECONDS, new ArrayBlockingQueue<>(BACKLOG_CAPACITY), (task, rejectedBy) -> ((DispatchTask) task).reject());
+
+    executor.allowCoreThreadTimeOut(true);
+
+    return executor;
+  }
+
+  private BroadcastDispatcher()
+  {
+  }
+
+  private static final String TAG = "BroadcastDispatcher";
+  private static final int DISPATCH_THREADS = 2;
+  private static final int DISPATCH_QUEUE_CAPACITY = 32;
+  private static final long KEEP_ALIVE_IN_S = 30;
+  private static final int BACKLOG_CAPACITY = 128;
+  private static final ThreadPoolExecutor BACKLOG_EXECUTOR = createBacklogExecutor();
+  private static final ThreadPoolExecutor EXECUTOR = createExecutor();
+  private static final ScheduledExecutorService WATCHDOG = Executors.newSingleThreadScheduledExecutor();
+  private static final AtomicLong s_dispatchCount = new AtomicLong();
+  private static final AtomicLong s_totalDispatchTimeInMs = new AtomicLong();
+  private static final AtomicLong s_maxDispatchTimeInMs = new AtomicLong();
+  private static final AtomicLong s_timedOutCount = new AtomicLong();
+  private static volatile long s_dispatchTimeoutInMs = 9000;
+}
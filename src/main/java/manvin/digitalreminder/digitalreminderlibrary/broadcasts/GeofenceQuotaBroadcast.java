@@ -0,0 +1,31 @@
+package manvin.digitalreminder.digitalreminderlibrary.broadcasts;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+import com.google.android.gms.location.LocationResult;
+
+import manvin.digitalreminder.digitalreminderlibrary.core.GeofenceQuotaManager;
+
+/**
+ * Classe que representa um Broadcast que deve ser usado para receber as atualizações de localização de GeofenceQuotaManager.
+ *
+ * Quando o dispositivo se desloca a distância configurada, o conjunto de geofences armados é rebalanceado.
+ */
+public class GeofenceQuotaBroadcast extends BroadcastReceiver {
+
+  //****** INHERITED FROM BroadcastReceiver ******
+  @Override
+  public void onReceive(Context context, Intent intent) {
+    if (!LocationResult.hasResult(intent))
+    {
+      return;
+    }
+
+    final LocationResult result = LocationResult.extractResult(intent);
+
+    BroadcastDispatcher.dispatchTask(this, () -> new GeofenceQuotaManager(context).onLocationChanged(result.getLastLocation()));
+  }
+  //****** END OF INHERITED ******
+}
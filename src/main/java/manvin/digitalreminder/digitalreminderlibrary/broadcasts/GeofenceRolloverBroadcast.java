@@ -0,0 +1,22 @@
+package manvin.digitalreminder.digitalreminderlibrary.broadcasts;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+import manvin.digitalreminder.digitalreminderlibrary.core.GeofenceRollover;
+
+/**
+ * Classe que representa um Broadcast que deve ser usado para a virada do dia de GeofenceRollover.
+ *
+ * Recebe o alarme da meia-noite e as mudanças de horário e de fuso do dispositivo, que também mudam o dia atual.
+ */
+public class GeofenceRolloverBroadcast extends BroadcastReceiver {
+
+  //****** INHERITED FROM BroadcastReceiver ******
+  @Override
+  public void onReceive(Context context, Intent intent) {
+    BroadcastDispatcher.dispatchTask(this, () -> new GeofenceRollover(context).rollover());
+  }
+  //****** END OF INHERITED ******
+}
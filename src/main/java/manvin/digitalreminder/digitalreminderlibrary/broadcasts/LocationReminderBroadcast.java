@@ -10,6 +10,9 @@ import android.util.Pair;
 import com.google.android.gms.location.Geofence;
 import com.google.android.gms.location.GeofencingEvent;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+
 import manvin.digitalreminder.digitalreminderlibrary.core.LocationReminderDetails;
 import manvin.digitalreminder.digitalreminderlibrary.core.ReminderLocalStorage;
 import manvin.digitalreminder.digitalreminderlibrary.core.ReminderManager;
@@ -23,24 +26,50 @@ public class LocationReminderBroadcast extends BroadcastReceiver {
   //****** INHERITED FROM BaseBroadcast ******
   @Override
   public void onReceive(Context context, Intent intent) {
+    BroadcastDispatcher.dispatch(this, () -> Dispatch(context, intent));
+  }
+  //****** END OF INHERITED ******
+
+  /**
+   * Notifica os listeners dos lembretes cujos geofences foram acionados.
+   *
+   * É executado fora da thread principal por BroadcastDispatcher.
+   *
+   * @param context
+   * @param intent
+   */
+  protected void Dispatch(final Context context, final Intent intent)
+  {
     final GeofencingEvent event = GeofencingEvent.fromIntent(intent);
     try
     {
-      final ReminderLocalStorage storage =  new ReminderLocalStorage(context);
+      final ReminderLocalStorage storage =  ReminderLocalStorage.getInstance(context);
+      final ArrayList<String> ids = new ArrayList<>();
+      final ArrayList<String> missing = new ArrayList<>();
+
       for (Geofence geofence : event.getTriggeringGeofences())
       {
-        final LocationReminderDetails details = storage.get(geofence.getRequestId());
+        ids.add(geofence.getRequestId());
+      }
 
-        final ReminderManager.DayOfWeek dayOfWeek = details.m_dayOfWeek;
+      final HashMap<String,LocationReminderDetails> states = storage.getAll(ids, missing);
+      final ReminderManager.DayOfWeek dayOfWeek = ReminderManager.getDayOfWeek();
 
-        if (dayOfWeek != ReminderManager.getDayOfWeek())
+      if (!missing.isEmpty())
+      {
+        Log.w(TAG, "Geofences without a registered reminder: " + missing);
+      }
+
+      for (LocationReminderDetails details : states.values())
+      {
+        if (!details.isActiveOn(dayOfWeek))
         {
           continue;
         }
 
         final Location location = new Location("");
         final String address = details.m_address;
-        final ReminderManager.LocationReminderListener listener = details.m_locationListener;
+        final ReminderManager.LocationReminderListener listener = details.getLocationListener();
 
         location.setLatitude(details.m_latitude);
         location.setLongitude(details.m_longitude);
@@ -52,5 +81,6 @@ public class LocationReminderBroadcast extends BroadcastReceiver {
       throw new RuntimeException(exception);
     }
   }
-  //****** END OF INHERITED ******
+
+  private static final String TAG = "LocationReminderBroadcast";
 }
\ No newline at end of file
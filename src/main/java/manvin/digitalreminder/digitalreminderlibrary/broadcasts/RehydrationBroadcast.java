@@ -0,0 +1,62 @@
+package manvin.digitalreminder.digitalreminderlibrary.broadcasts;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+import manvin.digitalreminder.digitalreminderlibrary.core.ReminderRehydrator;
+
+/**
+ * Classe que representa um Broadcast que deve ser usado para rearmar os lembretes com ReminderRehydrator.
+ *
+ * Recebe a conclusão da inicialização do dispositivo e a atualização da aplicação. Cada etapa usa o tempo de despacho de BroadcastDispatcher; se o tempo se esgotar, a próxima etapa é enviada a este mesmo Broadcast.
+ */
+public class RehydrationBroadcast extends BroadcastReceiver {
+
+  //****** INHERITED FROM BroadcastReceiver ******
+  @Override
+  public void onReceive(Context context, Intent intent) {
+    final String action = intent.getAction();
+
+    if (!Intent.ACTION_BOOT_COMPLETED.equals(action) && !Intent.ACTION_MY_PACKAGE_REPLACED.equals(action) && !ACTION_CONTINUE.equals(action))
+    {
+      return;
+    }
+
+    BroadcastDispatcher.dispatch(this, () -> Rehydrate(context, intent));
+  }
+  //****** END OF INHERITED ******
+
+  /**
+   * Executa uma etapa do rearme e envia a próxima, caso necessário.
+   *
+   * É executado fora da thread principal por BroadcastDispatcher.
+   *
+   * @param context
+   * @param intent
+   */
+  protected void Rehydrate(final Context context, final Intent intent)
+  {
+    final String resumeAfter = ACTION_CONTINUE.equals(intent.getAction()) ? intent.getStringExtra("resumeAfter") : null;
+    final long budgetInMs = Math.max(MIN_BUDGET_IN_MS, BroadcastDispatcher.getDispatchTimeout() - BUDGET_MARGIN_IN_MS);
+    final String last = new ReminderRehydrator(context).rehydrate(resumeAfter, budgetInMs);
+
+    if (last == null)
+    {
+      return;
+    }
+
+    final Intent next = new Intent(context, RehydrationBroadcast.class);
+
+    next.setAction(ACTION_CONTINUE);
+    next.putExtra("resumeAfter", last);
+    context.sendBroadcast(next);
+  }
+
+  /**
+   * Action do Intent usado para continuar o rearme.
+   */
+  public static final String ACTION_CONTINUE = "manvin.digitalreminder.digitalreminderlibrary.action.CONTINUE_REHYDRATION";
+  private static final long BUDGET_MARGIN_IN_MS = 2000;
+  private static final long MIN_BUDGET_IN_MS = 1000;
+}
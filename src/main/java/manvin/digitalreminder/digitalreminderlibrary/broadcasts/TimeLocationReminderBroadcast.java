@@ -14,8 +14,13 @@ import com.google.android.gms.location.GeofencingEvent;
 import manvin.digitalreminder.digitalreminderlibrary.core.LocationReminderDetails;
 import manvin.digitalreminder.digitalreminderlibrary.core.ReminderLocalStorage;
 import manvin.digitalreminder.digitalreminderlibrary.core.ReminderManager;
+import manvin.digitalreminder.digitalreminderlibrary.core.ReminderRecurrence;
 
 import java.time.LocalTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Classe que representa um Broadcast que deve ser usado para lembretes baseados em localização e tempo.
@@ -27,29 +32,107 @@ public class TimeLocationReminderBroadcast extends BroadcastReceiver {
   //****** INHERITED FROM BroadcastReceiver ******
   @Override
   public void onReceive(Context context, Intent intent) {
+    BroadcastDispatcher.dispatch(this, () -> Dispatch(context, intent));
+  }
+  //****** END OF INHERITED ******
+
+  /**
+   * Notifica os listeners dos lembretes cujos geofences foram acionados.
+   *
+   * Um geofence acionado durante a antecedência, antes do horário do lembrete, não notifica o listener: o alerta é lançado novamente no horário por TimeLocationReminderDispatcherBroadcast.
+   *
+   * É executado fora da thread principal por BroadcastDispatcher.
+   *
+   * @param context
+   * @param intent
+   */
+  protected void Dispatch(final Context context, final Intent intent)
+  {
     final GeofencingEvent event = GeofencingEvent.fromIntent(intent);
     try
     {
-      final ReminderLocalStorage storage =  new ReminderLocalStorage(context);
+      final ReminderLocalStorage storage =  ReminderLocalStorage.getInstance(context);
+      final ArrayList<String> ids = new ArrayList<>();
+      final ArrayList<String> missing = new ArrayList<>();
 
       for (Geofence geofence : event.getTriggeringGeofences())
       {
-        final LocationReminderDetails details = storage.get(geofence.getRequestId());
+        ids.add(geofence.getRequestId());
+      }
 
-        final ReminderManager.DayOfWeek dayOfWeek = details.m_dayOfWeek;
-        final LocalTime time = details.m_time;
-        final Location location = new Location("");
-        final String address =  details.m_address;
-        final ReminderManager.TimeLocationReminderListener listener =  details.m_timeLocationListener;
+      final HashMap<String,LocationReminderDetails> states = storage.getAll(ids, missing);
 
-        location.setLatitude(details.m_latitude);
-        location.setLongitude(details.m_longitude);
-        listener.onReminder(context, dayOfWeek, time, new Pair<>(location, address));
+      if (!missing.isEmpty())
+      {
+        Log.w(TAG, "Geofences without a registered reminder: " + missing);
+      }
+
+      for (Map.Entry<String, LocationReminderDetails> entry : states.entrySet())
+      {
+        final long reminderTime = GetPendingReminderTime(entry.getValue());
+
+        if (reminderTime == 0)
+        {
+          Notify(context, entry.getValue());
+        }
+        else
+        {
+          TimeLocationReminderDispatcherBroadcast.DeferLocationReminder(context, entry.getKey(), reminderTime);
+        }
       }
     }
     catch (Exception exception){
       throw new RuntimeException(exception);
     }
   }
-  //****** END OF INHERITED ******
+
+  /**
+   * Notifica o listener do lembrete especificado.
+   *
+   * Também é usado por TimeLocationReminderDispatcherBroadcast, quando a última localização conhecida já está dentro da região alvo.
+   *
+   * @param context
+   * @param details
+   */
+  static void Notify(final Context context, final LocationReminderDetails details)
+  {
+    final ReminderManager.DayOfWeek today = ReminderManager.getDayOfWeek();
+    final ReminderManager.DayOfWeek dayOfWeek = details.isActiveOn(today) ? today : details.m_dayOfWeek;
+    final LocalTime time = details.m_time;
+    final Location location = new Location("");
+    final String address =  details.m_address;
+    final ReminderManager.TimeLocationReminderListener listener =  details.getTimeLocationListener();
+
+    location.setLatitude(details.m_latitude);
+    location.setLongitude(details.m_longitude);
+    listener.onReminder(context, dayOfWeek, time, new Pair<>(location, address));
+  }
+
+  /**
+   * Obtém o horário do lembrete cuja antecedência ainda está em curso.
+   *
+   * O geofence é armado com a antecedência de GeofenceParameters, de forma que um alerta lançado antes do horário do lembrete não deve notificar o listener.
+   *
+   * @param details
+   *
+   * @return o horário do lembrete em epoch millis, ou 0 se o horário já foi alcançado.
+   */
+  static long GetPendingReminderTime(final LocationReminderDetails details)
+  {
+    final int armingLeadInMs = details.getGeofenceParameters().m_armingLeadInMs;
+
+    if (armingLeadInMs <= 0 || details.m_time == null)
+    {
+      return 0;
+    }
+
+    final long now = System.currentTimeMillis();
+    final long reminderTime = ReminderRecurrence.nextOccurrence(details.getDaysOfWeekMask(), details.m_time.toSecondOfDay(), now, ZoneId.systemDefault());
+
+    // O horário de armação é truncado para o segundo, e pode anteceder o lembrete em até um segundo além da antecedência.
+    return reminderTime - now <= armingLeadInMs + MILLIS_PER_SECOND ? reminderTime : 0;
+  }
+
+  private static final String TAG = "TimeLocationReminderBroadcast";
+  private static final long MILLIS_PER_SECOND = 1000;
 }
\ No newline at end of file
@@ -1,21 +1,23 @@
 package manvin.digitalreminder.digitalreminderlibrary.broadcasts;
 
 import android.annotation.SuppressLint;
+import android.app.AlarmManager;
 import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
 import android.location.Location;
-import android.os.Bundle;
 import android.util.Log;
 
 import com.google.android.gms.location.Geofence;
 import com.google.android.gms.location.GeofencingClient;
-import com.google.android.gms.location.GeofencingEvent;
 import com.google.android.gms.location.GeofencingRequest;
 import com.google.android.gms.location.LocationServices;
 
-import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
 
+import manvin.digitalreminder.digitalreminderlibrary.core.GeofenceParameters;
 import manvin.digitalreminder.digitalreminderlibrary.core.LocationReminderDetails;
 import manvin.digitalreminder.digitalreminderlibrary.core.ReminderLocalStorage;
 import manvin.digitalreminder.digitalreminderlibrary.core.ReminderManager;
@@ -24,31 +26,55 @@ import manvin.digitalreminder.digitalreminderlibrary.core.ReminderManager;
  * Classe que representa um Broadcast que deve ser usado para lembretes baseados em localização e tempo.
  *
  * Este broadcast deve ser notificado baseado no tempo. Quando é notificado, lança uma alerta de proximidade para a região alvo.
+ *
+ * O alarme é acionado com a antecedência de GeofenceParameters apenas para que o geofence esteja armado no horário do lembrete. Se o dispositivo já estiver dentro da região antes do horário, o alerta é lançado novamente no horário, por um alarme com ACTION_THROW, em vez de notificar o listener antecipadamente.
  */
 public class TimeLocationReminderDispatcherBroadcast extends TimeReminderBroadcast {
 
   //****** INHERITED FROM TimeReminderBroadcast ******
   @Override
-  public void onReceive(Context context, Intent intent) {
+  protected void Dispatch(final Context context, final Intent intent)
+  {
     final String id = intent.getIdentifier();
 
-    ThrowLocationReminder(context, intent.getIdentifier());
-
-    try
+    if (ACTION_THROW.equals(intent.getAction()))
     {
-      final ReminderLocalStorage storage =  new ReminderLocalStorage(context);
-      final LocationReminderDetails details = storage.get(id);
+      ThrowLocationReminder(context, id);
+      return;
+    }
 
-      final ReminderManager.DayOfWeek dayOfWeek = details.m_dayOfWeek;
-      final LocalTime time = details.m_time;
+    final LocationReminderDetails details;
 
-      RegisterNextAlarm(context, intent, dayOfWeek, time);
+    try
+    {
+      details = ReminderLocalStorage.getInstance(context).get(id);
     }
     catch(Exception exception)
     {
       throw new RuntimeException(exception);
     }
 
+    if (details == null)
+    {
+      Log.w(TAG, "Alarm without a registered reminder: " + id);
+      return;
+    }
+
+    final GeofenceParameters parameters = details.getGeofenceParameters();
+
+    RegisterNextAlarm(context, intent, parameters.getArmingDaysOfWeekMask(details.getDaysOfWeekMask(), details.m_time), parameters.getArmingTime(details.m_time));
+    ThrowLocationReminders(context, Collections.singletonMap(id, details));
+  }
+
+  /**
+   * Obtém o request code dos alarmes deste Broadcast, usado por ReminderManager para armar e cancelar o alarme do lembrete.
+   *
+   * @return ReminderManager.REQUEST_TIME_LOCATION_DISPATCHER_CODE.
+   */
+  @Override
+  protected int GetRequestCode()
+  {
+    return ReminderManager.REQUEST_TIME_LOCATION_DISPATCHER_CODE;
   }
   //****** END OF INHERITED ******
 
@@ -58,44 +84,124 @@ public class TimeLocationReminderDispatcherBroadcast extends TimeReminderBroadca
    * @param context
    * @param id O id de um LocationReminderDetails previamente registrado.
    */
-  @SuppressLint("MissingPermission")
-  private void ThrowLocationReminder(final Context context, final String id)
+  public static void ThrowLocationReminder(final Context context, final String id)
   {
     try
     {
-      final ReminderLocalStorage storage =  new ReminderLocalStorage(context);
-      final LocationReminderDetails details = storage.get(id);
+      final LocationReminderDetails details = ReminderLocalStorage.getInstance(context).get(id);
 
-      final Location location = new Location("");
+      if (details == null)
+      {
+        Log.w(TAG, "Alarm without a registered reminder: " + id);
+        return;
+      }
 
-      location.setLatitude(details.m_latitude);
-      location.setLongitude(details.m_longitude);
+      ThrowLocationReminders(context, Collections.singletonMap(id, details));
+    }
+    catch(Exception exception)
+    {
+      throw new RuntimeException(exception);
+    }
+  }
 
-      final Geofence geofance = new Geofence.Builder()
-              .setRequestId(id)
-              .setCircularRegion(location.getLatitude(), location.getLongitude(), 1000)
-              .setExpirationDuration(DURATION_MS)
-              .setTransitionTypes(Geofence.GEOFENCE_TRANSITION_ENTER)
-              .build();
+  /**
+   * Lança um alerta para a região alvo de cada um dos lembretes especificados, já carregados do armazenamento.
+   *
+   * Os geofences de todos os lembretes são adicionados com uma única requisição por lote. Também é usado por ReminderScheduler para os lembretes que vencem no mesmo minuto.
+   *
+   * Antes de armar os geofences, a última localização conhecida do dispositivo, se recente, é comparada localmente com cada região alvo. Se o dispositivo está claramente dentro da região, o listener é notificado imediatamente, ou, se o horário do lembrete ainda não foi alcançado, o alerta é lançado novamente no horário. Se está claramente longe, o geofence não é armado. Apenas nos demais casos o geofence é armado.
+   *
+   * @param context
+   * @param reminders mapa que associa o id aos detalhes de cada lembrete.
+   */
+  @SuppressLint("MissingPermission")
+  public static void ThrowLocationReminders(final Context context, final Map<String, LocationReminderDetails> reminders)
+  {
+    if (reminders.isEmpty())
+    {
+      return;
+    }
 
-      final GeofencingRequest.Builder operationBuilder = new GeofencingRequest.Builder();
+    final ArrayList<Geofence> geofences = new ArrayList<>();
+    final Location lastLocation = ReminderManager.getRecentLocation(context, MAX_LOCATION_AGE_MS);
+    final float[] distance = new float[1];
 
-      operationBuilder
-              .setInitialTrigger(GeofencingRequest.INITIAL_TRIGGER_ENTER)
-              .addGeofence(geofance);
+    for (Map.Entry<String, LocationReminderDetails> entry : reminders.entrySet())
+    {
+      final LocationReminderDetails details = entry.getValue();
+      final GeofenceParameters parameters = details.getGeofenceParameters();
+
+      if (lastLocation != null)
+      {
+        final float accuracy = lastLocation.hasAccuracy() ? lastLocation.getAccuracy() : 0;
+
+        Location.distanceBetween(lastLocation.getLatitude(), lastLocation.getLongitude(), details.m_latitude, details.m_longitude, distance);
+
+        if (distance[0] + accuracy <= parameters.m_radiusInM)
+        {
+          final long reminderTime = TimeLocationReminderBroadcast.GetPendingReminderTime(details);
+
+          if (reminderTime == 0)
+          {
+            TimeLocationReminderBroadcast.Notify(context, details);
+          }
+          else
+          {
+            DeferLocationReminder(context, entry.getKey(), reminderTime);
+          }
+          continue;
+        }
+
+        if (distance[0] - accuracy > parameters.m_radiusInM + parameters.getFarMarginInM())
+        {
+          continue;
+        }
+      }
+
+      geofences.add(parameters.buildGeofence(entry.getKey(), details.m_latitude, details.m_longitude, parameters.m_armingLeadInMs + parameters.m_armingWindowInMs, lastLocation));
+    }
 
-      final GeofencingClient geofencingClient = LocationServices.getGeofencingClient(context);
-      final Intent localIntent = new Intent(context, TimeLocationReminderBroadcast.class);
+    if (geofences.isEmpty())
+    {
+      return;
+    }
 
-      final PendingIntent operation = PendingIntent.getBroadcast(context, ReminderManager.REQUEST_TIME_LOCATION_CODE, localIntent, ReminderManager.REQUEST_MUTABLE_CREATE_FLAGS);
+    final GeofencingClient geofencingClient = LocationServices.getGeofencingClient(context);
+    final Intent localIntent = new Intent(context, TimeLocationReminderBroadcast.class);
+    final PendingIntent operation = PendingIntent.getBroadcast(context, ReminderManager.REQUEST_TIME_LOCATION_CODE, localIntent, ReminderManager.REQUEST_MUTABLE_CREATE_FLAGS);
 
-      geofencingClient.addGeofences(operationBuilder.build(), operation);
-    }
-    catch(Exception exception)
+    for (GeofencingRequest request : ReminderManager.buildGeofencingRequests(geofences, GeofencingRequest.INITIAL_TRIGGER_ENTER))
     {
-      throw new RuntimeException(exception);
+      geofencingClient.addGeofences(request, operation);
     }
   }
 
-  private int DURATION_MS = 1000 * 30;
-}
\ No newline at end of file
+  /**
+   * Arma um alarme que lança novamente o alerta do lembrete especificado no horário especificado.
+   *
+   * Um alarme previamente armado para o mesmo lembrete é substituído.
+   *
+   * @param context
+   * @param id
+   * @param reminderTime horário do lembrete em epoch millis.
+   */
+  static void DeferLocationReminder(final Context context, final String id, final long reminderTime)
+  {
+    final AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+    final Intent intent = new Intent(context, TimeLocationReminderDispatcherBroadcast.class);
+
+    intent.setAction(ACTION_THROW);
+    intent.setIdentifier(id);
+
+    final PendingIntent operation = PendingIntent.getBroadcast(context, ReminderManager.REQUEST_TIME_LOCATION_DEFERRED_CODE, intent, ReminderManager.REQUEST_IMMUTABLE_CREATE_FLAGS);
+
+    alarmManager.setExactAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, reminderTime, operation);
+  }
+
+  /**
+   * Action do Intent do alarme que lança novamente o alerta no horário do lembrete.
+   */
+  public static final String ACTION_THROW = "manvin.digitalreminder.digitalreminderlibrary.action.THROW_LOCATION_REMINDER";
+  private static final String TAG = "TimeLocationReminderDispatcherBroadcast";
+  private static final long MAX_LOCATION_AGE_MS = 2 * 60 * 1000;
+}
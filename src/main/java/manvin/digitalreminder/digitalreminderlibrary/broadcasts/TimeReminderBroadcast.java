@@ -6,30 +6,127 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Bundle;
+import android.util.Log;
 
+import manvin.digitalreminder.digitalreminderlibrary.core.LocationReminderDetails;
+import manvin.digitalreminder.digitalreminderlibrary.core.ReminderLocalStorage;
 import manvin.digitalreminder.digitalreminderlibrary.core.ReminderManager;
+import manvin.digitalreminder.digitalreminderlibrary.core.ReminderRecurrence;
+import manvin.digitalreminder.digitalreminderlibrary.core.ReminderScheduler;
 
 import java.time.LocalTime;
-import java.util.Calendar;
+import java.time.ZoneId;
+import java.util.EnumSet;
 
 /**
  * Classe que representa um Broadcast que deve ser usado para lembretes baseados no tempo.
+ *
+ * O Intent do alarme carrega apenas o id do lembrete, cujos detalhes são obtidos de ReminderLocalStorage. Alarmes armados antes disso ainda carregam os detalhes e o listener nos extras.
+ *
+ * Também recebe o alarme de ReminderScheduler, quando os lembretes são agendados com ReminderManager.SchedulerMode.SINGLE_ALARM.
  */
 public class TimeReminderBroadcast extends BroadcastReceiver {
 
   //****** INHERITED FROM BroadcastReceiver ******
   @Override
   public void onReceive(Context context, Intent intent) {
+    BroadcastDispatcher.dispatch(this, () -> Dispatch(context, intent));
+  }
+  //****** END OF INHERITED ******
+
+  /**
+   * Registra o próximo alarme e notifica o listener do lembrete.
+   *
+   * É executado fora da thread principal por BroadcastDispatcher.
+   *
+   * @param context
+   * @param intent
+   */
+  protected void Dispatch(final Context context, final Intent intent)
+  {
+    if (ReminderScheduler.ACTION_DISPATCH.equals(intent.getAction()))
+    {
+      new ReminderScheduler(context).dispatchDue();
+      return;
+    }
+
+    if (!intent.hasExtra("listener"))
+    {
+      DispatchStored(context, intent);
+      return;
+    }
+
     final Bundle extras = intent.getExtras();
 
     final ReminderManager.DayOfWeek dayOfWeek = (ReminderManager.DayOfWeek) extras.getSerializable("dayOfWeek");
+    final int daysOfWeek = GetDaysOfWeekMask(extras);
     final LocalTime time = (LocalTime) extras.getSerializable("time");
     final ReminderManager.TimeReminderListener listener = extras.getParcelable("listener");
+    final ReminderManager.DayOfWeek today = ReminderManager.getDayOfWeek();
 
-    listener.onReminder(context, dayOfWeek, time);
     RegisterNextAlarm(context, intent);
+
+    if (listener == null)
+    {
+      Log.w(TAG, "Alarm without a listener: " + intent.getIdentifier());
+      return;
+    }
+
+    listener.onReminder(context, (daysOfWeek & (1 << today.ordinal())) != 0 ? today : dayOfWeek, time);
+  }
+
+  /**
+   * Registra o próximo alarme e notifica o listener de um lembrete guardado em ReminderLocalStorage.
+   *
+   * O próximo alarme é registrado antes da notificação, de forma que uma falha ao recriar o listener, que é apenas registrada, não interrompa a recorrência do lembrete.
+   *
+   * @param context
+   * @param intent
+   */
+  protected void DispatchStored(final Context context, final Intent intent)
+  {
+    final String id = intent.getIdentifier();
+    final LocationReminderDetails details;
+
+    try
+    {
+      details = ReminderLocalStorage.getInstance(context).get(id);
+    }
+    catch(Exception exception)
+    {
+      throw new RuntimeException(exception);
+    }
+
+    if (details == null)
+    {
+      Log.w(TAG, "Alarm without a registered reminder: " + id);
+      return;
+    }
+
+    RegisterNextAlarm(context, intent, details.getDaysOfWeekMask(), details.m_time, details.m_toleranceInMs);
+
+    final ReminderManager.TimeReminderListener listener;
+
+    try
+    {
+      listener = details.getTimeReminderListener(context.getClassLoader());
+    }
+    catch (RuntimeException exception)
+    {
+      Log.w(TAG, "Could not recreate the listener of reminder: " + id, exception);
+      return;
+    }
+
+    if (listener == null)
+    {
+      Log.w(TAG, "Reminder without a listener: " + id);
+      return;
+    }
+
+    final ReminderManager.DayOfWeek today = ReminderManager.getDayOfWeek();
+
+    listener.onReminder(context, details.isActiveOn(today) ? today : details.m_dayOfWeek, details.m_time);
   }
-  //****** END OF INHERITED ******
 
   /**
    * Registra o próximo alarme baseado no tempo.
@@ -41,14 +138,9 @@ public class TimeReminderBroadcast extends BroadcastReceiver {
   {
     final Bundle extras = intent.getExtras();
 
-    final ReminderManager.DayOfWeek dayOfWeek = (ReminderManager.DayOfWeek) extras.getSerializable("dayOfWeek");
     final LocalTime time = (LocalTime) extras.getSerializable("time");
 
-    final Calendar target = ReminderManager.getNextWeekDayAfterNow(dayOfWeek, time);
-    final AlarmManager alarmManager = (AlarmManager) context.getSystemService(context.ALARM_SERVICE);
-    final PendingIntent pendingIntent = PendingIntent.getBroadcast(context, ReminderManager.REQUEST_TIME_CODE, intent, ReminderManager.REQUEST_IMMUTABLE_CREATE_FLAGS);
-
-    alarmManager.setExactAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, target.getTimeInMillis(), pendingIntent);
+    RegisterNextAlarm(context, intent, GetDaysOfWeekMask(extras), time);
   }
 
   /**
@@ -63,10 +155,78 @@ public class TimeReminderBroadcast extends BroadcastReceiver {
    */
   protected void RegisterNextAlarm(final Context context, final Intent intent, final ReminderManager.DayOfWeek dayOfWeek, final LocalTime time)
   {
-    final Calendar target = ReminderManager.getNextWeekDayAfterNow(dayOfWeek, time);
+    RegisterNextAlarm(context, intent, ReminderManager.toDaysOfWeekMask(EnumSet.of(dayOfWeek)), time);
+  }
+
+  /**
+   * Registra o próximo alarme baseado no tempo.
+   *
+   * O próximo dia da máscara de dias da semana e o time especificados serão usados, com a tolerância dos extras do alarme, caso haja.
+   *
+   * @param context
+   * @param intent
+   * @param daysOfWeek
+   * @param time
+   */
+  protected void RegisterNextAlarm(final Context context, final Intent intent, final int daysOfWeek, final LocalTime time)
+  {
+    final Bundle extras = intent.getExtras();
+
+    RegisterNextAlarm(context, intent, daysOfWeek, time, extras != null ? extras.getInt("toleranceInMs", 0) : 0);
+  }
+
+  /**
+   * Registra o próximo alarme baseado no tempo.
+   *
+   * O próximo dia da máscara de dias da semana e o time especificados serão usados. Se o lembrete tiver tolerância, o alarme é armado com uma janela, e a próxima ocorrência é procurada após o fim da tolerância, pois o alarme pode ter sido acionado antes do horário.
+   *
+   * O alarme é armado com o request code de GetRequestCode, o mesmo do primeiro alarme, de forma que ele substitua o alarme acionado e possa ser cancelado quando o lembrete é desregistrado.
+   *
+   * @param context
+   * @param intent
+   * @param daysOfWeek
+   * @param time
+   * @param toleranceInMs
+   */
+  protected void RegisterNextAlarm(final Context context, final Intent intent, final int daysOfWeek, final LocalTime time, final int toleranceInMs)
+  {
+    final long target = ReminderRecurrence.nextOccurrence(daysOfWeek, time.toSecondOfDay(), System.currentTimeMillis() + toleranceInMs, ZoneId.systemDefault());
     final AlarmManager alarmManager = (AlarmManager) context.getSystemService(context.ALARM_SERVICE);
-    final PendingIntent pendingIntent = PendingIntent.getBroadcast(context, ReminderManager.REQUEST_TIME_CODE, intent, ReminderManager.REQUEST_IMMUTABLE_CREATE_FLAGS);
+    final PendingIntent pendingIntent = PendingIntent.getBroadcast(context, GetRequestCode(), intent, ReminderManager.REQUEST_IMMUTABLE_CREATE_FLAGS);
 
-    alarmManager.setExactAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, target.getTimeInMillis(), pendingIntent);
+    ReminderManager.setAlarmWindow(alarmManager, target - toleranceInMs, target + toleranceInMs, pendingIntent);
+  }
+
+  /**
+   * Obtém o request code dos alarmes deste Broadcast.
+   *
+   * @return ReminderManager.REQUEST_TIME_CODE.
+   */
+  protected int GetRequestCode()
+  {
+    return ReminderManager.REQUEST_TIME_CODE;
   }
-}
\ No newline at end of file
+
+  /**
+   * Obtém a máscara de dias da semana dos extras de um alarme.
+   *
+   * Alarmes registrados antes da existência da máscara possuem apenas o dia da semana.
+   *
+   * @param extras
+   *
+   * @return a máscara.
+   */
+  private static int GetDaysOfWeekMask(final Bundle extras)
+  {
+    final int daysOfWeek = extras.getInt("daysOfWeek", 0);
+
+    if (daysOfWeek != 0)
+    {
+      return daysOfWeek;
+    }
+
+    return ReminderManager.toDaysOfWeekMask(EnumSet.of((ReminderManager.DayOfWeek) extras.getSerializable("dayOfWeek")));
+  }
+
+  private static final String TAG = "TimeReminderBroadcast";
+}
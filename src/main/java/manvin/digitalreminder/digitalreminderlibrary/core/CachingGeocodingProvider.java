@@ -0,0 +1,584 @@
+package manvin.digitalreminder.digitalreminderlibrary.core;
+
+import android.content.Context;
+import android.location.Location;
+import android.util.Log;
+import android.util.Pair;
+
+import androidx.annotation.NonNull;
+
+import java.text.Normalizer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+/**
+ * Classe que representa um GeocodingProvider que mantém em memória os resultados de geocoding e reverse geocoding de outro GeocodingProvider.
+ *
+ * Os resultados de reverse geocoding são indexados pela célula do geohash da localização, com a precisão especificada, de forma que consultas repetidas em torno do mesmo ponto (por exemplo, sucessivos LocationFinder.find(null) com o dispositivo parado) não invocam o provedor. Os endereços de referência, que contêm apenas a cidade e o estado, usam uma célula de no máximo REFERENCE_PRECISION caracteres.
+ *
+ * Os resultados de geocoding são indexados pela forma normalizada (normalize) do endereço e da referência, de forma que buscas repetidas pelo mesmo lugar, ainda que escritas com outras maiúsculas, acentos ou espaços, não invocam o provedor.
+ *
+ * Os resultados expiram após o TTL especificado e, quando a capacidade em quantidade ou o tamanho estimado em memória é excedido, os resultados usados há mais tempo são descartados (LRU). Resultados ausentes e exceções do provedor não são mantidos.
+ *
+ * Se construído com um contexto, os resultados também são guardados em um arquivo no armazenamento interno do dispositivo (GeocodingCacheFile), consultado quando um resultado não está em memória. Assim, processos de curta duração, como os iniciados por Broadcasts, evitam o provedor mesmo com a memória vazia. Falhas no arquivo são apenas registradas. A Location de fetchAddressDetails lida do arquivo mantém apenas a latitude, a longitude, a precisão, o instante e o provedor da original.
+ *
+ * É thread-safe. Deve ser injetado em LocationFinder.setFetcher no lugar do provedor original.
+ */
+public class CachingGeocodingProvider implements GeocodingProvider {
+
+  /**
+   * Construir um CachingGeocodingProvider com a precisão, a capacidade e o TTL padrões.
+   *
+   * @param provider provedor cujos resultados são mantidos.
+   */
+  public CachingGeocodingProvider(@NonNull final GeocodingProvider provider)
+  {
+    this(provider, DEFAULT_PRECISION, DEFAULT_CAPACITY, DEFAULT_TTL_IN_MS);
+  }
+
+  /**
+   * Construir um CachingGeocodingProvider com a precisão, a capacidade e o TTL especificados, e o tamanho máximo padrão.
+   *
+   * @param provider provedor cujos resultados são mantidos.
+   * @param precision quantidade de caracteres do geohash, de 1 a MAX_PRECISION. Por exemplo, 6 corresponde a células de aproximadamente 1,2km x 0,6km e 7 a células de aproximadamente 150m x 150m.
+   * @param capacity quantidade máxima de resultados mantidos.
+   * @param ttlInMs tempo durante o qual um resultado é válido.
+   *
+   * @throws IllegalArgumentException se algum parâmetro for inválido.
+   */
+  public CachingGeocodingProvider(@NonNull final GeocodingProvider provider, final int precision, final int capacity, final long ttlInMs)
+  {
+    this(provider, precision, capacity, DEFAULT_MAX_SIZE_IN_BYTES, ttlInMs);
+  }
+
+  /**
+   * Construir um CachingGeocodingProvider com a precisão, a capacidade, o tamanho máximo e o TTL especificados.
+   *
+   * @param provider provedor cujos resultados são mantidos.
+   * @param precision quantidade de caracteres do geohash, de 1 a MAX_PRECISION.
+   * @param capacity quantidade máxima de resultados mantidos.
+   * @param maxSizeInBytes tamanho máximo estimado, em memória, dos resultados mantidos.
+   * @param ttlInMs tempo durante o qual um resultado é válido.
+   *
+   * @throws IllegalArgumentException se algum parâmetro for inválido.
+   */
+  public CachingGeocodingProvider(@NonNull final GeocodingProvider provider, final int precision, final int capacity, final long maxSizeInBytes, final long ttlInMs)
+  {
+    this(provider, precision, capacity, maxSizeInBytes, ttlInMs, null);
+  }
+
+  /**
+   * Construir um CachingGeocodingProvider persistente com os parâmetros padrões.
+   *
+   * @param context contexto cujo armazenamento interno guarda o arquivo.
+   * @param provider provedor cujos resultados são mantidos.
+   */
+  public CachingGeocodingProvider(@NonNull final Context context, @NonNull final GeocodingProvider provider)
+  {
+    this(context, provider, DEFAULT_PRECISION, DEFAULT_CAPACITY, DEFAULT_MAX_SIZE_IN_BYTES, DEFAULT_MAX_FILE_SIZE_IN_BYTES, DEFAULT_TTL_IN_MS);
+  }
+
+  /**
+   * Construir um CachingGeocodingProvider persistente com os parâmetros especificados.
+   *
+   * @param context contexto cujo armazenamento interno guarda o arquivo.
+   * @param provider provedor cujos resultados são mantidos.
+   * @param precision quantidade de caracteres do geohash, de 1 a MAX_PRECISION.
+   * @param capacity quantidade máxima de resultados mantidos em memória.
+   * @param maxSizeInBytes tamanho máximo estimado, em memória, dos resultados mantidos.
+   * @param maxFileSizeInBytes tamanho máximo do arquivo, a partir do qual ele é compactado.
+   * @param ttlInMs tempo durante o qual um resultado é válido.
+   *
+   * @throws IllegalArgumentException se algum parâmetro for inválido.
+   */
+  public CachingGeocodingProvider(@NonNull final Context context, @NonNull final GeocodingProvider provider, final int precision, final int capacity, final long maxSizeInBytes, final long maxFileSizeInBytes, final long ttlInMs)
+  {
+    this(provider, precision, capacity, maxSizeInBytes, ttlInMs, openCacheFile(context, maxFileSizeInBytes));
+  }
+
+  private CachingGeocodingProvider(final GeocodingProvider provider, final int precision, final int capacity, final long maxSizeInBytes, final long ttlInMs, final GeocodingCacheFile cacheFile)
+  {
+    if (precision < 1 || precision > MAX_PRECISION || capacity <= 0 || maxSizeInBytes <= 0 || ttlInMs <= 0)
+    {
+      throw new IllegalArgumentException("Invalid CachingGeocodingProvider parameters.");
+    }
+
+    m_cacheFile = cacheFile;
+    m_provider = provider;
+    m_precision = precision;
+    m_capacity = capacity;
+    m_maxSizeInBytes = maxSizeInBytes;
+    m_ttlInMs = ttlInMs;
+    m_entries = new LinkedHashMap<>(16, 0.75f, true);
+  }
+
+  //****** INHERITED FROM GeocodingProvider ******
+  @Override
+  public Optional<String> fetchLocationDetails(@NonNull final Location location)
+  {
+    final String key = DETAILS_PREFIX + geohash(location.getLatitude(), location.getLongitude(), m_precision);
+
+    return fetch(key, () -> m_provider.fetchLocationDetails(location));
+  }
+
+  @Override
+  public Optional<String> fetchLocationDetailsForReference(@NonNull final Location location)
+  {
+    final String key = REFERENCE_PREFIX + geohash(location.getLatitude(), location.getLongitude(), Math.min(m_precision, REFERENCE_PRECISION));
+
+    return fetch(key, () -> m_provider.fetchLocationDetailsForReference(location));
+  }
+
+  @Override
+  public Optional<Pair<Location, String>> fetchAddressDetails(@NonNull final String address, @NonNull final String references)
+  {
+    final String key = ADDRESS_PREFIX + normalize(address) + KEY_SEPARATOR + normalize(references);
+
+    return fetch(key, () -> m_provider.fetchAddressDetails(address, references).map(CachingGeocodingProvider::copy))
+            .map(CachingGeocodingProvider::copy);
+  }
+  //****** END OF INHERITED ******
+
+  /**
+   * Obter a quantidade de consultas servidas pela memória.
+   *
+   * @return a quantidade.
+   */
+  public synchronized long getHitCount()
+  {
+    return m_hitCount;
+  }
+
+  /**
+   * Obter a quantidade de consultas servidas pelo arquivo, por não estarem em memória.
+   *
+   * @return a quantidade.
+   */
+  public synchronized long getFileHitCount()
+  {
+    return m_fileHitCount;
+  }
+
+  /**
+   * Obter a quantidade de consultas encaminhadas ao provedor.
+   *
+   * @return a quantidade.
+   */
+  public synchronized long getMissCount()
+  {
+    return m_missCount;
+  }
+
+  /**
+   * Obter a quantidade de resultados descartados pela capacidade.
+   *
+   * @return a quantidade.
+   */
+  public synchronized long getEvictionCount()
+  {
+    return m_evictionCount;
+  }
+
+  /**
+   * Zerar os contadores.
+   */
+  public synchronized void resetStatistics()
+  {
+    m_hitCount = 0;
+    m_fileHitCount = 0;
+    m_missCount = 0;
+    m_evictionCount = 0;
+  }
+
+  /**
+   * Obter o tamanho estimado, em memória, dos resultados mantidos.
+   *
+   * @return o tamanho em bytes.
+   */
+  public synchronized long getSizeInBytes()
+  {
+    return m_sizeInBytes;
+  }
+
+  /**
+   * Descartar todos os resultados mantidos, inclusive os guardados no arquivo.
+   */
+  public synchronized void clear()
+  {
+    m_entries.clear();
+    m_sizeInBytes = 0;
+
+    if (m_cacheFile != null)
+    {
+      m_cacheFile.clear();
+    }
+  }
+
+  /**
+   * Normalizar um endereço para a comparação com outros endereços.
+   *
+   * Os acentos são removidos, as letras são convertidas para minúsculas e as sequências de espaços são reduzidas a um único espaço. Por exemplo, "  Avenida  PAULISTA, São Paulo" e "avenida paulista, sao paulo" têm a mesma forma normalizada.
+   *
+   * @param address
+   *
+   * @return a forma normalizada.
+   */
+  public static String normalize(@NonNull final String address)
+  {
+    final String decomposed = Normalizer.normalize(address, Normalizer.Form.NFKD);
+    final String unaccented = COMBINING_MARKS.matcher(decomposed).replaceAll("");
+
+    return WHITESPACES.matcher(unaccented.toLowerCase(Locale.ROOT)).replaceAll(" ").trim();
+  }
+
+  /**
+   * Obter o geohash de uma coordenada.
+   *
+   * @param latitude
+   * @param longitude
+   * @param precision quantidade de caracteres.
+   *
+   * @return o geohash.
+   */
+  public static String geohash(final double latitude, final double longitude, final int precision)
+  {
+    final StringBuilder builder = new StringBuilder(precision);
+    double minLatitude = -90, maxLatitude = 90;
+    double minLongitude = -180, maxLongitude = 180;
+    boolean isLongitude = true;
+    int bits = 0;
+    int value = 0;
+
+    while (builder.length() < precision)
+    {
+      if (isLongitude)
+      {
+        final double middle = (minLongitude + maxLongitude) / 2;
+
+        value <<= 1;
+
+        if (longitude >= middle)
+        {
+          value |= 1;
+          minLongitude = middle;
+        }
+        else
+        {
+          maxLongitude = middle;
+        }
+      }
+      else
+      {
+        final double middle = (minLatitude + maxLatitude) / 2;
+
+        value <<= 1;
+
+        if (latitude >= middle)
+        {
+          value |= 1;
+          minLatitude = middle;
+        }
+        else
+        {
+          maxLatitude = middle;
+        }
+      }
+
+      isLongitude = !isLongitude;
+
+      if (++bits == 5)
+      {
+        builder.append(BASE32.charAt(value));
+        bits = 0;
+        value = 0;
+      }
+    }
+
+    return builder.toString();
+  }
+
+  /**
+   * Obter o resultado com a key especificada da memória, do arquivo ou, se ausente em ambos, do provedor.
+   *
+   * @param key
+   * @param fetcher consulta ao provedor.
+   * @param <T> tipo do resultado.
+   *
+   * @return o resultado.
+   */
+  @SuppressWarnings("unchecked")
+  private <T> Optional<T> fetch(final String key, final Supplier<Optional<T>> fetcher)
+  {
+    final Object cached = lookup(key);
+
+    if (cached != null)
+    {
+      return Optional.of((T) cached);
+    }
+
+    final GeocodingCacheFile.CachedValue stored = lookupFile(key);
+
+    if (stored != null)
+    {
+      synchronized (this)
+      {
+        m_fileHitCount++;
+      }
+
+      store(key, stored.value, stored.expiresAt);
+      return Optional.of((T) stored.value);
+    }
+
+    synchronized (this)
+    {
+      m_missCount++;
+    }
+
+    final Optional<T> result = fetcher.get();
+
+    if (result.isPresent())
+    {
+      final long expiresAt = System.currentTimeMillis() + m_ttlInMs;
+
+      store(key, result.get(), expiresAt);
+      storeFile(key, result.get(), expiresAt);
+    }
+
+    return result;
+  }
+
+  /**
+   * Obter o resultado mantido em memória com a key especificada, contabilizando o acerto.
+   *
+   * @param key
+   *
+   * @return o resultado, ou null se ausente ou expirado.
+   */
+  private synchronized Object lookup(final String key)
+  {
+    final CachedResult entry = m_entries.get(key);
+
+    if (entry == null || entry.expiresAt <= System.currentTimeMillis())
+    {
+      if (entry != null)
+      {
+        m_entries.remove(key);
+        m_sizeInBytes -= entry.sizeInBytes;
+      }
+
+      return null;
+    }
+
+    m_hitCount++;
+    return entry.value;
+  }
+
+  /**
+   * Obter o resultado guardado no arquivo com a key especificada.
+   *
+   * @param key
+   *
+   * @return o resultado, ou null se ausente, expirado, se não houver arquivo ou se a leitura falhar.
+   */
+  private GeocodingCacheFile.CachedValue lookupFile(final String key)
+  {
+    if (m_cacheFile == null)
+    {
+      return null;
+    }
+
+    try
+    {
+      return m_cacheFile.get(key);
+    }
+    catch (RuntimeException ex)
+    {
+      Log.w(TAG, "Geocoding cache file could not be read.", ex);
+      return null;
+    }
+  }
+
+  /**
+   * Guardar o resultado especificado no arquivo, caso exista.
+   *
+   * @param key
+   * @param value
+   * @param expiresAt
+   */
+  private void storeFile(final String key, final Object value, final long expiresAt)
+  {
+    if (m_cacheFile == null)
+    {
+      return;
+    }
+
+    try
+    {
+      m_cacheFile.put(key, value, expiresAt);
+    }
+    catch (RuntimeException ex)
+    {
+      Log.w(TAG, "Geocoding cache file could not be written.", ex);
+    }
+  }
+
+  /**
+   * Obter o arquivo do contexto especificado.
+   *
+   * @param context
+   * @param maxFileSizeInBytes
+   *
+   * @return o arquivo.
+   *
+   * @throws IllegalArgumentException se o tamanho máximo for inválido.
+   */
+  private static GeocodingCacheFile openCacheFile(final Context context, final long maxFileSizeInBytes)
+  {
+    if (maxFileSizeInBytes <= 0)
+    {
+      throw new IllegalArgumentException("Invalid CachingGeocodingProvider parameters.");
+    }
+
+    return GeocodingCacheFile.getInstance(context, maxFileSizeInBytes);
+  }
+
+  /**
+   * Manter o resultado especificado com a key especificada, descartando os resultados usados há mais tempo enquanto a capacidade ou o tamanho máximo forem excedidos.
+   *
+   * @param key
+   * @param value
+   * @param expiresAt
+   */
+  private synchronized void store(final String key, final Object value, final long expiresAt)
+  {
+    final CachedResult entry = new CachedResult(value, expiresAt, estimateSize(key, value));
+    final CachedResult previous = m_entries.put(key, entry);
+
+    m_sizeInBytes += entry.sizeInBytes - (previous != null ? previous.sizeInBytes : 0);
+
+    final Iterator<CachedResult> eldest = m_entries.values().iterator();
+
+    while ((m_entries.size() > m_capacity || m_sizeInBytes > m_maxSizeInBytes) && eldest.hasNext())
+    {
+      final CachedResult evicted = eldest.next();
+
+      eldest.remove();
+      m_sizeInBytes -= evicted.sizeInBytes;
+      m_evictionCount++;
+    }
+  }
+
+  /**
+   * Estimar o tamanho em memória de um resultado mantido.
+   *
+   * @param key
+   * @param value String ou Pair de Location e String.
+   *
+   * @return o tamanho em bytes.
+   */
+  private static long estimateSize(final String key, final Object value)
+  {
+    final boolean isPair = value instanceof Pair;
+    final Object address = isPair ? ((Pair<?, ?>) value).second : value;
+    long size = ENTRY_OVERHEAD_IN_BYTES + STRING_OVERHEAD_IN_BYTES + 2L * key.length() + (isPair ? LOCATION_SIZE_IN_BYTES : 0);
+
+    if (address instanceof String)
+    {
+      size += STRING_OVERHEAD_IN_BYTES + 2L * ((String) address).length();
+    }
+
+    return size;
+  }
+
+  /**
+   * Copiar um resultado de geocoding, de forma que modificações na Location retornada não alterem o resultado mantido.
+   *
+   * @param details
+   *
+   * @return a cópia.
+   */
+  private static Pair<Location, String> copy(final Pair<Location, String> details)
+  {
+    return new Pair<>(details.first != null ? new Location(details.first) : null, details.second);
+  }
+
+  /**
+   * Classe que representa um resultado mantido, o instante em que expira e o seu tamanho estimado.
+   */
+  private static final class CachedResult
+  {
+    CachedResult(final Object value, final long expiresAt, final long sizeInBytes)
+    {
+      this.value = value;
+      this.expiresAt = expiresAt;
+      this.sizeInBytes = sizeInBytes;
+    }
+
+    final Object value;
+    final long expiresAt;
+    final long sizeInBytes;
+  }
+
+  /**
+   * Precisão padrão, que corresponde a células de aproximadamente 150m x 150m.
+   */
+  public static final int DEFAULT_PRECISION = 7;
+
+  /**
+   * Precisão máxima dos endereços de referência, que corresponde a células de aproximadamente 4,9km x 4,9km.
+   */
+  public static final int REFERENCE_PRECISION = 5;
+
+  /**
+   * Precisão máxima.
+   */
+  public static final int MAX_PRECISION = 12;
+
+  /**
+   * Capacidade padrão.
+   */
+  public static final int DEFAULT_CAPACITY = 256;
+
+  /**
+   * Tamanho máximo padrão, de 256KB.
+   */
+  public static final long DEFAULT_MAX_SIZE_IN_BYTES = 256 * 1024;
+
+  /**
+   * Tamanho máximo padrão do arquivo, de 1MB.
+   */
+  public static final long DEFAULT_MAX_FILE_SIZE_IN_BYTES = 1024 * 1024;
+
+  /**
+   * TTL padrão, de 24h.
+   */
+  public static final long DEFAULT_TTL_IN_MS = 24 * 60 * 60 * 1000L;
+
+  private static final String TAG = "CachingGeocodingProvider";
+  private static final String BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz";
+  private static final String DETAILS_PREFIX = "d:";
+  private static final String REFERENCE_PREFIX = "r:";
+  private static final String ADDRESS_PREFIX = "a:";
+  private static final char KEY_SEPARATOR = '\u0000';
+  private static final Pattern COMBINING_MARKS = Pattern.compile("\\p{M}+");
+  private static final Pattern WHITESPACES = Pattern.compile("\\s+");
+  private static final long ENTRY_OVERHEAD_IN_BYTES = 64;
+  private static final long STRING_OVERHEAD_IN_BYTES = 40;
+  private static final long LOCATION_SIZE_IN_BYTES = 256;
+  private final GeocodingProvider m_provider;
+  private final GeocodingCacheFile m_cacheFile;
+  private final int m_precision;
+  private final int m_capacity;
+  private final long m_maxSizeInBytes;
+  private final long m_ttlInMs;
+  private final LinkedHashMap<String, CachedResult> m_entries;
+  private long m_sizeInBytes;
+  private long m_hitCount;
+  private long m_fileHitCount;
+  private long m_missCount;
+  private long m_evictionCount;
+}
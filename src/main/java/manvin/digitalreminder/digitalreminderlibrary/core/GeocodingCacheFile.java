@@ -0,0 +1,549 @@
+package manvin.digitalreminder.digitalreminderlibrary.core;
+
+import android.content.Context;
+import android.location.Location;
+import android.util.Pair;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Classe que representa os resultados de CachingGeocodingProvider guardados no armazenamento interno do dispositivo, ao lado do arquivo de ReminderLocalStorage.
+ *
+ * O arquivo é um log: cada resultado é um registro anexado ao final, com o seu instante de expiração e um CRC32. Na primeira consulta, o log é lido para um mapa em memória; consultas seguintes leem apenas os registros anexados desde então, por exemplo, por outro processo. A leitura termina no primeiro registro incompleto ou corrompido.
+ *
+ * Quando o log excede o tamanho máximo, ele é reescrito apenas com os resultados não expirados que expiram por último, até a metade do tamanho máximo. Cada reescrita usa um arquivo temporário próprio, de forma que compactações simultâneas de processos diferentes não escrevam no mesmo arquivo.
+ *
+ * A Location de um resultado de forward geocoding é guardada com a latitude, a longitude, a precisão (se houver), o instante e o provedor. Os demais campos da Location, como altitude e extras, não são guardados.
+ *
+ * Como os resultados podem ser obtidos novamente do provedor, nenhum lock entre processos é usado: cada registro é anexado com uma única escrita, e um registro anexado por outro processo durante uma compactação pode ser perdido.
+ *
+ * É thread-safe. Todas as instâncias do processo que usam o mesmo arquivo compartilham o mesmo mapa.
+ */
+final class GeocodingCacheFile {
+
+  /**
+   * Obter o GeocodingCacheFile do contexto especificado.
+   *
+   * @param context
+   * @param maxSizeInBytes tamanho máximo do arquivo. Se o arquivo já estiver aberto no processo, o maior tamanho máximo é usado.
+   *
+   * @return a instância compartilhada pelo processo.
+   */
+  static GeocodingCacheFile getInstance(final Context context, final long maxSizeInBytes)
+  {
+    final File file = new File(context.getDataDir(), FILE_NAME);
+
+    synchronized (INSTANCES)
+    {
+      GeocodingCacheFile instance = INSTANCES.get(file.getAbsolutePath());
+
+      if (instance == null)
+      {
+        instance = new GeocodingCacheFile(file);
+        INSTANCES.put(file.getAbsolutePath(), instance);
+      }
+
+      instance.m_maxSizeInBytes = Math.max(instance.m_maxSizeInBytes, maxSizeInBytes);
+
+      return instance;
+    }
+  }
+
+  private GeocodingCacheFile(final File file)
+  {
+    m_file = file;
+  }
+
+  /**
+   * Obter o resultado guardado com a key especificada.
+   *
+   * @param key
+   *
+   * @return o resultado, cujo valor é uma String ou um Pair de Location e String, ou null se ausente ou expirado.
+   *
+   * @throws RuntimeException
+   */
+  synchronized CachedValue get(final String key)
+  {
+    refresh();
+
+    final CachedValue value = m_entries.get(key);
+
+    if (value == null || value.expiresAt <= System.currentTimeMillis())
+    {
+      return null;
+    }
+
+    return value;
+  }
+
+  /**
+   * Guardar o resultado especificado com a key especificada.
+   *
+   * @param key
+   * @param value String ou Pair de Location e String.
+   * @param expiresAt instante, em milissegundos desde a época, em que o resultado expira.
+   *
+   * @throws RuntimeException
+   */
+  synchronized void put(final String key, final Object value, final long expiresAt)
+  {
+    refresh();
+
+    final CachedValue entry = new CachedValue(value, expiresAt);
+
+    m_entries.put(key, entry);
+
+    try
+    {
+      // Registros anexados após um registro corrompido não seriam lidos.
+      if (m_damaged)
+      {
+        compact();
+        return;
+      }
+
+      final byte[] record = encodeRecord(key, entry);
+
+      try(final FileOutputStream stream = new FileOutputStream(m_file, true))
+      {
+        stream.write(record);
+      }
+
+      if (m_file.length() == m_length + record.length)
+      {
+        m_length += record.length;
+        m_lastModified = m_file.lastModified();
+      }
+
+      if (m_length > m_maxSizeInBytes)
+      {
+        compact();
+      }
+    }
+    catch (IOException ex)
+    {
+      throw new RuntimeException(ex);
+    }
+  }
+
+  /**
+   * Apagar o arquivo e descartar todos os resultados.
+   */
+  synchronized void clear()
+  {
+    m_entries.clear();
+    m_file.delete();
+    m_loaded = false;
+  }
+
+  /**
+   * Classe que representa um resultado guardado e o instante em que expira.
+   */
+  static final class CachedValue
+  {
+    CachedValue(final Object value, final long expiresAt)
+    {
+      this.value = value;
+      this.expiresAt = expiresAt;
+    }
+
+    final Object value;
+    final long expiresAt;
+  }
+
+  /**
+   * Ler o log, caso ainda não tenha sido lido, ou os registros anexados desde a última leitura.
+   *
+   * Se o arquivo tiver sido reescrito por outro processo, ele é lido novamente por inteiro.
+   *
+   * @throws RuntimeException
+   */
+  private void refresh()
+  {
+    try
+    {
+      if (!m_file.exists())
+      {
+        writeLog(Collections.emptyMap(), System.currentTimeMillis());
+        return;
+      }
+
+      final long length = m_file.length();
+
+      if (m_loaded && length == m_length && m_file.lastModified() == m_lastModified)
+      {
+        return;
+      }
+
+      final boolean incremental = m_loaded && length > m_length && readGeneration() == m_generation;
+
+      if (!incremental)
+      {
+        m_entries.clear();
+      }
+
+      readLog(incremental);
+    }
+    catch (IOException ex)
+    {
+      throw new RuntimeException(ex);
+    }
+  }
+
+  /**
+   * Aplicar ao mapa em memória os registros do log.
+   *
+   * @param incremental se true, apenas os registros posteriores ao tamanho já lido são aplicados.
+   *
+   * @throws IOException
+   */
+  private void readLog(final boolean incremental) throws IOException
+  {
+    final long fileLength = m_file.length();
+    final long now = System.currentTimeMillis();
+    long validLength;
+
+    try(final FileInputStream file = new FileInputStream(m_file))
+    {
+      final DataInputStream stream;
+
+      if (incremental)
+      {
+        file.getChannel().position(m_length);
+        stream = new DataInputStream(new BufferedInputStream(file));
+        validLength = m_length;
+      }
+      else
+      {
+        stream = new DataInputStream(new BufferedInputStream(file));
+
+        try
+        {
+          if (stream.readInt() != MAGIC || stream.readByte() != VERSION)
+          {
+            throw new EOFException();
+          }
+
+          m_generation = stream.readLong();
+        }
+        catch (EOFException ex)
+        {
+          // Um arquivo desconhecido ou incompleto é substituído por um log vazio.
+          writeLog(Collections.emptyMap(), now);
+          return;
+        }
+
+        validLength = HEADER_LENGTH;
+      }
+
+      while (true)
+      {
+        final byte[] body;
+
+        try
+        {
+          final int bodyLength = stream.readInt();
+
+          if (bodyLength <= 0 || validLength + 4 + bodyLength + 4 > fileLength)
+          {
+            break;
+          }
+
+          body = new byte[bodyLength];
+          stream.readFully(body);
+
+          if (stream.readInt() != checksum(body))
+          {
+            break;
+          }
+        }
+        catch (EOFException ex)
+        {
+          break;
+        }
+
+        final DataInputStream record = new DataInputStream(new ByteArrayInputStream(body));
+        final String key = record.readUTF();
+        final CachedValue value = decodeValue(record);
+
+        if (value.expiresAt > now)
+        {
+          m_entries.put(key, value);
+        }
+        else
+        {
+          m_entries.remove(key);
+        }
+
+        validLength += 4 + body.length + 4;
+      }
+    }
+
+    m_damaged = validLength != fileLength;
+    m_loaded = true;
+    m_length = validLength;
+    m_lastModified = m_file.lastModified();
+  }
+
+  /**
+   * Reescrever o log apenas com os resultados não expirados que expiram por último, até a metade do tamanho máximo.
+   *
+   * @throws IOException
+   */
+  private void compact() throws IOException
+  {
+    final long now = System.currentTimeMillis();
+    final ArrayList<Map.Entry<String, CachedValue>> live = new ArrayList<>();
+
+    for (Map.Entry<String, CachedValue> entry : m_entries.entrySet())
+    {
+      if (entry.getValue().expiresAt > now)
+      {
+        live.add(entry);
+      }
+    }
+
+    live.sort((first, second) -> Long.compare(second.getValue().expiresAt, first.getValue().expiresAt));
+
+    final HashMap<String, CachedValue> kept = new HashMap<>();
+    long length = HEADER_LENGTH;
+
+    for (Map.Entry<String, CachedValue> entry : live)
+    {
+      length += encodeRecord(entry.getKey(), entry.getValue()).length;
+
+      if (length > m_maxSizeInBytes / 2)
+      {
+        break;
+      }
+
+      kept.put(entry.getKey(), entry.getValue());
+    }
+
+    writeLog(kept, Math.max(now, m_generation + 1));
+  }
+
+  /**
+   * Escrever um novo log contendo apenas os resultados especificados.
+   *
+   * O novo log é escrito em um arquivo temporário próprio, criado no mesmo diretório, que então substitui o atual.
+   *
+   * @param entries
+   * @param generation
+   *
+   * @throws IOException
+   */
+  private void writeLog(final Map<String, CachedValue> entries, final long generation) throws IOException
+  {
+    final File temporary = File.createTempFile(FILE_NAME, TEMPORARY_SUFFIX, m_file.getParentFile());
+    long length = HEADER_LENGTH;
+
+    try
+    {
+      try(final DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary, false))))
+      {
+        stream.writeInt(MAGIC);
+        stream.writeByte(VERSION);
+        stream.writeLong(generation);
+
+        for (Map.Entry<String, CachedValue> entry : entries.entrySet())
+        {
+          final byte[] record = encodeRecord(entry.getKey(), entry.getValue());
+
+          stream.write(record);
+          length += record.length;
+        }
+      }
+
+      if (!temporary.renameTo(m_file))
+      {
+        throw new IOException("Unable to replace the geocoding cache file.");
+      }
+    }
+    catch (IOException ex)
+    {
+      temporary.delete();
+      throw ex;
+    }
+
+    final HashMap<String, CachedValue> kept = new HashMap<>(entries);
+
+    m_entries.clear();
+    m_entries.putAll(kept);
+    m_generation = generation;
+    m_damaged = false;
+    m_loaded = true;
+    m_length = length;
+    m_lastModified = m_file.lastModified();
+  }
+
+  /**
+   * Ler a geração registrada no cabeçalho do log.
+   *
+   * @return a geração, ou -1 se o cabeçalho estiver incompleto.
+   *
+   * @throws IOException
+   */
+  private long readGeneration() throws IOException
+  {
+    try(final DataInputStream stream = new DataInputStream(new FileInputStream(m_file)))
+    {
+      stream.readInt();
+      stream.readByte();
+      return stream.readLong();
+    }
+    catch (EOFException ex)
+    {
+      return -1;
+    }
+  }
+
+  /**
+   * Codificar um registro do log: o tamanho do corpo, o corpo e o CRC32 do corpo.
+   *
+   * @param key
+   * @param value
+   *
+   * @return o registro.
+   *
+   * @throws IOException
+   */
+  private static byte[] encodeRecord(final String key, final CachedValue value) throws IOException
+  {
+    final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    final DataOutputStream stream = new DataOutputStream(body);
+
+    stream.writeUTF(key);
+    stream.writeLong(value.expiresAt);
+
+    if (value.value instanceof Pair)
+    {
+      final Pair<?, ?> details = (Pair<?, ?>) value.value;
+      final Location location = (Location) details.first;
+
+      stream.writeByte(KIND_ADDRESS);
+      stream.writeDouble(location != null ? location.getLatitude() : Double.NaN);
+      stream.writeDouble(location != null ? location.getLongitude() : Double.NaN);
+
+      if (location != null)
+      {
+        stream.writeFloat(location.hasAccuracy() ? location.getAccuracy() : NO_ACCURACY);
+        stream.writeLong(location.getTime());
+        stream.writeUTF(location.getProvider() != null ? location.getProvider() : LOCATION_PROVIDER);
+      }
+
+      stream.writeUTF((String) details.second);
+    }
+    else
+    {
+      stream.writeByte(KIND_DETAILS);
+      stream.writeUTF((String) value.value);
+    }
+
+    final byte[] bytes = body.toByteArray();
+    final ByteArrayOutputStream record = new ByteArrayOutputStream(4 + bytes.length + 4);
+    final DataOutputStream recordStream = new DataOutputStream(record);
+
+    recordStream.writeInt(bytes.length);
+    recordStream.write(bytes);
+    recordStream.writeInt(checksum(bytes));
+
+    return record.toByteArray();
+  }
+
+  /**
+   * Decodificar o resultado de um registro, após a key.
+   *
+   * @param stream
+   *
+   * @return o resultado.
+   *
+   * @throws IOException
+   */
+  private static CachedValue decodeValue(final DataInputStream stream) throws IOException
+  {
+    final long expiresAt = stream.readLong();
+
+    if (stream.readByte() != KIND_ADDRESS)
+    {
+      return new CachedValue(stream.readUTF(), expiresAt);
+    }
+
+    final double latitude = stream.readDouble();
+    final double longitude = stream.readDouble();
+    Location location = null;
+
+    if (!Double.isNaN(latitude))
+    {
+      final float accuracy = stream.readFloat();
+      final long time = stream.readLong();
+
+      location = new Location(stream.readUTF());
+      location.setLatitude(latitude);
+      location.setLongitude(longitude);
+      location.setTime(time);
+
+      if (accuracy >= 0)
+      {
+        location.setAccuracy(accuracy);
+      }
+    }
+
+    return new CachedValue(new Pair<>(location, stream.readUTF()), expiresAt);
+  }
+
+  /**
+   * Calcular o CRC32 do corpo de um registro.
+   *
+   * @param body
+   *
+   * @return o CRC32.
+   */
+  private static int checksum(final byte[] body)
+  {
+    final CRC32 crc = new CRC32();
+
+    crc.update(body);
+
+    return (int) crc.getValue();
+  }
+
+  /**
+   * Provedor das Location recriadas a partir do arquivo, quando a Location original não possui provedor.
+   */
+  static final String LOCATION_PROVIDER = "geocodingCache";
+
+  private static final String FILE_NAME = "geocodingCache";
+  private static final String TEMPORARY_SUFFIX = ".tmp";
+  private static final int MAGIC = 0x44524743;
+  private static final byte VERSION = 2;
+  private static final int HEADER_LENGTH = 4 + 1 + 8;
+  private static final byte KIND_DETAILS = 0;
+  private static final byte KIND_ADDRESS = 1;
+  private static final float NO_ACCURACY = -1;
+  private static final HashMap<String, GeocodingCacheFile> INSTANCES = new HashMap<>();
+  private final File m_file;
+  private final HashMap<String, CachedValue> m_entries = new HashMap<>();
+  private long m_maxSizeInBytes;
+  private boolean m_loaded;
+  private boolean m_damaged;
+  private long m_generation;
+  private long m_length;
+  private long m_lastModified;
+}
@@ -0,0 +1,176 @@
+package manvin.digitalreminder.digitalreminderlibrary.core;
+
+import android.location.Location;
+
+import com.google.android.gms.location.Geofence;
+
+import java.io.Serializable;
+import java.time.LocalTime;
+
+/**
+ * Classe que representa os parâmetros do geofence de um lembrete baseado na localização.
+ *
+ * O raio, a responsividade e o atraso de permanência (loitering) se aplicam a todos os geofences do lembrete. A antecedência e a janela de armação se aplicam apenas aos lembretes baseados na localização e no tempo: o geofence temporário é armado a antecedência especificada antes do horário do lembrete e expira após a janela.
+ *
+ * Com ADAPTIVE_RESPONSIVENESS, a responsividade é escolhida a partir da distância entre o dispositivo e a região no momento em que o geofence é armado: quanto mais longe, mais grossa, de forma que a pilha de localização possa agrupar as suas leituras.
+ */
+public class GeofenceParameters implements Serializable
+{
+  /**
+   * Construir os parâmetros do geofence de um lembrete.
+   *
+   * @param radiusInM raio da região.
+   * @param responsivenessInMs responsividade das notificações, 0 para o padrão da plataforma ou ADAPTIVE_RESPONSIVENESS.
+   * @param loiteringDelayInMs tempo de permanência na região antes da notificação, ou 0 para notificar na entrada.
+   * @param armingLeadInMs antecedência, menor que um dia, com que o geofence temporário é armado.
+   * @param armingWindowInMs duração do geofence temporário.
+   *
+   * @throws IllegalArgumentException se algum parâmetro for inválido.
+   */
+  public GeofenceParameters(final float radiusInM, final int responsivenessInMs, final int loiteringDelayInMs, final int armingLeadInMs, final int armingWindowInMs)
+  {
+    if (radiusInM <= 0 || (responsivenessInMs < 0 && responsivenessInMs != ADAPTIVE_RESPONSIVENESS) || loiteringDelayInMs < 0
+            || armingLeadInMs < 0 || armingLeadInMs >= MILLIS_PER_DAY || armingWindowInMs <= 0)
+    {
+      throw new IllegalArgumentException("Invalid GeofenceParameters.");
+    }
+
+    m_radiusInM = radiusInM;
+    m_responsivenessInMs = responsivenessInMs;
+    m_loiteringDelayInMs = loiteringDelayInMs;
+    m_armingLeadInMs = armingLeadInMs;
+    m_armingWindowInMs = armingWindowInMs;
+  }
+
+  /**
+   * Construir um geofence com estes parâmetros.
+   *
+   * @param id
+   * @param latitude
+   * @param longitude
+   * @param expirationDurationInMs
+   * @param deviceLocation localização conhecida do dispositivo, usada pela responsividade adaptativa, ou null.
+   *
+   * @return o geofence.
+   */
+  public Geofence buildGeofence(final String id, final double latitude, final double longitude, final long expirationDurationInMs, final Location deviceLocation)
+  {
+    final Geofence.Builder builder = new Geofence.Builder()
+            .setRequestId(id)
+            .setCircularRegion(latitude, longitude, m_radiusInM)
+            .setExpirationDuration(expirationDurationInMs);
+
+    final int responsiveness = resolveResponsiveness(latitude, longitude, deviceLocation);
+
+    if (responsiveness > 0)
+    {
+      builder.setNotificationResponsiveness(responsiveness);
+    }
+
+    if (m_loiteringDelayInMs > 0)
+    {
+      builder.setTransitionTypes(Geofence.GEOFENCE_TRANSITION_DWELL)
+              .setLoiteringDelay(m_loiteringDelayInMs);
+    }
+    else
+    {
+      builder.setTransitionTypes(Geofence.GEOFENCE_TRANSITION_ENTER);
+    }
+
+    return builder.build();
+  }
+
+  /**
+   * Obter a responsividade para uma região.
+   *
+   * @param latitude
+   * @param longitude
+   * @param deviceLocation localização conhecida do dispositivo, ou null.
+   *
+   * @return a responsividade em milissegundos, ou 0 para o padrão da plataforma.
+   */
+  public int resolveResponsiveness(final double latitude, final double longitude, final Location deviceLocation)
+  {
+    if (m_responsivenessInMs != ADAPTIVE_RESPONSIVENESS)
+    {
+      return m_responsivenessInMs;
+    }
+
+    if (deviceLocation == null)
+    {
+      return 0;
+    }
+
+    final float[] distance = new float[1];
+
+    Location.distanceBetween(deviceLocation.getLatitude(), deviceLocation.getLongitude(), latitude, longitude, distance);
+
+    // O dispositivo não alcança a borda da região antes do tempo de percorrer a distância restante em alta velocidade.
+    final double secondsToReach = Math.max(0, distance[0] - m_radiusInM) / ADAPTIVE_SPEED_IN_M_PER_S;
+
+    return (int) Math.min(MAX_ADAPTIVE_RESPONSIVENESS_IN_MS, secondsToReach * 1000);
+  }
+
+  /**
+   * Obter a distância, além do raio, a partir da qual o dispositivo não alcança a região durante a antecedência e a janela de armação.
+   *
+   * @return a distância em metros.
+   */
+  public float getFarMarginInM()
+  {
+    return (float) Math.max(MIN_FAR_MARGIN_IN_M, ADAPTIVE_SPEED_IN_M_PER_S * (m_armingLeadInMs + m_armingWindowInMs) / 1000.0);
+  }
+
+  /**
+   * Obter a máscara dos dias da semana em que o geofence temporário é armado, considerando a antecedência.
+   *
+   * Se a antecedência atravessar a meia-noite, o dia de armação é o anterior ao dia do lembrete.
+   *
+   * @param daysOfWeekMask
+   * @param time
+   *
+   * @return a máscara.
+   */
+  public int getArmingDaysOfWeekMask(final int daysOfWeekMask, final LocalTime time)
+  {
+    if (time.toSecondOfDay() * 1000L >= m_armingLeadInMs)
+    {
+      return daysOfWeekMask;
+    }
+
+    return ((daysOfWeekMask >>> 1) | (daysOfWeekMask << 6)) & ReminderManager.ALL_DAYS_OF_WEEK_MASK;
+  }
+
+  /**
+   * Obter o horário em que o geofence temporário é armado, considerando a antecedência.
+   *
+   * @param time
+   *
+   * @return o horário.
+   */
+  public LocalTime getArmingTime(final LocalTime time)
+  {
+    return time.minusNanos(m_armingLeadInMs * 1000_000L).withNano(0);
+  }
+
+  /**
+   * Responsividade que é escolhida a partir da distância entre o dispositivo e a região.
+   */
+  public static final int ADAPTIVE_RESPONSIVENESS = -1;
+
+  /**
+   * Parâmetros usados quando nenhum é especificado: raio de 1000m, responsividade padrão da plataforma, notificação na entrada e janela de 30s sem antecedência.
+   */
+  public static final GeofenceParameters DEFAULT = new GeofenceParameters(1000, 0, 0, 0, 30 * 1000);
+
+  private static final long serialVersionUID = 1L;
+  private static final int MILLIS_PER_DAY = 24 * 60 * 60 * 1000;
+  private static final double ADAPTIVE_SPEED_IN_M_PER_S = 30;
+  private static final int MAX_ADAPTIVE_RESPONSIVENESS_IN_MS = 5 * 60 * 1000;
+  private static final float MIN_FAR_MARGIN_IN_M = 1000;
+  public final float m_radiusInM;
+  public final int m_responsivenessInMs;
+  public final int m_loiteringDelayInMs;
+  public final int m_armingLeadInMs;
+  public final int m_armingWindowInMs;
+}
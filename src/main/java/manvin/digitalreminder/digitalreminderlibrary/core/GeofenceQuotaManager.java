@@ -0,0 +1,493 @@
+package manvin.digitalreminder.digitalreminderlibrary.core;
+
+import android.annotation.SuppressLint;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.location.Location;
+import android.util.Log;
+
+import com.google.android.gms.location.FusedLocationProviderClient;
+import com.google.android.gms.location.Geofence;
+import com.google.android.gms.location.GeofencingClient;
+import com.google.android.gms.location.GeofencingRequest;
+import com.google.android.gms.location.LocationRequest;
+import com.google.android.gms.location.LocationServices;
+import com.google.android.gms.location.Priority;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+
+import manvin.digitalreminder.digitalreminderlibrary.broadcasts.GeofenceQuotaBroadcast;
+
+/**
+ * Classe que gerencia a quota de geofences ativos da aplicação.
+ *
+ * O Google Play Services limita cada aplicação a 100 geofences ativos. Quando a quota está habilitada, todos os lembretes baseados na localização continuam armazenados, mas apenas os N mais próximos da última localização conhecida do dispositivo são armados. Quando o dispositivo se desloca a distância configurada, o conjunto armado é rebalanceado, adicionando e removendo apenas a diferença entre o conjunto atual e o novo.
+ *
+ * A configuração e o conjunto armado são persistidos, de forma que o rebalanceamento também funcione a partir de GeofenceQuotaBroadcast em um novo processo.
+ *
+ * O rebalanceamento lê ReminderLocalStorage e escreve o conjunto armado, por isso é executado em ReminderManager.IO_EXECUTOR, fora da thread que o invoca, e o conjunto armado é escrito com commit a partir dessa thread. As tasks retornadas são completadas quando o rebalanceamento termina.
+ */
+public class GeofenceQuotaManager {
+
+  /**
+   * Construir um GeofenceQuotaManager com o contexto especificado.
+   *
+   * @param context
+   */
+  public GeofenceQuotaManager(final Context context)
+  {
+    m_context = context;
+    m_preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+  }
+
+  /**
+   * Habilitar a quota, armando apenas os maxArmed lembretes mais próximos.
+   *
+   * Requisita atualizações de localização com a distância mínima especificada e rebalanceia o conjunto armado imediatamente.
+   *
+   * Note que lembretes baseados na localização e no tempo armam geofences temporários, que também consomem o limite da plataforma. Por isso, maxArmed deve deixar alguma folga.
+   *
+   * @param maxArmed quantidade máxima de geofences armados pela quota.
+   * @param rebalanceDistanceInM deslocamento, em metros, a partir do qual o conjunto armado é rebalanceado.
+   *
+   * @return uma task que é completada quando o rebalanceamento inicial terminar.
+   *
+   * @throws IllegalArgumentException
+   */
+  @SuppressLint("MissingPermission")
+  public Task<Void> enable(final int maxArmed, final float rebalanceDistanceInM)
+  {
+    if (maxArmed <= 0 || maxArmed > ReminderManager.MAX_GEOFENCES_PER_REQUEST)
+    {
+      throw new IllegalArgumentException("maxArmed must be in (0, " + ReminderManager.MAX_GEOFENCES_PER_REQUEST + "].");
+    }
+
+    m_preferences.edit()
+            .putBoolean(KEY_ENABLED, true)
+            .putInt(KEY_MAX_ARMED, maxArmed)
+            .putFloat(KEY_REBALANCE_DISTANCE, rebalanceDistanceInM)
+            .apply();
+
+    requestLocationUpdates(rebalanceDistanceInM);
+
+    return rebalance();
+  }
+
+  /**
+   * Desabilitar a quota.
+   *
+   * As atualizações de localização são canceladas e os lembretes baseados na localização ativos no dia atual são armados novamente, até o limite de MAX_GEOFENCES_PER_REQUEST geofences da plataforma. Se houver mais lembretes que o limite, são armados os mais próximos da última localização conhecida do dispositivo, ou, se ela não for conhecida, os já armados e os demais em ordem de id. Os ids dos lembretes que não são armados são registrados no log.
+   *
+   * @return uma task que é completada quando os geofences forem armados.
+   */
+  @SuppressLint("MissingPermission")
+  public Task<Void> disable()
+  {
+    m_preferences.edit()
+            .putBoolean(KEY_ENABLED, false)
+            .apply();
+
+    final FusedLocationProviderClient client = LocationServices.getFusedLocationProviderClient(m_context);
+
+    client.removeLocationUpdates(getLocationUpdateOperation());
+
+    return client.getLastLocation().continueWithTask(ReminderManager.IO_EXECUTOR, task -> disableNow(task.isSuccessful() ? task.getResult() : null));
+  }
+
+  /**
+   * Armar novamente os lembretes baseados na localização ativos no dia atual na thread atual, até o limite da plataforma, após a quota ser desabilitada.
+   *
+   * Deve ser invocado em ReminderManager.IO_EXECUTOR.
+   *
+   * @param location última localização conhecida do dispositivo, ou null.
+   *
+   * @return uma task que é completada quando a diferença for aplicada.
+   */
+  private Task<Void> disableNow(final Location location)
+  {
+    final Map<String, LocationReminderDetails> candidates = getCandidates();
+    final Set<String> target = selectNearest(candidates, location, ReminderManager.MAX_GEOFENCES_PER_REQUEST);
+
+    if (target.size() < candidates.size())
+    {
+      final TreeSet<String> dropped = new TreeSet<>(candidates.keySet());
+
+      dropped.removeAll(target);
+      Log.w(TAG, "Geofence limit reached, " + dropped.size() + " location reminder(s) not armed: " + dropped);
+    }
+
+    return applyDiff(candidates, target, location);
+  }
+
+  /**
+   * Verificar se a quota está habilitada.
+   *
+   * @return true se habilitada.
+   */
+  public boolean isEnabled()
+  {
+    return m_preferences.getBoolean(KEY_ENABLED, false);
+  }
+
+  /**
+   * Obter os ids dos lembretes atualmente armados pela quota.
+   *
+   * @return uma cópia do conjunto de ids.
+   */
+  public Set<String> getArmedIds()
+  {
+    return new HashSet<>(m_preferences.getStringSet(KEY_ARMED_IDS, Collections.<String>emptySet()));
+  }
+
+  /**
+   * Rebalancear o conjunto armado a partir da última localização conhecida do dispositivo.
+   *
+   * @return uma task que é completada quando a diferença for aplicada.
+   */
+  @SuppressLint("MissingPermission")
+  public Task<Void> rebalance()
+  {
+    final FusedLocationProviderClient client = LocationServices.getFusedLocationProviderClient(m_context);
+
+    return client.getLastLocation().continueWithTask(ReminderManager.IO_EXECUTOR, task -> rebalanceNow(task.isSuccessful() ? task.getResult() : null));
+  }
+
+  /**
+   * Rebalancear o conjunto armado a partir da localização especificada.
+   *
+   * Se a localização for null, os lembretes já armados são mantidos e as vagas restantes são preenchidas em ordem de id.
+   *
+   * @param location
+   *
+   * @return uma task que é completada quando a diferença for aplicada.
+   */
+  public Task<Void> rebalance(final Location location)
+  {
+    return runOnIoExecutor(() -> rebalanceNow(location));
+  }
+
+  /**
+   * Rebalancear o conjunto armado a partir da localização especificada na thread atual.
+   *
+   * Deve ser invocado em ReminderManager.IO_EXECUTOR.
+   *
+   * @param location
+   *
+   * @return uma task que é completada quando a diferença for aplicada.
+   */
+  private Task<Void> rebalanceNow(final Location location)
+  {
+    if (!isEnabled())
+    {
+      return Tasks.forResult(null);
+    }
+
+    final Map<String, LocationReminderDetails> candidates = getCandidates();
+    final Set<String> target = selectNearest(candidates, location, m_preferences.getInt(KEY_MAX_ARMED, ReminderManager.MAX_GEOFENCES_PER_REQUEST));
+
+    if (location != null)
+    {
+      m_preferences.edit()
+              .putLong(KEY_ANCHOR_LATITUDE, Double.doubleToRawLongBits(location.getLatitude()))
+              .putLong(KEY_ANCHOR_LONGITUDE, Double.doubleToRawLongBits(location.getLongitude()))
+              .putBoolean(KEY_HAS_ANCHOR, true)
+              .commit();
+    }
+
+    return applyDiff(candidates, target, location);
+  }
+
+  /**
+   * Rebalancear o conjunto armado caso a localização especificada esteja a pelo menos a distância configurada da localização usada no último rebalanceamento.
+   *
+   * É usado por GeofenceQuotaBroadcast.
+   *
+   * @param location
+   *
+   * @return uma task que é completada quando a diferença for aplicada, ou imediatamente se não for necessário rebalancear.
+   */
+  public Task<Void> onLocationChanged(final Location location)
+  {
+    if (!isEnabled() || location == null)
+    {
+      return Tasks.forResult(null);
+    }
+
+    if (m_preferences.getBoolean(KEY_HAS_ANCHOR, false))
+    {
+      final float[] distance = new float[1];
+
+      Location.distanceBetween(
+              Double.longBitsToDouble(m_preferences.getLong(KEY_ANCHOR_LATITUDE, 0)),
+              Double.longBitsToDouble(m_preferences.getLong(KEY_ANCHOR_LONGITUDE, 0)),
+              location.getLatitude(), location.getLongitude(), distance);
+
+      if (distance[0] < m_preferences.getFloat(KEY_REBALANCE_DISTANCE, 0))
+      {
+        return Tasks.forResult(null);
+      }
+    }
+
+    return rebalance(location);
+  }
+
+  /**
+   * Preparar a quota para o rearme após a reinicialização do dispositivo ou a atualização da aplicação, que descartam todos os geofences e as atualizações de localização.
+   *
+   * O conjunto armado persistido é esquecido, de forma que o próximo rebalanceamento adicione todo o conjunto alvo, e as atualizações de localização são requisitadas novamente. É noop se a quota não estiver habilitada.
+   *
+   * É usado por ReminderRehydrator antes da virada do dia.
+   */
+  void prepareRehydration()
+  {
+    if (!isEnabled())
+    {
+      return;
+    }
+
+    m_preferences.edit()
+            .remove(KEY_ARMED_IDS)
+            .commit();
+
+    requestLocationUpdates(m_preferences.getFloat(KEY_REBALANCE_DISTANCE, 0));
+  }
+
+  /**
+   * Esquecer que o lembrete especificado está armado.
+   *
+   * Deve ser invocado quando o lembrete é desregistrado. O conjunto armado é escrito em ReminderManager.IO_EXECUTOR, antes de um rebalanceamento invocado em seguida.
+   *
+   * @param id
+   */
+  void forget(final String id)
+  {
+    ReminderManager.IO_EXECUTOR.execute(() ->
+    {
+      final Set<String> armed = getArmedIds();
+
+      if (armed.remove(id))
+      {
+        m_preferences.edit().putStringSet(KEY_ARMED_IDS, armed).commit();
+      }
+    });
+  }
+
+  /**
+   * Obter os lembretes armazenados que podem ser armados pela quota, ou seja, os baseados apenas na localização e ativos no dia atual (ver GeofenceRollover).
+   *
+   * @return mapa que associa o id aos detalhes de cada lembrete.
+   */
+  private Map<String, LocationReminderDetails> getCandidates()
+  {
+    try
+    {
+      final HashMap<String, LocationReminderDetails> candidates = ReminderLocalStorage.getInstance(m_context).deserialize();
+      final ReminderManager.DayOfWeek today = ReminderManager.getDayOfWeek();
+
+      candidates.values().removeIf(details -> details.m_type != LocationReminderDetails.Type.LOCATION || !details.isActiveOn(today));
+      return candidates;
+    }
+    catch (Exception ex)
+    {
+      throw new RuntimeException(ex);
+    }
+  }
+
+  /**
+   * Selecionar os ids dos maxArmed lembretes mais próximos da localização especificada.
+   *
+   * Se a localização for null, são selecionados os lembretes já armados e, nas vagas restantes, os demais em ordem de id.
+   *
+   * @param candidates
+   * @param location
+   * @param maxArmed
+   *
+   * @return os ids selecionados.
+   */
+  private Set<String> selectNearest(final Map<String, LocationReminderDetails> candidates, final Location location, final int maxArmed)
+  {
+    if (candidates.size() <= maxArmed)
+    {
+      return new HashSet<>(candidates.keySet());
+    }
+
+    if (location == null)
+    {
+      final HashSet<String> selected = new HashSet<>(getArmedIds());
+
+      selected.retainAll(candidates.keySet());
+
+      for (String id : new TreeSet<>(candidates.keySet()))
+      {
+        if (selected.size() >= maxArmed)
+        {
+          break;
+        }
+
+        selected.add(id);
+      }
+
+      return selected;
+    }
+
+    final PriorityQueue<Map.Entry<String, Float>> farthestFirst = new PriorityQueue<>(maxArmed + 1, (first, second) -> Float.compare(second.getValue(), first.getValue()));
+    final float[] distance = new float[1];
+
+    for (Map.Entry<String, LocationReminderDetails> candidate : candidates.entrySet())
+    {
+      final LocationReminderDetails details = candidate.getValue();
+
+      Location.distanceBetween(location.getLatitude(), location.getLongitude(), details.m_latitude, details.m_longitude, distance);
+
+      if (farthestFirst.size() < maxArmed)
+      {
+        farthestFirst.add(new HashMap.SimpleEntry<>(candidate.getKey(), distance[0]));
+      }
+      else if (distance[0] < farthestFirst.peek().getValue())
+      {
+        farthestFirst.poll();
+        farthestFirst.add(new HashMap.SimpleEntry<>(candidate.getKey(), distance[0]));
+      }
+    }
+
+    final HashSet<String> selected = new HashSet<>();
+
+    for (Map.Entry<String, Float> entry : farthestFirst)
+    {
+      selected.add(entry.getKey());
+    }
+
+    return selected;
+  }
+
+  /**
+   * Aplicar a diferença entre o conjunto armado atual e o conjunto alvo, com uma única remoção e o menor número de adições.
+   *
+   * Deve ser invocado em ReminderManager.IO_EXECUTOR.
+   *
+   * @param candidates
+   * @param target
+   * @param location localização do dispositivo, usada pela responsividade adaptativa dos geofences adicionados, ou null.
+   *
+   * @return uma task que é completada quando a remoção e as adições terminarem.
+   */
+  @SuppressLint("MissingPermission")
+  private Task<Void> applyDiff(final Map<String, LocationReminderDetails> candidates, final Set<String> target, final Location location)
+  {
+    final Set<String> armed = getArmedIds();
+    final ArrayList<String> toRemove = new ArrayList<>();
+    final ArrayList<Geofence> toAdd = new ArrayList<>();
+    final HashSet<String> toAddIds = new HashSet<>();
+
+    for (String id : armed)
+    {
+      if (!target.contains(id))
+      {
+        toRemove.add(id);
+      }
+    }
+
+    for (String id : target)
+    {
+      if (!armed.contains(id))
+      {
+        final LocationReminderDetails details = candidates.get(id);
+
+        toAdd.add(ReminderManager.buildLocationGeofence(id, details, location));
+        toAddIds.add(id);
+      }
+    }
+
+    m_preferences.edit().putStringSet(KEY_ARMED_IDS, new HashSet<>(target)).commit();
+
+    final GeofencingClient client = LocationServices.getGeofencingClient(m_context);
+    final ArrayList<Task<Void>> tasks = new ArrayList<>();
+
+    if (!toRemove.isEmpty())
+    {
+      tasks.add(client.removeGeofences(toRemove));
+    }
+
+    if (!toAdd.isEmpty())
+    {
+      final PendingIntent operation = ReminderManager.getLocationReminderOperation(m_context);
+
+      for (GeofencingRequest request : ReminderManager.buildLocationGeofencingRequests(toAdd))
+      {
+        tasks.add(client.addGeofences(request, operation)
+                .addOnFailureListener(ReminderManager.IO_EXECUTOR, exception ->
+                {
+                  final Set<String> current = getArmedIds();
+
+                  current.removeAll(toAddIds);
+                  m_preferences.edit().putStringSet(KEY_ARMED_IDS, current).commit();
+                }));
+      }
+    }
+
+    return Tasks.whenAll(tasks);
+  }
+
+  /**
+   * Executar a operação especificada em ReminderManager.IO_EXECUTOR.
+   *
+   * @param operation
+   *
+   * @return uma task que é completada quando a task retornada pela operação for completada.
+   */
+  private static Task<Void> runOnIoExecutor(final Callable<Task<Void>> operation)
+  {
+    return Tasks.<Void>forResult(null).continueWithTask(ReminderManager.IO_EXECUTOR, task -> operation.call());
+  }
+
+  /**
+   * Requisitar as atualizações de localização com a distância mínima especificada.
+   *
+   * @param rebalanceDistanceInM
+   */
+  @SuppressLint("MissingPermission")
+  private void requestLocationUpdates(final float rebalanceDistanceInM)
+  {
+    final LocationRequest request = new LocationRequest.Builder(Priority.PRIORITY_BALANCED_POWER_ACCURACY, LOCATION_UPDATE_INTERVAL_MS)
+            .setMinUpdateDistanceMeters(rebalanceDistanceInM)
+            .build();
+
+    LocationServices.getFusedLocationProviderClient(m_context).requestLocationUpdates(request, getLocationUpdateOperation());
+  }
+
+  /**
+   * Obter o PendingIntent usado para receber as atualizações de localização.
+   *
+   * @return o PendingIntent.
+   */
+  private PendingIntent getLocationUpdateOperation()
+  {
+    final Intent intent = new Intent(m_context, GeofenceQuotaBroadcast.class);
+    return PendingIntent.getBroadcast(m_context, ReminderManager.REQUEST_GEOFENCE_QUOTA_CODE, intent, ReminderManager.REQUEST_MUTABLE_CREATE_FLAGS);
+  }
+
+  private static final String TAG = "GeofenceQuotaManager";
+  private static final String PREFERENCES_NAME = "manvin.digitalreminder.GeofenceQuotaManager";
+  private static final String KEY_ENABLED = "enabled";
+  private static final String KEY_MAX_ARMED = "maxArmed";
+  private static final String KEY_REBALANCE_DISTANCE = "rebalanceDistance";
+  private static final String KEY_ARMED_IDS = "armedIds";
+  private static final String KEY_HAS_ANCHOR = "hasAnchor";
+  private static final String KEY_ANCHOR_LATITUDE = "anchorLatitude";
+  private static final String KEY_ANCHOR_LONGITUDE = "anchorLongitude";
+  private static final long LOCATION_UPDATE_INTERVAL_MS = 1000 * 60 * 15;
+  private final Context m_context;
+  private final SharedPreferences m_preferences;
+}
@@ -0,0 +1,163 @@
+package manvin.digitalreminder.digitalreminderlibrary.core;
+
+import android.annotation.SuppressLint;
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.location.Location;
+
+import com.google.android.gms.location.Geofence;
+import com.google.android.gms.location.GeofencingClient;
+import com.google.android.gms.location.GeofencingRequest;
+import com.google.android.gms.location.LocationServices;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import manvin.digitalreminder.digitalreminderlibrary.broadcasts.GeofenceRolloverBroadcast;
+
+/**
+ * Classe que mantém armados apenas os geofences dos lembretes baseados na localização ativos no dia atual.
+ *
+ * Um alarme à meia-noite local aciona a virada do dia: os geofences dos lembretes ativos no novo dia são adicionados e os dos demais lembretes são removidos, cada um com uma única requisição por lote. Assim, em dias em que um lembrete não está ativo, o seu geofence não acorda o dispositivo.
+ *
+ * Se GeofenceQuotaManager estiver habilitado, a virada apenas rebalanceia o conjunto armado, que considera somente os lembretes ativos no dia atual.
+ *
+ * O alarme é rearmado a cada virada enquanto houver lembretes baseados na localização armazenados.
+ */
+public class GeofenceRollover {
+
+  /**
+   * Construir um GeofenceRollover com o contexto especificado.
+   *
+   * @param context
+   */
+  public GeofenceRollover(final Context context)
+  {
+    m_context = context;
+  }
+
+  /**
+   * Aplicar a virada do dia atual e armar o alarme da próxima.
+   *
+   * É invocado por GeofenceRolloverBroadcast à meia-noite e quando o horário ou o fuso do dispositivo mudam. Deve ser invocado fora da thread principal, pois aguarda a última localização conhecida, usada pela responsividade adaptativa.
+   *
+   * @return uma task que é completada quando os geofences forem adicionados e removidos.
+   *
+   * @throws RuntimeException
+   */
+  @SuppressLint("MissingPermission")
+  public Task<Void> rollover()
+  {
+    final HashMap<String, LocationReminderDetails> states;
+
+    try
+    {
+      states = ReminderLocalStorage.getInstance(m_context).deserialize();
+    }
+    catch (Exception ex)
+    {
+      throw new RuntimeException(ex);
+    }
+
+    final ReminderManager.DayOfWeek today = ReminderManager.getDayOfWeek();
+    final Location location = ReminderManager.getRecentLocation(m_context, MAX_LOCATION_AGE_IN_MS);
+    final ArrayList<Geofence> armed = new ArrayList<>();
+    final ArrayList<String> disarmed = new ArrayList<>();
+
+    for (Map.Entry<String, LocationReminderDetails> entry : states.entrySet())
+    {
+      final LocationReminderDetails details = entry.getValue();
+
+      if (details.m_type != LocationReminderDetails.Type.LOCATION)
+      {
+        continue;
+      }
+
+      if (details.isActiveOn(today))
+      {
+        armed.add(ReminderManager.buildLocationGeofence(entry.getKey(), details, location));
+      }
+      else
+      {
+        disarmed.add(entry.getKey());
+      }
+    }
+
+    if (armed.isEmpty() && disarmed.isEmpty())
+    {
+      cancel();
+      return Tasks.forResult(null);
+    }
+
+    scheduleNext();
+
+    final GeofenceQuotaManager quotaManager = new GeofenceQuotaManager(m_context);
+
+    if (quotaManager.isEnabled())
+    {
+      return quotaManager.rebalance();
+    }
+
+    final GeofencingClient geofencingClient = LocationServices.getGeofencingClient(m_context);
+    final PendingIntent operation = ReminderManager.getLocationReminderOperation(m_context);
+    final ArrayList<Task<Void>> tasks = new ArrayList<>();
+
+    if (!disarmed.isEmpty())
+    {
+      tasks.add(geofencingClient.removeGeofences(disarmed));
+    }
+
+    for (GeofencingRequest request : ReminderManager.buildLocationGeofencingRequests(armed))
+    {
+      tasks.add(geofencingClient.addGeofences(request, operation));
+    }
+
+    return Tasks.whenAll(tasks);
+  }
+
+  /**
+   * Armar o alarme da próxima meia-noite local.
+   *
+   * Um alarme previamente armado é substituído.
+   */
+  @SuppressLint("MissingPermission")
+  public void scheduleNext()
+  {
+    final AlarmManager alarmManager = (AlarmManager) m_context.getSystemService(Context.ALARM_SERVICE);
+    final long midnight = ReminderRecurrence.nextOccurrence(ReminderManager.ALL_DAYS_OF_WEEK_MASK, 0, System.currentTimeMillis(), ZoneId.systemDefault());
+
+    alarmManager.setExactAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, midnight, getOperation());
+  }
+
+  /**
+   * Cancelar o alarme da virada, caso armado.
+   */
+  public void cancel()
+  {
+    final AlarmManager alarmManager = (AlarmManager) m_context.getSystemService(Context.ALARM_SERVICE);
+
+    alarmManager.cancel(getOperation());
+  }
+
+  private PendingIntent getOperation()
+  {
+    final Intent intent = new Intent(m_context, GeofenceRolloverBroadcast.class);
+
+    intent.setAction(ACTION_ROLLOVER);
+
+    return PendingIntent.getBroadcast(m_context, ReminderManager.REQUEST_GEOFENCE_ROLLOVER_CODE, intent, ReminderManager.REQUEST_IMMUTABLE_CREATE_FLAGS);
+  }
+
+  /**
+   * Action do Intent usado pelo alarme da virada.
+   */
+  public static final String ACTION_ROLLOVER = "manvin.digitalreminder.digitalreminderlibrary.action.GEOFENCE_ROLLOVER";
+  private static final long MAX_LOCATION_AGE_IN_MS = 15 * 60 * 1000;
+  private final Context m_context;
+}
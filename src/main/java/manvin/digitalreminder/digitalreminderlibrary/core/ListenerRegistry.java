@@ -0,0 +1,121 @@
+package manvin.digitalreminder.digitalreminderlibrary.core;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Classe que mantém as fábricas de listeners de lembretes registradas pela aplicação, indexadas pelo tipo do listener e por uma chave curta.
+ *
+ * Um listener que implementa Keyed não é serializado nos detalhes do lembrete: apenas a sua chave e o seu payload são guardados, e o listener é recriado pela fábrica registrada quando o lembrete é acionado. Assim, os registros não repetem os bytes do mesmo listener e a sua leitura não desserializa classes da aplicação.
+ *
+ * As fábricas devem ser registradas na inicialização do processo (por exemplo, em Application.onCreate), pois os Broadcasts podem ser executados em um processo recém-criado.
+ */
+public final class ListenerRegistry {
+
+  /**
+   * Interface que representa um listener que pode ser recriado por uma fábrica registrada.
+   */
+  public interface Keyed
+  {
+    /**
+     * Obter a chave sob a qual a fábrica do listener foi registrada.
+     *
+     * @return a chave.
+     */
+    String getListenerKey();
+
+    /**
+     * Obter o payload que a fábrica usa para recriar o listener.
+     *
+     * @return o payload, ou null.
+     */
+    byte[] getListenerPayload();
+  }
+
+  /**
+   * Interface que marca um listener sem estado, que pode ser recriado pelo construtor sem argumentos da sua classe.
+   *
+   * O listener de um lembrete baseado apenas no tempo que implementa Stateless é guardado apenas pelo nome da sua classe, em vez de um Parcel serializado. Se a classe não possuir um construtor sem argumentos, o listener é guardado como um Parcel serializado.
+   */
+  public interface Stateless
+  {
+  }
+
+  /**
+   * Interface que representa uma fábrica de listeners.
+   *
+   * @param <T> tipo do listener.
+   */
+  public interface Factory<T>
+  {
+    /**
+     * Recriar o listener.
+     *
+     * @param payload o payload guardado com o lembrete, ou null.
+     *
+     * @return o listener.
+     */
+    T create(final byte[] payload);
+  }
+
+  /**
+   * Registrar a fábrica dos listeners do tipo especificado com a chave especificada.
+   *
+   * Uma fábrica previamente registrada com o mesmo tipo e a mesma chave é substituída.
+   *
+   * @param listenerType ReminderManager.LocationReminderListener, ReminderManager.TimeLocationReminderListener ou ReminderManager.TimeReminderListener.
+   * @param key
+   * @param factory
+   * @param <T>
+   */
+  public static <T> void register(final Class<T> listenerType, final String key, final Factory<? extends T> factory)
+  {
+    FACTORIES.computeIfAbsent(listenerType, type -> new ConcurrentHashMap<>()).put(key, factory);
+  }
+
+  /**
+   * Remover a fábrica dos listeners do tipo especificado com a chave especificada, caso registrada.
+   *
+   * @param listenerType
+   * @param key
+   */
+  public static void unregister(final Class<?> listenerType, final String key)
+  {
+    final ConcurrentHashMap<String, Factory<?>> factories = FACTORIES.get(listenerType);
+
+    if (factories != null)
+    {
+      factories.remove(key);
+    }
+  }
+
+  /**
+   * Recriar um listener com a fábrica registrada.
+   *
+   * @param listenerType
+   * @param key
+   * @param payload
+   * @param <T>
+   *
+   * @return o listener.
+   *
+   * @throws IllegalStateException se nenhuma fábrica estiver registrada com o tipo e a chave especificados.
+   */
+  static <T> T create(final Class<T> listenerType, final String key, final byte[] payload)
+  {
+    final ConcurrentHashMap<String, Factory<?>> factories = FACTORIES.get(listenerType);
+    final Factory<?> factory = factories != null ? factories.get(key) : null;
+
+    if (factory == null)
+    {
+      throw new IllegalStateException("No listener factory registered for " + listenerType.getSimpleName() + " with key: " + key);
+    }
+
+    return listenerType.cast(factory.create(payload));
+  }
+
+  private ListenerRegistry()
+  {
+  }
+
+  private static final ConcurrentHashMap<Class<?>, ConcurrentHashMap<String, Factory<?>>> FACTORIES = new ConcurrentHashMap<>();
+}
@@ -1,15 +1,26 @@
 package manvin.digitalreminder.digitalreminderlibrary.core;
 
 import android.location.Location;
+import android.os.Parcel;
+import android.util.Log;
 
 import java.io.Serializable;
+import java.lang.reflect.Constructor;
 import java.time.LocalTime;
+import java.util.EnumSet;
 
 /**
- * Classe que representa os detalhes de um lembrete baseado na localização, possivelmente tanto na localização quanto no tempo.
+ * Classe que representa os detalhes de um lembrete baseado na localização, possivelmente tanto na localização quanto no tempo, ou de um lembrete baseado apenas no tempo.
  *
  * Detalhes para lembretes baseados apenas na localização não possuem (= null) os campos  para timeLocationListener e time.
  * Detalhes para lembretes baseados na localização e no tempo não possuem (= null) os campos para locationListener.
+ * Detalhes para lembretes baseados apenas no tempo não possuem (= null) os campos de localização e de listeners serializáveis. O seu listener, que é apenas Parcelable, é guardado como um Parcel serializado em m_timeListener e só é reconstruído quando o lembrete é acionado. Como os bytes de um Parcel não são estáveis entre versões da plataforma e da aplicação, um listener sem estado pode implementar ListenerRegistry.Stateless para ser guardado apenas pelo nome da sua classe em m_listenerClassName, e recriado pelo seu construtor sem argumentos.
+ *
+ * Um listener que implementa ListenerRegistry.Keyed não é guardado: apenas a sua chave e o seu payload são, e os campos de listener ficam null. Os listeners devem ser obtidos com getLocationListener, getTimeLocationListener e getTimeReminderListener, que recriam o listener pela fábrica registrada em ListenerRegistry.
+ *
+ * Um lembrete pode estar ativo em vários dias da semana, representados pela máscara m_daysOfWeek (ver ReminderManager.toDaysOfWeekMask). Nesse caso, m_dayOfWeek é o primeiro dia da máscara.
+ *
+ * Lembretes baseados no tempo guardam em m_schedulerMode como foram armados: com o seu próprio alarme ou em ReminderScheduler. Assim, a fila de ReminderScheduler pode ser reconstruída apenas com os lembretes que estavam nela.
  */
 public class LocationReminderDetails implements Serializable
 {
@@ -20,6 +31,7 @@ public class LocationReminderDetails implements Serializable
   {
     LOCATION,
     TIME_LOCATION,
+    TIME,
   }
 
   /**
@@ -36,12 +48,20 @@ public class LocationReminderDetails implements Serializable
   {
     m_type = Type.LOCATION;
     m_dayOfWeek = dayOfWeek;
+    m_daysOfWeek = ReminderManager.toDaysOfWeekMask(EnumSet.of(dayOfWeek));
     m_time = null;
     m_latitude = location.getLatitude();
     m_longitude = location.getLongitude();
     m_address = address;
-    m_locationListener = listener;
+    m_locationListener = listener instanceof ListenerRegistry.Keyed ? null : listener;
     m_timeLocationListener = null;
+    m_geofenceParameters = GeofenceParameters.DEFAULT;
+    m_toleranceInMs = 0;
+    m_timeListener = null;
+    m_listenerKey = keyOf(listener);
+    m_listenerPayload = payloadOf(listener);
+    m_listenerClassName = null;
+    m_schedulerMode = ReminderManager.SchedulerMode.PER_REMINDER;
   }
 
   /**
@@ -55,23 +75,376 @@ public class LocationReminderDetails implements Serializable
    * @param listener
    */
   public LocationReminderDetails(final ReminderManager.DayOfWeek dayOfWeek, final LocalTime time, final Location location, final String address, final ReminderManager.TimeLocationReminderListener listener)
+  {
+    this(EnumSet.of(dayOfWeek), time, location, address, listener);
+  }
+
+  /**
+   * Construir os detalhes de um lembrete baseado tanto na localização quanto no tempo, ativo nos dias da semana especificados.
+   *
+   * O tipo será Type.TIME_LOCATION implicitamente.
+   * @param daysOfWeek
+   * @param time
+   * @param location
+   * @param address
+   * @param listener
+   */
+  public LocationReminderDetails(final EnumSet<ReminderManager.DayOfWeek> daysOfWeek, final LocalTime time, final Location location, final String address, final ReminderManager.TimeLocationReminderListener listener)
   {
     m_type = Type.TIME_LOCATION;
-    m_dayOfWeek = dayOfWeek;
+    m_dayOfWeek = daysOfWeek.iterator().next();
+    m_daysOfWeek = ReminderManager.toDaysOfWeekMask(daysOfWeek);
     m_time = time;
     m_latitude = location.getLatitude();
     m_longitude = location.getLongitude();
     m_address = address;
     m_locationListener = null;
-    m_timeLocationListener = listener;
+    m_timeLocationListener = listener instanceof ListenerRegistry.Keyed ? null : listener;
+    m_geofenceParameters = GeofenceParameters.DEFAULT;
+    m_toleranceInMs = 0;
+    m_timeListener = null;
+    m_listenerKey = keyOf(listener);
+    m_listenerPayload = payloadOf(listener);
+    m_listenerClassName = null;
+    m_schedulerMode = ReminderManager.SchedulerMode.PER_REMINDER;
+  }
+
+  /**
+   * Construir os detalhes de um lembrete baseado apenas no tempo, ativo nos dias da semana especificados.
+   *
+   * O tipo será Type.TIME implicitamente.
+   *
+   * @param daysOfWeek
+   * @param time
+   * @param toleranceInMs ver ReminderManager.registerTimeReminder.
+   * @param listener
+   */
+  public LocationReminderDetails(final EnumSet<ReminderManager.DayOfWeek> daysOfWeek, final LocalTime time, final int toleranceInMs, final ReminderManager.TimeReminderListener listener)
+  {
+    m_type = Type.TIME;
+    m_dayOfWeek = daysOfWeek.iterator().next();
+    m_daysOfWeek = ReminderManager.toDaysOfWeekMask(daysOfWeek);
+    m_time = time;
+    m_latitude = null;
+    m_longitude = null;
+    m_address = null;
+    m_locationListener = null;
+    m_timeLocationListener = null;
+    m_geofenceParameters = GeofenceParameters.DEFAULT;
+    m_toleranceInMs = toleranceInMs;
+    m_listenerKey = keyOf(listener);
+    m_listenerPayload = payloadOf(listener);
+    m_listenerClassName = classNameOf(listener);
+    m_timeListener = listener instanceof ListenerRegistry.Keyed || m_listenerClassName != null ? null : marshall(listener);
+    m_schedulerMode = ReminderManager.SchedulerMode.PER_REMINDER;
+  }
+
+  /**
+   * Construir os detalhes de um lembrete a partir de todos os seus campos.
+   *
+   * É usado por LocationReminderDetailsCodec durante a decodificação.
+   *
+   * @param type
+   * @param dayOfWeek
+   * @param daysOfWeek
+   * @param time
+   * @param latitude
+   * @param longitude
+   * @param address
+   * @param locationListener
+   * @param timeLocationListener
+   * @param geofenceParameters
+   * @param toleranceInMs
+   * @param timeListener Parcel serializado do listener de um lembrete baseado apenas no tempo, ou null.
+   * @param listenerKey chave da fábrica do listener em ListenerRegistry, ou null.
+   * @param listenerPayload
+   * @param listenerClassName nome da classe do listener de um lembrete baseado apenas no tempo que implementa ListenerRegistry.Stateless, ou null.
+   * @param schedulerMode como o lembrete foi armado.
+   */
+  LocationReminderDetails(final Type type, final ReminderManager.DayOfWeek dayOfWeek, final int daysOfWeek, final LocalTime time, final Double latitude, final Double longitude, final String address, final ReminderManager.LocationReminderListener locationListener, final ReminderManager.TimeLocationReminderListener timeLocationListener, final GeofenceParameters geofenceParameters, final int toleranceInMs, final byte[] timeListener, final String listenerKey, final byte[] listenerPayload, final String listenerClassName, final ReminderManager.SchedulerMode schedulerMode)
+  {
+    m_type = type;
+    m_dayOfWeek = dayOfWeek;
+    m_daysOfWeek = daysOfWeek;
+    m_time = time;
+    m_latitude = latitude;
+    m_longitude = longitude;
+    m_address = address;
+    m_locationListener = locationListener;
+    m_timeLocationListener = timeLocationListener;
+    m_geofenceParameters = geofenceParameters;
+    m_toleranceInMs = toleranceInMs;
+    m_timeListener = timeListener;
+    m_listenerKey = listenerKey;
+    m_listenerPayload = listenerPayload;
+    m_listenerClassName = listenerClassName;
+    m_schedulerMode = schedulerMode;
+  }
+
+  /**
+   * Obter uma cópia destes detalhes com os parâmetros de geofence especificados.
+   *
+   * @param geofenceParameters
+   *
+   * @return a cópia.
+   */
+  public LocationReminderDetails withGeofenceParameters(final GeofenceParameters geofenceParameters)
+  {
+    return new LocationReminderDetails(m_type, m_dayOfWeek, m_daysOfWeek, m_time, m_latitude, m_longitude, m_address, m_locationListener, m_timeLocationListener, geofenceParameters, m_toleranceInMs, m_timeListener, m_listenerKey, m_listenerPayload, m_listenerClassName, m_schedulerMode);
+  }
+
+  /**
+   * Obter uma cópia destes detalhes com o modo de agendamento especificado.
+   *
+   * @param schedulerMode
+   *
+   * @return a cópia.
+   */
+  public LocationReminderDetails withSchedulerMode(final ReminderManager.SchedulerMode schedulerMode)
+  {
+    return new LocationReminderDetails(m_type, m_dayOfWeek, m_daysOfWeek, m_time, m_latitude, m_longitude, m_address, m_locationListener, m_timeLocationListener, m_geofenceParameters, m_toleranceInMs, m_timeListener, m_listenerKey, m_listenerPayload, m_listenerClassName, schedulerMode);
+  }
+
+  /**
+   * Obter os parâmetros do geofence do lembrete.
+   *
+   * Detalhes serializados antes da existência de m_geofenceParameters usam GeofenceParameters.DEFAULT.
+   *
+   * @return os parâmetros.
+   */
+  public GeofenceParameters getGeofenceParameters()
+  {
+    return m_geofenceParameters != null ? m_geofenceParameters : GeofenceParameters.DEFAULT;
+  }
+
+  /**
+   * Obter como o lembrete foi armado.
+   *
+   * Detalhes gravados antes da existência de m_schedulerMode usam SchedulerMode.PER_REMINDER.
+   *
+   * @return o modo de agendamento.
+   */
+  public ReminderManager.SchedulerMode getSchedulerMode()
+  {
+    return m_schedulerMode != null ? m_schedulerMode : ReminderManager.SchedulerMode.PER_REMINDER;
+  }
+
+  /**
+   * Obter o listener de um lembrete baseado apenas na localização.
+   *
+   * @return o listener, ou null se o lembrete não for baseado apenas na localização.
+   *
+   * @throws IllegalStateException se o listener for recriado por uma fábrica que não está registrada.
+   */
+  public ReminderManager.LocationReminderListener getLocationListener()
+  {
+    if (m_type != Type.LOCATION || m_listenerKey == null)
+    {
+      return m_locationListener;
+    }
+
+    return ListenerRegistry.create(ReminderManager.LocationReminderListener.class, m_listenerKey, m_listenerPayload);
+  }
+
+  /**
+   * Obter o listener de um lembrete baseado na localização e no tempo.
+   *
+   * @return o listener, ou null se o lembrete não for baseado na localização e no tempo.
+   *
+   * @throws IllegalStateException se o listener for recriado por uma fábrica que não está registrada.
+   */
+  public ReminderManager.TimeLocationReminderListener getTimeLocationListener()
+  {
+    if (m_type != Type.TIME_LOCATION || m_listenerKey == null)
+    {
+      return m_timeLocationListener;
+    }
+
+    return ListenerRegistry.create(ReminderManager.TimeLocationReminderListener.class, m_listenerKey, m_listenerPayload);
+  }
+
+  /**
+   * Reconstruir o listener de um lembrete baseado apenas no tempo.
+   *
+   * @param classLoader usado para carregar a classe do listener.
+   *
+   * @return o listener, ou null se o lembrete não for baseado apenas no tempo.
+   *
+   * @throws IllegalStateException se o listener for recriado por uma fábrica que não está registrada, ou se a sua classe não puder ser instanciada.
+   */
+  public ReminderManager.TimeReminderListener getTimeReminderListener(final ClassLoader classLoader)
+  {
+    if (m_type == Type.TIME && m_listenerKey != null)
+    {
+      return ListenerRegistry.create(ReminderManager.TimeReminderListener.class, m_listenerKey, m_listenerPayload);
+    }
+
+    if (m_type == Type.TIME && m_listenerClassName != null)
+    {
+      try
+      {
+        final Constructor<? extends ReminderManager.TimeReminderListener> constructor = Class.forName(m_listenerClassName, true, classLoader).asSubclass(ReminderManager.TimeReminderListener.class).getDeclaredConstructor();
+
+        constructor.setAccessible(true);
+        return constructor.newInstance();
+      }
+      catch (ReflectiveOperationException | ClassCastException ex)
+      {
+        throw new IllegalStateException("Could not recreate the TimeReminderListener: " + m_listenerClassName, ex);
+      }
+    }
+
+    return m_timeListener == null ? null : unmarshall(m_timeListener, classLoader);
+  }
+
+  /**
+   * Obter a máscara dos dias da semana em que o lembrete está ativo.
+   *
+   * Detalhes serializados antes da existência de m_daysOfWeek são considerados ativos apenas em m_dayOfWeek.
+   *
+   * @return a máscara.
+   */
+  public int getDaysOfWeekMask()
+  {
+    return m_daysOfWeek != 0 ? m_daysOfWeek : ReminderManager.toDaysOfWeekMask(EnumSet.of(m_dayOfWeek));
+  }
+
+  /**
+   * Verificar se o lembrete está ativo no dia da semana especificado.
+   *
+   * @param dayOfWeek
+   *
+   * @return true se ativo.
+   */
+  public boolean isActiveOn(final ReminderManager.DayOfWeek dayOfWeek)
+  {
+    return (getDaysOfWeekMask() & ReminderManager.toDaysOfWeekMask(EnumSet.of(dayOfWeek))) != 0;
+  }
+
+  /**
+   * Obter a chave de um listener que implementa ListenerRegistry.Keyed.
+   *
+   * @param listener
+   *
+   * @return a chave, ou null.
+   */
+  private static String keyOf(final Object listener)
+  {
+    return listener instanceof ListenerRegistry.Keyed ? ((ListenerRegistry.Keyed) listener).getListenerKey() : null;
   }
 
+  /**
+   * Obter o payload de um listener que implementa ListenerRegistry.Keyed.
+   *
+   * @param listener
+   *
+   * @return o payload, ou null.
+   */
+  private static byte[] payloadOf(final Object listener)
+  {
+    return listener instanceof ListenerRegistry.Keyed ? ((ListenerRegistry.Keyed) listener).getListenerPayload() : null;
+  }
+
+  /**
+   * Obter o nome da classe de um listener que implementa ListenerRegistry.Stateless e não implementa ListenerRegistry.Keyed.
+   *
+   * Um listener Stateless cuja classe não possui um construtor sem argumentos é guardado como um Parcel serializado.
+   *
+   * @param listener
+   *
+   * @return o nome da classe, ou null se o listener não deve ser guardado pelo nome da sua classe.
+   */
+  private static String classNameOf(final ReminderManager.TimeReminderListener listener)
+  {
+    if (!(listener instanceof ListenerRegistry.Stateless) || listener instanceof ListenerRegistry.Keyed)
+    {
+      return null;
+    }
+
+    try
+    {
+      listener.getClass().getDeclaredConstructor();
+    }
+    catch (NoSuchMethodException ex)
+    {
+      Log.w(TAG, "Stateless listener without a no-argument constructor, storing it as a Parcel: " + listener.getClass().getName());
+      return null;
+    }
+
+    return listener.getClass().getName();
+  }
+
+  /**
+   * Serializar o listener como um Parcel.
+   *
+   * @param listener
+   *
+   * @return os bytes do Parcel, ou null se o listener for null.
+   */
+  private static byte[] marshall(final ReminderManager.TimeReminderListener listener)
+  {
+    if (listener == null)
+    {
+      return null;
+    }
+
+    final Parcel parcel = Parcel.obtain();
+
+    try
+    {
+      parcel.writeParcelable(listener, 0);
+      return parcel.marshall();
+    }
+    finally
+    {
+      parcel.recycle();
+    }
+  }
+
+  /**
+   * Reconstruir um listener a partir dos bytes de um Parcel.
+   *
+   * @param bytes
+   * @param classLoader
+   *
+   * @return o listener.
+   */
+  static ReminderManager.TimeReminderListener unmarshall(final byte[] bytes, final ClassLoader classLoader)
+  {
+    final Parcel parcel = Parcel.obtain();
+
+    try
+    {
+      parcel.unmarshall(bytes, 0, bytes.length);
+      parcel.setDataPosition(0);
+      return parcel.readParcelable(classLoader);
+    }
+    finally
+    {
+      parcel.recycle();
+    }
+  }
+
+  /**
+   * Valor calculado para a versão original desta classe, mantido para que os armazenamentos gravados com serialização padrão continuem legíveis.
+   */
+  private static final long serialVersionUID = 2777066848479064152L;
+  private static final String TAG = "LocationReminderDetails";
+
   public final Type m_type;
   public final ReminderManager.DayOfWeek m_dayOfWeek;
+  public final int m_daysOfWeek;
   public final LocalTime m_time;
   public final Double m_latitude;
   public final Double m_longitude;
   public final String m_address;
   public final ReminderManager.LocationReminderListener m_locationListener;
   public final ReminderManager.TimeLocationReminderListener m_timeLocationListener;
+  public final GeofenceParameters m_geofenceParameters;
+  public final int m_toleranceInMs;
+  public final byte[] m_timeListener;
+  public final String m_listenerKey;
+  public final byte[] m_listenerPayload;
+  public final String m_listenerClassName;
+  public final ReminderManager.SchedulerMode m_schedulerMode;
 }
\ No newline at end of file
@@ -0,0 +1,327 @@
+package manvin.digitalreminder.digitalreminderlibrary.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalTime;
+import java.util.EnumSet;
+
+/**
+ * Classe que codifica e decodifica LocationReminderDetails em um formato binário compacto e versionado.
+ *
+ * Cada registro inicia com um byte de versão, seguido do tipo, do dia da semana e da máscara dos dias da semana (um byte cada), dos parâmetros do geofence, do horário em segundos do dia (-1 quando ausente), da tolerância, do modo de agendamento (um byte), da latitude e longitude como doubles primitivos (NaN quando ausentes) e do endereço em UTF-8 prefixado pelo seu tamanho. Por fim, um byte indica como o listener é guardado: pela chave de ListenerRegistry (em UTF) seguida do payload prefixado pelo seu tamanho, pelo nome da sua classe (em UTF), no caso de listeners de lembretes baseados apenas no tempo que implementam ListenerRegistry.Stateless, ou embutido, prefixado pelo seu tamanho. O listener embutido usa serialização padrão, exceto em lembretes baseados apenas no tempo, que embutem um Parcel serializado.
+ *
+ * Registros gravados com a serialização padrão de LocationReminderDetails são reconhecidos pelo cabeçalho de ObjectOutputStream e continuam legíveis por decode.
+ */
+final class LocationReminderDetailsCodec {
+
+  /**
+   * Codificar os detalhes especificados.
+   *
+   * @param details
+   *
+   * @return os bytes do registro.
+   *
+   * @throws IOException
+   */
+  static byte[] encode(final LocationReminderDetails details) throws IOException
+  {
+    final ByteArrayOutputStream buffer = new ByteArrayOutputStream(ESTIMATED_RECORD_LENGTH);
+
+    try(final DataOutputStream stream = new DataOutputStream(buffer))
+    {
+      encode(details, stream);
+    }
+
+    return buffer.toByteArray();
+  }
+
+  /**
+   * Codificar os detalhes especificados no output especificado.
+   *
+   * @param details
+   * @param output
+   *
+   * @throws IOException
+   */
+  static void encode(final LocationReminderDetails details, final DataOutput output) throws IOException
+  {
+    output.writeByte(VERSION);
+    output.writeByte(details.m_type.ordinal());
+    output.writeByte(details.m_dayOfWeek.ordinal());
+    output.writeByte(details.getDaysOfWeekMask());
+    writeGeofenceParameters(output, details.getGeofenceParameters());
+    output.writeInt(details.m_time == null ? NO_TIME : details.m_time.toSecondOfDay());
+    output.writeInt(details.m_toleranceInMs);
+    output.writeByte(details.getSchedulerMode().ordinal());
+    output.writeDouble(details.m_latitude == null ? Double.NaN : details.m_latitude);
+    output.writeDouble(details.m_longitude == null ? Double.NaN : details.m_longitude);
+    writeBytes(output, details.m_address == null ? null : details.m_address.getBytes(StandardCharsets.UTF_8));
+
+    if (details.m_listenerKey != null)
+    {
+      output.writeByte(LISTENER_REGISTRY);
+      output.writeUTF(details.m_listenerKey);
+      writeBytes(output, details.m_listenerPayload);
+      return;
+    }
+
+    if (details.m_listenerClassName != null)
+    {
+      output.writeByte(LISTENER_CLASS);
+      output.writeUTF(details.m_listenerClassName);
+      return;
+    }
+
+    output.writeByte(LISTENER_EMBEDDED);
+
+    switch (details.m_type)
+    {
+      case LOCATION:
+        writeBytes(output, serializeListener(details.m_locationListener));
+        break;
+      case TIME_LOCATION:
+        writeBytes(output, serializeListener(details.m_timeLocationListener));
+        break;
+      default:
+        writeBytes(output, details.m_timeListener);
+    }
+  }
+
+  /**
+   * Decodificar os detalhes a partir dos bytes especificados.
+   *
+   * Os bytes podem estar tanto neste formato quanto no formato da serialização padrão.
+   *
+   * @param bytes
+   *
+   * @return os detalhes.
+   *
+   * @throws IOException
+   */
+  static LocationReminderDetails decode(final byte[] bytes) throws IOException
+  {
+    if (bytes.length >= 2 && bytes[0] == STREAM_MAGIC_FIRST && bytes[1] == STREAM_MAGIC_SECOND)
+    {
+      return (LocationReminderDetails) deserializeObject(bytes);
+    }
+
+    try(final DataInputStream stream = new DataInputStream(new ByteArrayInputStream(bytes)))
+    {
+      return decode(stream);
+    }
+  }
+
+  /**
+   * Decodificar os detalhes a partir do input especificado, que deve estar neste formato.
+   *
+   * @param input
+   *
+   * @return os detalhes.
+   *
+   * @throws IOException
+   */
+  static LocationReminderDetails decode(final DataInput input) throws IOException
+  {
+    final int version = input.readUnsignedByte();
+
+    if (version < VERSION_INITIAL || version > VERSION)
+    {
+      throw new IOException("Unknown LocationReminderDetails codec version: " + version);
+    }
+
+    final LocationReminderDetails.Type type = LocationReminderDetails.Type.values()[input.readUnsignedByte()];
+    final ReminderManager.DayOfWeek dayOfWeek = ReminderManager.DayOfWeek.values()[input.readUnsignedByte()];
+    final int daysOfWeek = version >= VERSION_DAYS_OF_WEEK_MASK ? input.readUnsignedByte() : ReminderManager.toDaysOfWeekMask(EnumSet.of(dayOfWeek));
+    final GeofenceParameters geofenceParameters = version >= VERSION_GEOFENCE_PARAMETERS ? readGeofenceParameters(input) : GeofenceParameters.DEFAULT;
+    final int secondOfDay = input.readInt();
+    final int toleranceInMs = version >= VERSION_TIME ? input.readInt() : 0;
+    final ReminderManager.SchedulerMode schedulerMode = version >= VERSION_SCHEDULER_MODE ? ReminderManager.SchedulerMode.values()[input.readUnsignedByte()] : ReminderManager.SchedulerMode.PER_REMINDER;
+    final double latitude = input.readDouble();
+    final double longitude = input.readDouble();
+    final byte[] address = readBytes(input);
+    final int listenerKind = version >= VERSION_LISTENER_REGISTRY ? input.readUnsignedByte() : LISTENER_EMBEDDED;
+
+    final LocalTime time = secondOfDay == NO_TIME ? null : LocalTime.ofSecondOfDay(secondOfDay);
+    final String addressString = address == null ? null : new String(address, StandardCharsets.UTF_8);
+    final Double latitudeOrNull = type == LocationReminderDetails.Type.TIME ? null : latitude;
+    final Double longitudeOrNull = type == LocationReminderDetails.Type.TIME ? null : longitude;
+
+    if (listenerKind == LISTENER_REGISTRY)
+    {
+      final String listenerKey = input.readUTF();
+
+      return new LocationReminderDetails(type, dayOfWeek, daysOfWeek, time, latitudeOrNull, longitudeOrNull, addressString, null, null, geofenceParameters, toleranceInMs, null, listenerKey, readBytes(input), null, schedulerMode);
+    }
+
+    if (version >= VERSION_LISTENER_CLASS && listenerKind == LISTENER_CLASS)
+    {
+      return new LocationReminderDetails(type, dayOfWeek, daysOfWeek, time, null, null, null, null, null, geofenceParameters, toleranceInMs, null, null, null, input.readUTF(), schedulerMode);
+    }
+
+    final byte[] listener = readBytes(input);
+
+    if (type == LocationReminderDetails.Type.TIME)
+    {
+      return new LocationReminderDetails(type, dayOfWeek, daysOfWeek, time, null, null, null, null, null, geofenceParameters, toleranceInMs, listener, null, null, null, schedulerMode);
+    }
+
+    final Object listenerObject = listener == null ? null : deserializeObject(listener);
+
+    if (type == LocationReminderDetails.Type.LOCATION)
+    {
+      return new LocationReminderDetails(type, dayOfWeek, daysOfWeek, time, latitude, longitude, addressString, (ReminderManager.LocationReminderListener) listenerObject, null, geofenceParameters, toleranceInMs, null, null, null, null, schedulerMode);
+    }
+
+    return new LocationReminderDetails(type, dayOfWeek, daysOfWeek, time, latitude, longitude, addressString, null, (ReminderManager.TimeLocationReminderListener) listenerObject, geofenceParameters, toleranceInMs, null, null, null, null, schedulerMode);
+  }
+
+  /**
+   * Escrever os parâmetros do geofence.
+   *
+   * @param output
+   * @param parameters
+   *
+   * @throws IOException
+   */
+  private static void writeGeofenceParameters(final DataOutput output, final GeofenceParameters parameters) throws IOException
+  {
+    output.writeFloat(parameters.m_radiusInM);
+    output.writeInt(parameters.m_responsivenessInMs);
+    output.writeInt(parameters.m_loiteringDelayInMs);
+    output.writeInt(parameters.m_armingLeadInMs);
+    output.writeInt(parameters.m_armingWindowInMs);
+  }
+
+  /**
+   * Ler os parâmetros do geofence.
+   *
+   * @param input
+   *
+   * @return os parâmetros.
+   *
+   * @throws IOException
+   */
+  private static GeofenceParameters readGeofenceParameters(final DataInput input) throws IOException
+  {
+    return new GeofenceParameters(input.readFloat(), input.readInt(), input.readInt(), input.readInt(), input.readInt());
+  }
+
+  /**
+   * Escrever um bloco de bytes prefixado pelo seu tamanho, ou -1 se for null.
+   *
+   * @param output
+   * @param bytes
+   *
+   * @throws IOException
+   */
+  private static void writeBytes(final DataOutput output, final byte[] bytes) throws IOException
+  {
+    if (bytes == null)
+    {
+      output.writeInt(-1);
+      return;
+    }
+
+    output.writeInt(bytes.length);
+    output.write(bytes);
+  }
+
+  /**
+   * Ler um bloco de bytes prefixado pelo seu tamanho.
+   *
+   * @param input
+   *
+   * @return os bytes, ou null se o tamanho for -1.
+   *
+   * @throws IOException
+   */
+  private static byte[] readBytes(final DataInput input) throws IOException
+  {
+    final int length = input.readInt();
+
+    if (length < 0)
+    {
+      return null;
+    }
+
+    final byte[] bytes = new byte[length];
+    input.readFully(bytes);
+
+    return bytes;
+  }
+
+  /**
+   * Serializar o listener com a serialização padrão.
+   *
+   * @param listener
+   *
+   * @return os bytes, ou null se o listener for null.
+   *
+   * @throws IOException
+   */
+  private static byte[] serializeListener(final Object listener) throws IOException
+  {
+    if (listener == null)
+    {
+      return null;
+    }
+
+    final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+    try(final ObjectOutputStream stream = new ObjectOutputStream(buffer))
+    {
+      stream.writeObject(listener);
+    }
+
+    return buffer.toByteArray();
+  }
+
+  /**
+   * Desserializar um objeto com a serialização padrão.
+   *
+   * @param bytes
+   *
+   * @return o objeto.
+   *
+   * @throws IOException
+   */
+  private static Object deserializeObject(final byte[] bytes) throws IOException
+  {
+    try(final ObjectInputStream stream = new ObjectInputStream(new ByteArrayInputStream(bytes)))
+    {
+      return stream.readObject();
+    }
+    catch (ClassNotFoundException ex)
+    {
+      throw new IOException(ex);
+    }
+  }
+
+  private LocationReminderDetailsCodec()
+  {
+  }
+
+  private static final byte VERSION = 7;
+  private static final byte VERSION_INITIAL = 1;
+  private static final byte VERSION_DAYS_OF_WEEK_MASK = 2;
+  private static final byte VERSION_GEOFENCE_PARAMETERS = 3;
+  private static final byte VERSION_TIME = 4;
+  private static final byte VERSION_LISTENER_REGISTRY = 5;
+  private static final byte VERSION_LISTENER_CLASS = 6;
+  private static final byte VERSION_SCHEDULER_MODE = 7;
+  private static final byte LISTENER_EMBEDDED = 0;
+  private static final byte LISTENER_REGISTRY = 1;
+  private static final byte LISTENER_CLASS = 2;
+  private static final int NO_TIME = -1;
+  private static final byte STREAM_MAGIC_FIRST = (byte) 0xAC;
+  private static final byte STREAM_MAGIC_SECOND = (byte) 0xED;
+  private static final int ESTIMATED_RECORD_LENGTH = 128;
+}
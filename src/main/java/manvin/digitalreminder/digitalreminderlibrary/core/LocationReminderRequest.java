@@ -0,0 +1,49 @@
+package manvin.digitalreminder.digitalreminderlibrary.core;
+
+import android.location.Location;
+import android.util.Pair;
+
+/**
+ * Classe que representa os parâmetros de registro de um lembrete baseado na localização.
+ *
+ * É usada no registro em lote por ReminderManager.registerLocationReminders.
+ */
+public class LocationReminderRequest
+{
+  /**
+   * Construir os parâmetros de registro de um lembrete baseado na localização.
+   *
+   * @param id
+   * @param dayOfWeek
+   * @param locationDetails
+   * @param listener
+   */
+  public LocationReminderRequest(final String id, final ReminderManager.DayOfWeek dayOfWeek, final Pair<Location, String> locationDetails, final ReminderManager.LocationReminderListener listener)
+  {
+    this(id, dayOfWeek, locationDetails, listener, GeofenceParameters.DEFAULT);
+  }
+
+  /**
+   * Construir os parâmetros de registro de um lembrete baseado na localização com os parâmetros de geofence especificados.
+   *
+   * @param id
+   * @param dayOfWeek
+   * @param locationDetails
+   * @param listener
+   * @param geofenceParameters
+   */
+  public LocationReminderRequest(final String id, final ReminderManager.DayOfWeek dayOfWeek, final Pair<Location, String> locationDetails, final ReminderManager.LocationReminderListener listener, final GeofenceParameters geofenceParameters)
+  {
+    m_id = id;
+    m_dayOfWeek = dayOfWeek;
+    m_locationDetails = locationDetails;
+    m_listener = listener;
+    m_geofenceParameters = geofenceParameters;
+  }
+
+  public final String m_id;
+  public final ReminderManager.DayOfWeek m_dayOfWeek;
+  public final Pair<Location, String> m_locationDetails;
+  public final ReminderManager.LocationReminderListener m_listener;
+  public final GeofenceParameters m_geofenceParameters;
+}
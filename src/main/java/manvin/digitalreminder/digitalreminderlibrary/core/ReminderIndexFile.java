@@ -0,0 +1,456 @@
+package manvin.digitalreminder.digitalreminderlibrary.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+
+/**
+ * Classe que representa um índice em arquivo, mapeado em memória, dos registros do log de ReminderLocalStorage.
+ *
+ * O índice é uma tabela hash de slots de tamanho fixo com endereçamento aberto. Cada slot guarda o hash do id, e o offset e o tamanho do registro mais recente do id no log, de forma que um único registro possa ser lido sem ler o log inteiro.
+ *
+ * Como o slot não guarda o id, a confirmação de que um slot pertence ao id é delegada a um RecordMatcher, que lê o id do registro no log.
+ *
+ * O cabeçalho registra a geração e o tamanho do log que o índice reflete. Se eles não corresponderem ao log atual, o índice deve ser considerado obsoleto.
+ *
+ * Outro processo pode reconstruir o índice, mudando o tamanho do arquivo. Por isso, o tamanho mapeado é comparado ao do arquivo, que é mapeado novamente se necessário, sempre que isValidFor ou invalidate são invocados. Um arquivo inexistente ou malformado não é modificado até que o índice seja reconstruído.
+ *
+ * Esta classe não é thread-safe.
+ */
+final class ReminderIndexFile {
+
+  /**
+   * Interface que confirma se o registro na posição especificada do log pertence a um id.
+   */
+  interface RecordMatcher
+  {
+    /**
+     * Verificar se o registro pertence ao id procurado.
+     *
+     * @param offset
+     * @param length
+     *
+     * @return true se o registro pertence ao id.
+     *
+     * @throws IOException
+     */
+    boolean matches(final long offset, final int length) throws IOException;
+  }
+
+  /**
+   * Construir um índice a partir do arquivo especificado.
+   *
+   * Se o arquivo não existir ou não for um índice, o índice é considerado obsoleto até ser reconstruído.
+   *
+   * @param file
+   *
+   * @throws IOException
+   */
+  ReminderIndexFile(final File file) throws IOException
+  {
+    m_file = new RandomAccessFile(file, "rw");
+    remap();
+  }
+
+  /**
+   * Verificar se o índice reflete o log com a geração e o tamanho especificados.
+   *
+   * @param generation
+   * @param logLength
+   *
+   * @return true se o índice pode ser usado.
+   *
+   * @throws IOException
+   */
+  boolean isValidFor(final long generation, final long logLength) throws IOException
+  {
+    remap();
+
+    return m_buffer != null && m_buffer.getLong(GENERATION_POSITION) == generation && m_buffer.getLong(LOG_LENGTH_POSITION) == logLength;
+  }
+
+  /**
+   * Procurar o registro mais recente do id especificado.
+   *
+   * @param key
+   * @param matcher
+   *
+   * @return um array com o offset e o tamanho do registro, ou null se o id não estiver presente.
+   *
+   * @throws IOException
+   */
+  long[] find(final String key, final RecordMatcher matcher) throws IOException
+  {
+    if (m_buffer == null)
+    {
+      return null;
+    }
+
+    final int slot = findSlot(key, matcher);
+
+    if (slot < 0)
+    {
+      return null;
+    }
+
+    final int position = slotPosition(slot);
+    return new long[] {m_buffer.getLong(position), m_buffer.getInt(position + 8)};
+  }
+
+  /**
+   * Associar ao id especificado o registro na posição especificada do log.
+   *
+   * @param key
+   * @param offset
+   * @param length
+   * @param matcher
+   *
+   * @throws IOException
+   */
+  void put(final String key, final long offset, final int length, final RecordMatcher matcher) throws IOException
+  {
+    final int existing = findSlot(key, matcher);
+
+    if (existing >= 0)
+    {
+      writeSlot(existing, offset, length, m_buffer.getInt(slotPosition(existing) + 12));
+      return;
+    }
+
+    if ((usedSlots() + 1) * 4L > slotCount() * 3L)
+    {
+      grow();
+    }
+
+    final int hash = hash(key);
+    final int mask = slotCount() - 1;
+    int slot = hash & mask;
+
+    while (m_buffer.getLong(slotPosition(slot)) > 0)
+    {
+      slot = (slot + 1) & mask;
+    }
+
+    if (m_buffer.getLong(slotPosition(slot)) == EMPTY)
+    {
+      m_buffer.putInt(USED_SLOTS_POSITION, usedSlots() + 1);
+    }
+
+    writeSlot(slot, offset, length, hash);
+  }
+
+  /**
+   * Remover o id especificado do índice, caso presente.
+   *
+   * @param key
+   * @param matcher
+   *
+   * @throws IOException
+   */
+  void remove(final String key, final RecordMatcher matcher) throws IOException
+  {
+    final int slot = findSlot(key, matcher);
+
+    if (slot >= 0)
+    {
+      writeSlot(slot, DELETED, 0, m_buffer.getInt(slotPosition(slot) + 12));
+    }
+  }
+
+  /**
+   * Registrar a geração e o tamanho do log que o índice passa a refletir.
+   *
+   * Deve ser invocado após as modificações dos slots.
+   *
+   * @param generation
+   * @param logLength
+   */
+  void commit(final long generation, final long logLength)
+  {
+    m_buffer.putLong(GENERATION_POSITION, generation);
+    m_buffer.putLong(LOG_LENGTH_POSITION, logLength);
+  }
+
+  /**
+   * Marcar o índice como obsoleto.
+   *
+   * Deve ser invocado antes de modificações no log que não serão refletidas imediatamente no índice.
+   *
+   * @throws IOException
+   */
+  void invalidate() throws IOException
+  {
+    remap();
+
+    if (m_buffer != null)
+    {
+      m_buffer.putLong(GENERATION_POSITION, INVALID_GENERATION);
+    }
+  }
+
+  /**
+   * Reconstruir o índice inteiro a partir das posições especificadas.
+   *
+   * @param entries mapa que associa cada id a um array com o offset e o tamanho do seu registro.
+   * @param generation
+   * @param logLength
+   *
+   * @throws IOException
+   */
+  void rebuild(final Map<String,long[]> entries, final long generation, final long logLength) throws IOException
+  {
+    int slotCount = MIN_SLOT_COUNT;
+
+    while (entries.size() * 4L > slotCount * 3L)
+    {
+      slotCount *= 2;
+    }
+
+    reset(slotCount, INVALID_GENERATION, entries.size());
+
+    final int mask = slotCount - 1;
+
+    for (Map.Entry<String,long[]> entry : entries.entrySet())
+    {
+      final int hash = hash(entry.getKey());
+      int slot = hash & mask;
+
+      while (m_buffer.getLong(slotPosition(slot)) != EMPTY)
+      {
+        slot = (slot + 1) & mask;
+      }
+
+      writeSlot(slot, entry.getValue()[0], (int) entry.getValue()[1], hash);
+    }
+
+    commit(generation, logLength);
+  }
+
+  /**
+   * Fechar o arquivo do índice.
+   *
+   * @throws IOException
+   */
+  void close() throws IOException
+  {
+    m_file.close();
+  }
+
+  /**
+   * Procurar o slot do id especificado.
+   *
+   * @param key
+   * @param matcher
+   *
+   * @return o slot, ou -1 se o id não estiver presente.
+   *
+   * @throws IOException
+   */
+  private int findSlot(final String key, final RecordMatcher matcher) throws IOException
+  {
+    final int hash = hash(key);
+    final int mask = slotCount() - 1;
+    int slot = hash & mask;
+
+    for (int probes = 0; probes <= mask; probes++)
+    {
+      final int position = slotPosition(slot);
+      final long offset = m_buffer.getLong(position);
+
+      if (offset == EMPTY)
+      {
+        return -1;
+      }
+
+      if (offset > 0 && m_buffer.getInt(position + 12) == hash && matcher.matches(offset, m_buffer.getInt(position + 8)))
+      {
+        return slot;
+      }
+
+      slot = (slot + 1) & mask;
+    }
+
+    return -1;
+  }
+
+  /**
+   * Dobrar a quantidade de slots, reinserindo os slots ocupados e descartando os removidos.
+   *
+   * Os slots são reinseridos pelo hash armazenado, sem consultar o log.
+   *
+   * @throws IOException
+   */
+  private void grow() throws IOException
+  {
+    final int oldCount = slotCount();
+    final long[] offsets = new long[oldCount];
+    final int[] lengths = new int[oldCount];
+    final int[] hashes = new int[oldCount];
+    final long generation = m_buffer.getLong(GENERATION_POSITION);
+    final long logLength = m_buffer.getLong(LOG_LENGTH_POSITION);
+    int live = 0;
+
+    for (int slot = 0; slot < oldCount; slot++)
+    {
+      final int position = slotPosition(slot);
+      final long offset = m_buffer.getLong(position);
+
+      if (offset > 0)
+      {
+        offsets[live] = offset;
+        lengths[live] = m_buffer.getInt(position + 8);
+        hashes[live] = m_buffer.getInt(position + 12);
+        live++;
+      }
+    }
+
+    reset(oldCount * 2, INVALID_GENERATION, live);
+
+    final int mask = oldCount * 2 - 1;
+
+    for (int i = 0; i < live; i++)
+    {
+      int slot = hashes[i] & mask;
+
+      while (m_buffer.getLong(slotPosition(slot)) != EMPTY)
+      {
+        slot = (slot + 1) & mask;
+      }
+
+      writeSlot(slot, offsets[i], lengths[i], hashes[i]);
+    }
+
+    commit(generation, logLength);
+  }
+
+  /**
+   * Reiniciar o arquivo com uma tabela vazia com a quantidade de slots especificada.
+   *
+   * @param slotCount
+   * @param generation
+   * @param usedSlots
+   *
+   * @throws IOException
+   */
+  private void reset(final int slotCount, final long generation, final int usedSlots) throws IOException
+  {
+    final long length = HEADER_LENGTH + (long) slotCount * SLOT_LENGTH;
+
+    m_file.setLength(0);
+    m_file.setLength(length);
+    map(length);
+
+    m_buffer.putInt(MAGIC_POSITION, MAGIC);
+    m_buffer.putInt(VERSION_POSITION, VERSION);
+    m_buffer.putInt(SLOT_COUNT_POSITION, slotCount);
+    m_buffer.putInt(USED_SLOTS_POSITION, usedSlots);
+    m_buffer.putLong(GENERATION_POSITION, generation);
+    m_buffer.putLong(LOG_LENGTH_POSITION, 0);
+  }
+
+  /**
+   * Mapear o arquivo novamente caso o seu tamanho tenha mudado desde o último mapeamento, por exemplo, por uma reconstrução em outro processo.
+   *
+   * Se o arquivo não for um índice, nenhum mapeamento é mantido.
+   *
+   * @throws IOException
+   */
+  private void remap() throws IOException
+  {
+    final long length = m_file.length();
+
+    if (m_buffer != null && m_buffer.capacity() == length)
+    {
+      return;
+    }
+
+    m_buffer = null;
+
+    if (length < HEADER_LENGTH || length > Integer.MAX_VALUE)
+    {
+      return;
+    }
+
+    map(length);
+
+    final int slotCount = m_buffer.getInt(SLOT_COUNT_POSITION);
+
+    if (m_buffer.getInt(MAGIC_POSITION) != MAGIC
+            || m_buffer.getInt(VERSION_POSITION) != VERSION
+            || slotCount <= 0
+            || Integer.bitCount(slotCount) != 1
+            || length != HEADER_LENGTH + (long) slotCount * SLOT_LENGTH)
+    {
+      m_buffer = null;
+    }
+  }
+
+  /**
+   * Mapear em memória os primeiros bytes do arquivo.
+   *
+   * @param length
+   *
+   * @throws IOException
+   */
+  private void map(final long length) throws IOException
+  {
+    m_buffer = m_file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+  }
+
+  private void writeSlot(final int slot, final long offset, final int length, final int hash)
+  {
+    final int position = slotPosition(slot);
+
+    m_buffer.putInt(position + 8, length);
+    m_buffer.putInt(position + 12, hash);
+    m_buffer.putLong(position, offset);
+  }
+
+  private int slotCount()
+  {
+    return m_buffer.getInt(SLOT_COUNT_POSITION);
+  }
+
+  private int usedSlots()
+  {
+    return m_buffer.getInt(USED_SLOTS_POSITION);
+  }
+
+  private static int slotPosition(final int slot)
+  {
+    return HEADER_LENGTH + slot * SLOT_LENGTH;
+  }
+
+  /**
+   * Calcular o hash espalhado de um id.
+   *
+   * @param key
+   *
+   * @return o hash.
+   */
+  private static int hash(final String key)
+  {
+    final int h = key.hashCode() * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  private static final int MAGIC = 0x44524C49;
+  private static final int VERSION = 1;
+  private static final int MAGIC_POSITION = 0;
+  private static final int VERSION_POSITION = 4;
+  private static final int SLOT_COUNT_POSITION = 8;
+  private static final int USED_SLOTS_POSITION = 12;
+  private static final int GENERATION_POSITION = 16;
+  private static final int LOG_LENGTH_POSITION = 24;
+  private static final int HEADER_LENGTH = 32;
+  private static final int SLOT_LENGTH = 16;
+  private static final int MIN_SLOT_COUNT = 64;
+  private static final long EMPTY = 0;
+  private static final long DELETED = -1;
+  private static final long INVALID_GENERATION = -1;
+  private final RandomAccessFile m_file;
+  private MappedByteBuffer m_buffer;
+}
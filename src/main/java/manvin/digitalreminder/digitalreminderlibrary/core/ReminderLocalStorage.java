@@ -3,13 +3,28 @@ package manvin.digitalreminder.digitalreminderlibrary.core;
 import android.content.Context;
 import android.util.Pair;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 
 /**
@@ -17,73 +32,219 @@ import java.util.HashMap;
  *
  * Esses objetos serão distribuidos por meio de um mapa que associa um id a esses objetos. Espera-se que esse id seja o mesmo dos geofence objetos que são usados para despachar lembretes baseado em localização.
  *
+ * Por padrão, o armazenamento é estruturado em log (Mode.LOG, ver ReminderLogFile): anexos e remoções são registros adicionados ao final do arquivo, e o mapa em memória é reconstruído a partir do log quando o armazenamento é aberto. Quando a proporção de registros obsoletos alcança o limite definido por setCompactionGarbageRatio, o log é compactado em background.
+ *
+ * Cada registro do log armazena os detalhes no formato de LocationReminderDetailsCodec. Registros gravados anteriormente com a serialização padrão continuam legíveis.
+ *
+ * Toda escrita é durável quando a operação retorna. Cada registro do log termina com um CRC32, e a leitura do log termina no primeiro registro incompleto ou corrompido, de forma que uma escrita interrompida descarta apenas os registros que ainda não tinham sido confirmados. Os registros de um group commit são confirmados com um único fsync. A compactação e o modo Mode.SNAPSHOT escrevem um arquivo temporário que, após o fsync, substitui o atual com uma renomeação atômica, de forma que uma interrupção mantém o arquivo anterior intacto.
+ *
+ * O modo Mode.SNAPSHOT mantém o comportamento anterior, em que o mapa inteiro é serializado a cada modificação. Ao abrir o armazenamento, um arquivo no formato do outro modo é migrado automaticamente.
+ *
+ * Opcionalmente (setIndexEnabled), um índice mapeado em memória (ReminderIndexFile) é mantido ao lado do log. Com ele, um processo que ainda não carregou o mapa, como um broadcast que acorda a aplicação, obtém um único lembrete por get sem ler o log inteiro.
+ *
+ * O mapa em memória é compartilhado por todas as instâncias do processo que usam o mesmo arquivo. Ele só é recarregado quando o tamanho, a data de modificação ou a geração do arquivo indicam que outro processo o modificou, de forma que consultas em um processo já aquecido custam apenas uma busca no mapa.
+ *
+ * O armazenamento é seguro entre threads e entre processos. Dentro do processo, todas as operações são serializadas por um monitor. Entre processos, um arquivo de lock ao lado do armazenamento é travado com FileChannel: recarregamentos usam o lock compartilhado, de forma que leitores de processos diferentes não bloqueiam uns aos outros, e escritas usam o lock exclusivo e sempre recarregam o mapa antes de modificá-lo, de forma que nenhuma atualização de outro processo é perdida. Anexos e remoções concorrentes do processo são enfileirados e aplicados por um único escritor, que os agrupa em uma única escrita (group commit).
+ *
+ * Todos os métodos são síncronos: as escritas (serialize, append, appendAll, remove e compact) bloqueiam a thread que os invoca até o fsync, e as leituras podem precisar ler o arquivo e aguardar o lock de outro processo. Por isso, não devem ser invocados a partir da thread principal. Nela, devem ser usados os métodos com sufixo Async de ReminderManager, que executam o armazenamento em um executor dedicado.
  */
 public class ReminderLocalStorage {
 
+  /**
+   * Enum que especifica o formato usado pelo armazenamento.
+   */
+  public enum Mode
+  {
+    /**
+     * O mapa inteiro é serializado com ObjectOutputStream a cada modificação.
+     */
+    SNAPSHOT,
+    /**
+     * Modificações são anexadas ao final de um log, que é compactado periodicamente.
+     */
+    LOG,
+  }
+
   /**
    * Construir uma ReminderLocalStorage que usa o contexto especificado.
    *
+   * O modo Mode.LOG é usado implicitamente.
    *
    * @param context
    *
    * @throws IOException
    */
   public ReminderLocalStorage(final Context context) throws IOException {
+    this(context, Mode.LOG);
+  }
+
+  /**
+   * Construir uma ReminderLocalStorage que usa o contexto e o modo especificados.
+   *
+   * Se o arquivo existente estiver no formato do outro modo, ele é migrado para o formato do modo especificado.
+   *
+   * @param context
+   * @param mode
+   *
+   * @throws IOException
+   */
+  public ReminderLocalStorage(final Context context, final Mode mode) throws IOException {
     m_context = context;
+    m_mode = mode;
     m_file = new File(m_context.getDataDir(), FILE_NAME);
+    m_log = new ReminderLogFile(m_file);
 
-    if (!m_file.exists())
+    synchronized (LOCK)
     {
-      makeFile(m_file);
+      final String path = m_file.getAbsolutePath();
+      final State cached = STATES.get(path);
+
+      if (cached != null && cached.mode == m_mode && m_file.exists())
+      {
+        m_state = cached;
+        return;
+      }
+
+      try(final FileLock lock = lockFile(false))
+      {
+        if (!m_file.exists())
+        {
+          makeFile(m_file);
+        }
+
+        if (cached != null && cached.mode == m_mode)
+        {
+          m_state = cached;
+          return;
+        }
+
+        m_state = new State(m_mode);
+        STATES.put(path, m_state);
+        open();
+      }
     }
   }
 
   /**
-   * Desserializar o mapa.
+   * Obter a instância compartilhada pelo processo, que usa o modo Mode.LOG.
    *
-   * @return uma lista dos objetos
+   * É preferível a construir uma nova instância em caminhos frequentes, como em broadcasts.
    *
-   * @throws RuntimeException
+   * @param context
+   *
+   * @return a instância compartilhada.
+   *
+   * @throws IOException
    */
-  public HashMap<String,LocationReminderDetails> deserialize(){
-    try(final FileInputStream stream = new FileInputStream(m_file))
+  public static ReminderLocalStorage getInstance(final Context context) throws IOException
+  {
+    synchronized (LOCK)
     {
-      if (stream.available() == 0)
+      if (s_instance == null)
       {
-        return new HashMap<>();
+        s_instance = new ReminderLocalStorage(context.getApplicationContext());
       }
 
-      final ObjectInputStream objectStream = new ObjectInputStream(stream);
-      return (HashMap<String,LocationReminderDetails>) objectStream.readObject();
+      return s_instance;
     }
-    catch(Exception ex)
+  }
+
+  /**
+   * Definir a proporção de registros obsoletos do log a partir da qual a compactação é agendada.
+   *
+   * @param ratio valor entre 0 (exclusivo) e 1 (inclusivo).
+   *
+   * @throws IllegalArgumentException
+   */
+  public static void setCompactionGarbageRatio(final double ratio)
+  {
+    if (ratio <= 0 || ratio > 1)
     {
-      throw new RuntimeException(ex);
+      throw new IllegalArgumentException("The garbage ratio must be in (0, 1].");
+    }
+
+    s_compactionGarbageRatio = ratio;
+  }
+
+  /**
+   * Definir se o índice mapeado em memória deve ser mantido e usado.
+   *
+   * Como broadcasts podem ser executados em um novo processo, deve ser definido sempre que o processo da aplicação é iniciado, por exemplo, em Application.onCreate. Quando desabilitado, o arquivo do índice é descartado na próxima operação.
+   *
+   * @param enabled
+   */
+  public static void setIndexEnabled(final boolean enabled)
+  {
+    s_indexEnabled = enabled;
+  }
+
+  /**
+   * Obter o modo usado por este armazenamento.
+   *
+   * @return o modo.
+   */
+  public Mode getMode()
+  {
+    return m_mode;
+  }
+
+  /**
+   * Desserializar o mapa.
+   *
+   * Retorna uma cópia do mapa em memória, que é recarregado do arquivo apenas se ele tiver sido modificado por outro processo.
+   *
+   * @return uma lista dos objetos
+   *
+   * @throws RuntimeException
+   */
+  public HashMap<String,LocationReminderDetails> deserialize(){
+    synchronized (LOCK)
+    {
+      refreshShared();
+      return new HashMap<>(m_state.index);
     }
   }
 
   /**
    * Serializar o mapa.
    *
+   * No modo Mode.LOG, o log é reescrito contendo apenas os pares do mapa especificado.
+   *
+   * Bloqueia até que o arquivo tenha sido escrito, e não deve ser invocado a partir da thread principal.
+   *
    * @param states
    *
    * @throws RuntimeException
    */
   public void serialize(HashMap<String,LocationReminderDetails> states)  {
-    try(final ObjectOutputStream buffer = new ObjectOutputStream(new FileOutputStream(m_file, false)))
-    {
-      buffer.writeObject(states);
-    }
-    catch(Exception ex)
+    synchronized (LOCK)
     {
-      throw new RuntimeException(ex);
+      try(final FileLock lock = lockFile(false))
+      {
+        if (m_mode == Mode.LOG)
+        {
+          refresh();
+          rewriteLog(states, m_state.generation + 1);
+          return;
+        }
+
+        writeSnapshot(m_file, states);
+        m_state.index = new HashMap<>(states);
+        m_state.stamp(m_file);
+      }
+      catch (IOException ex)
+      {
+        throw new RuntimeException(ex);
+      }
     }
   }
 
   /**
    * Anexar no mapa o par especificado.
    *
-   * É equivalente a desserializar o mapa, adicionar um novo par, e serializá-lo novamente.
+   * No modo Mode.SNAPSHOT, é equivalente a adicionar um novo par ao mapa e serializá-lo novamente. No modo Mode.LOG, apenas um registro é adicionado ao final do log.
+   *
+   * Retorna apenas quando o par tiver sido escrito, possivelmente junto aos pares de outras threads. Por bloquear até o fsync, não deve ser invocado a partir da thread principal.
    *
    * @param state par
    *
@@ -91,33 +252,43 @@ public class ReminderLocalStorage {
    */
   public void append(Pair<String,LocationReminderDetails> state)
   {
-    try(final FileInputStream stream = new FileInputStream(m_file))
-    {
-      if (stream.available() == 0)
-      {
-        final HashMap<String,LocationReminderDetails> map = new HashMap<>();
-
-        map.put(state.first, state.second);
-        serialize(map);
+    commit(Collections.singletonList(new ReminderLogFile.Record(ReminderLogFile.RECORD_PUT, state.first, state.second)));
+    scheduleCompactionIfNeeded();
+  }
 
-        return;
-      }
+  /**
+   * Anexar no mapa todos os pares especificados.
+   *
+   * No modo Mode.SNAPSHOT, o mapa é serializado apenas uma vez. No modo Mode.LOG, todos os registros são adicionados ao final do log com uma única escrita.
+   *
+   * Bloqueia até que os pares tenham sido escritos, e não deve ser invocado a partir da thread principal.
+   *
+   * @param states
+   *
+   * @throws RuntimeException
+   */
+  public void appendAll(final Map<String,LocationReminderDetails> states)
+  {
+    if (states.isEmpty())
+    {
+      return;
+    }
 
-      final HashMap<String,LocationReminderDetails> map = deserialize();
+    final ArrayList<ReminderLogFile.Record> records = new ArrayList<>(states.size());
 
-      map.put(state.first, state.second);
-      serialize(map);
-    }
-    catch(Exception ex)
+    for (Map.Entry<String,LocationReminderDetails> state : states.entrySet())
     {
-      throw new RuntimeException(ex);
+      records.add(new ReminderLogFile.Record(ReminderLogFile.RECORD_PUT, state.getKey(), state.getValue()));
     }
+
+    commit(records);
+    scheduleCompactionIfNeeded();
   }
 
   /**
    * Obter uma chave para a key especificada.
    *
-   * É equivalente a desserializar o mapa e obter o valor que usa esta chave, se algum.
+   * É equivalente a obter do mapa em memória o valor que usa esta chave, se algum. Se o mapa ainda não foi carregado neste processo e o índice é válido, apenas o registro da chave é lido do log.
    *
    * @param key
    *
@@ -127,24 +298,884 @@ public class ReminderLocalStorage {
    */
   public LocationReminderDetails get(final String key)
   {
-    final HashMap<String,LocationReminderDetails> map = deserialize();
-    return map.get(key);
+    synchronized (LOCK)
+    {
+      if (!m_state.loaded)
+      {
+        try(final FileLock lock = lockFile(true))
+        {
+          final ReminderIndexFile index = index();
+
+          if (index.isValidFor(m_log.readGeneration(), m_file.length()))
+          {
+            try(final RandomAccessFile log = new RandomAccessFile(m_file, "r"))
+            {
+              return ReminderLogFile.readIndexed(index, log, key);
+            }
+            catch (ReminderLogFile.StaleIndexException ex)
+            {
+              refresh();
+              return m_state.index.get(key);
+            }
+          }
+        }
+        catch (IOException ex)
+        {
+          throw new RuntimeException(ex);
+        }
+      }
+
+      refreshShared();
+      return m_state.index.get(key);
+    }
+  }
+
+  /**
+   * Obter os valores de todas as keys especificadas com uma única leitura.
+   *
+   * É equivalente a invocar get para cada key, mas o mapa é atualizado, ou o log é aberto para a leitura indexada, apenas uma vez. Keys sem valor (por exemplo, de lembretes já desregistrados) não aparecem no resultado e são adicionadas a missing, se especificado.
+   *
+   * @param keys
+   * @param missing coleção que recebe as keys sem valor, ou null.
+   *
+   * @return um mapa das keys presentes para os seus valores.
+   *
+   * @throws RuntimeException
+   */
+  public HashMap<String,LocationReminderDetails> getAll(final Collection<String> keys, final Collection<String> missing)
+  {
+    final HashMap<String,LocationReminderDetails> values = new HashMap<>();
+
+    synchronized (LOCK)
+    {
+      try(final FileLock lock = m_state.loaded ? null : lockFile(true))
+      {
+        boolean indexed = !m_state.loaded && index().isValidFor(m_log.readGeneration(), m_file.length());
+
+        if (indexed)
+        {
+          final ReminderIndexFile index = index();
+
+          try(final RandomAccessFile log = new RandomAccessFile(m_file, "r"))
+          {
+            for (String key : keys)
+            {
+              final LocationReminderDetails details = ReminderLogFile.readIndexed(index, log, key);
+
+              if (details != null)
+              {
+                values.put(key, details);
+              }
+            }
+          }
+          catch (ReminderLogFile.StaleIndexException ex)
+          {
+            values.clear();
+            indexed = false;
+          }
+        }
+
+        if (!indexed)
+        {
+          // O lock compartilhado já pode estar mantido, e lockFile não é reentrante.
+          if (lock != null)
+          {
+            refresh();
+          }
+          else
+          {
+            refreshShared();
+          }
+
+          for (String key : keys)
+          {
+            final LocationReminderDetails details = m_state.index.get(key);
+
+            if (details != null)
+            {
+              values.put(key, details);
+            }
+          }
+        }
+      }
+      catch (IOException ex)
+      {
+        throw new RuntimeException(ex);
+      }
+    }
+
+    if (missing != null)
+    {
+      for (String key : keys)
+      {
+        if (!values.containsKey(key))
+        {
+          missing.add(key);
+        }
+      }
+    }
+
+    return values;
   }
 
   /**
    * Remove do mapa o par com a key especificada.
    *
-   * É equivalente a desserializar o mapa, remover o par que usa a key, se presente, e serializar o mapa noamente.
+   * No modo Mode.SNAPSHOT, é equivalente a remover o par que usa a key, se presente, e serializar o mapa noamente. No modo Mode.LOG, uma lápide é adicionada ao final do log, se a key estiver presente.
+   *
+   * Bloqueia até que a remoção tenha sido escrita, e não deve ser invocado a partir da thread principal.
+   *
    * @param key
    *
    * @throws RuntimeException
    */
   public void remove(final String key)
   {
-    final HashMap<String,LocationReminderDetails> map = deserialize();
+    commit(Collections.singletonList(new ReminderLogFile.Record(ReminderLogFile.RECORD_REMOVE, key, null)));
+    scheduleCompactionIfNeeded();
+  }
+
+  /**
+   * Compactar o log, descartando os registros obsoletos.
+   *
+   * No modo Mode.SNAPSHOT, este método é noop. Caso contrário, bloqueia até que o log tenha sido reescrito, e não deve ser invocado a partir da thread principal.
+   *
+   * @throws RuntimeException
+   */
+  public void compact()
+  {
+    if (m_mode != Mode.LOG)
+    {
+      return;
+    }
+
+    synchronized (LOCK)
+    {
+      try(final FileLock lock = lockFile(false))
+      {
+        refresh();
+
+        if (m_state.totalRecords == m_state.index.size())
+        {
+          return;
+        }
+
+        rewriteLog(m_state.index, m_state.generation + 1);
+      }
+      catch (IOException ex)
+      {
+        throw new RuntimeException(ex);
+      }
+    }
+  }
+
+  /**
+   * Classe que representa os registros de uma chamada, completada quando eles forem escritos.
+   */
+  private static final class Commit
+  {
+    Commit(final List<ReminderLogFile.Record> records)
+    {
+      this.records = records;
+    }
+
+    final List<ReminderLogFile.Record> records;
+    final CompletableFuture<Void> done = new CompletableFuture<>();
+  }
+
+  /**
+   * Classe que representa o estado em memória de um arquivo, compartilhado por todas as instâncias do processo.
+   */
+  private static final class State
+  {
+    State(final Mode mode)
+    {
+      this.mode = mode;
+    }
+
+    /**
+     * Registrar o tamanho e a data de modificação atuais do arquivo, usados para detectar modificações externas.
+     *
+     * @param file
+     */
+    void stamp(final File file)
+    {
+      length = file.length();
+      lastModified = file.lastModified();
+    }
+
+    final Mode mode;
+    HashMap<String,LocationReminderDetails> index = new HashMap<>();
+    boolean loaded = true;
+    ReminderIndexFile indexFile;
+    boolean indexDiscarded;
+    long generation;
+    long length = -1;
+    long lastModified;
+    int totalRecords;
+    final ConcurrentLinkedQueue<Commit> pending = new ConcurrentLinkedQueue<>();
+  }
+
+  /**
+   * Abrir o arquivo, migrando-o para o formato do modo usado, se necessário.
+   *
+   * Deve ser invocado com LOCK.
+   *
+   * @throws IOException
+   */
+  private void open() throws IOException
+  {
+    final boolean isSnapshot = isSnapshotFile(m_file);
+
+    if (m_mode == Mode.SNAPSHOT)
+    {
+      if (!isSnapshot && m_file.length() != 0)
+      {
+        replayLog(false);
+        writeSnapshot(m_file, m_state.index);
+      }
+      else
+      {
+        m_state.index = readSnapshot(m_file);
+      }
+
+      m_state.stamp(m_file);
+      return;
+    }
+
+    if (isSnapshot)
+    {
+      rewriteLog(readSnapshot(m_file), 0);
+      return;
+    }
+
+    if (m_file.length() == 0)
+    {
+      rewriteLog(new HashMap<>(), 0);
+      return;
+    }
+
+    if (m_log.isOutdated())
+    {
+      // Registros sem CRC não podem ser misturados aos novos.
+      replayLog(false);
+      rewriteLog(m_state.index, m_state.generation + 1);
+      return;
+    }
+
+    if (s_indexEnabled)
+    {
+      m_state.loaded = false;
+      return;
+    }
+
+    replayLog(false);
+  }
+
+  /**
+   * Enfileirar os registros para o escritor do processo e aguardar que sejam escritos.
+   *
+   * A thread que o invoca fica bloqueada até o fsync do group commit, que pode incluir os registros de outras threads e aguardar o lock de outro processo. Por isso, os métodos públicos que o usam não devem ser invocados a partir da thread principal.
+   *
+   * Não deve ser invocado com LOCK.
+   *
+   * @param records
+   *
+   * @throws RuntimeException
+   */
+  private void commit(final List<ReminderLogFile.Record> records)
+  {
+    final Commit commit = new Commit(records);
+
+    m_state.pending.add(commit);
+    WRITE_EXECUTOR.execute(this::drain);
+
+    try
+    {
+      commit.done.join();
+    }
+    catch (CompletionException ex)
+    {
+      throw ex.getCause() instanceof RuntimeException ? (RuntimeException) ex.getCause() : new RuntimeException(ex.getCause());
+    }
+  }
+
+  /**
+   * Escrever, com o lock exclusivo e uma única escrita, todos os registros enfileirados até o momento.
+   *
+   * É executado pelo escritor do processo. Uma execução que encontra a fila vazia, pois os seus registros já foram escritos por uma execução anterior, é noop.
+   */
+  private void drain()
+  {
+    final ArrayList<Commit> commits = new ArrayList<>();
+    final ArrayList<ReminderLogFile.Record> records = new ArrayList<>();
+    Commit commit;
+
+    while ((commit = m_state.pending.poll()) != null)
+    {
+      commits.add(commit);
+      records.addAll(commit.records);
+    }
+
+    if (commits.isEmpty())
+    {
+      return;
+    }
+
+    try
+    {
+      synchronized (LOCK)
+      {
+        try(final FileLock lock = lockFile(false))
+        {
+          refresh();
+          apply(records);
+        }
+      }
+    }
+    catch (Exception ex)
+    {
+      for (Commit failed : commits)
+      {
+        failed.done.completeExceptionally(ex);
+      }
+      return;
+    }
 
-    map.remove(key);
-    serialize(map);
+    for (Commit written : commits)
+    {
+      written.done.complete(null);
+    }
+  }
+
+  /**
+   * Aplicar os registros ao arquivo e ao mapa em memória, na ordem especificada.
+   *
+   * Remoções de keys ausentes são descartadas. No modo Mode.LOG, os registros restantes são anexados com uma única escrita; no modo Mode.SNAPSHOT, o mapa é serializado uma única vez.
+   *
+   * Deve ser invocado com LOCK e com o lock exclusivo.
+   *
+   * @param records
+   */
+  private void apply(final List<ReminderLogFile.Record> records)
+  {
+    final HashMap<String,Boolean> present = new HashMap<>();
+    final ArrayList<ReminderLogFile.Record> effective = new ArrayList<>(records.size());
+
+    for (ReminderLogFile.Record record : records)
+    {
+      final boolean exists = present.containsKey(record.key) ? present.get(record.key) : m_state.index.containsKey(record.key);
+
+      if (record.operation == ReminderLogFile.RECORD_REMOVE && !exists)
+      {
+        continue;
+      }
+
+      effective.add(record);
+      present.put(record.key, record.operation == ReminderLogFile.RECORD_PUT);
+    }
+
+    if (effective.isEmpty())
+    {
+      return;
+    }
+
+    if (m_mode == Mode.LOG)
+    {
+      appendRecords(effective);
+      return;
+    }
+
+    final HashMap<String,LocationReminderDetails> map = new HashMap<>(m_state.index);
+
+    for (ReminderLogFile.Record record : effective)
+    {
+      if (record.operation == ReminderLogFile.RECORD_PUT)
+      {
+        map.put(record.key, record.details);
+      }
+      else
+      {
+        map.remove(record.key);
+      }
+    }
+
+    writeSnapshot(m_file, map);
+    m_state.index = map;
+    m_state.stamp(m_file);
+  }
+
+  /**
+   * Obter o lock entre processos do arquivo.
+   *
+   * Deve ser invocado com LOCK, pois FileChannel não permite que duas threads do mesmo processo mantenham locks sobrepostos. Pelo mesmo motivo, não é reentrante: o lock deve ser liberado antes de ser obtido novamente.
+   *
+   * @param shared true para o lock compartilhado dos leitores, false para o lock exclusivo dos escritores.
+   *
+   * @return o lock, que deve ser liberado pelo chamador.
+   *
+   * @throws IOException
+   * @throws IllegalStateException se o lock já estiver mantido por este processo.
+   */
+  private FileLock lockFile(final boolean shared) throws IOException
+  {
+    if (s_heldLock != null && s_heldLock.isValid())
+    {
+      throw new IllegalStateException("The reminder storage file lock is already held.");
+    }
+
+    final String path = m_file.getAbsolutePath() + LOCK_SUFFIX;
+    FileChannel channel = LOCK_CHANNELS.get(path);
+
+    if (channel == null)
+    {
+      channel = new RandomAccessFile(path, "rw").getChannel();
+      LOCK_CHANNELS.put(path, channel);
+    }
+
+    s_heldLock = channel.lock(0, Long.MAX_VALUE, shared);
+
+    return s_heldLock;
+  }
+
+  /**
+   * Verificar se o lock exclusivo está mantido por este processo.
+   *
+   * Deve ser invocado com LOCK.
+   *
+   * @return true se mantido.
+   */
+  private static boolean isExclusivelyLocked()
+  {
+    return s_heldLock != null && s_heldLock.isValid() && !s_heldLock.isShared();
+  }
+
+  /**
+   * Recarregar o mapa em memória com o lock compartilhado, caso o arquivo tenha sido modificado fora deste processo.
+   *
+   * Se o mapa estiver atualizado, nenhum lock é obtido.
+   *
+   * Deve ser invocado com LOCK.
+   *
+   * @throws RuntimeException
+   */
+  private void refreshShared()
+  {
+    if (m_state.loaded && m_file.length() == m_state.length && m_file.lastModified() == m_state.lastModified)
+    {
+      return;
+    }
+
+    try(final FileLock lock = lockFile(true))
+    {
+      refresh();
+    }
+    catch (IOException ex)
+    {
+      throw new RuntimeException(ex);
+    }
+  }
+
+  /**
+   * Recarregar o mapa em memória caso o arquivo tenha sido modificado fora deste processo.
+   *
+   * Se apenas novos registros foram anexados ao log, somente eles são lidos.
+   *
+   * Deve ser invocado com LOCK.
+   *
+   * @throws RuntimeException
+   */
+  private void refresh()
+  {
+    if (!m_state.loaded)
+    {
+      try
+      {
+        replayLog(false);
+      }
+      catch (IOException ex)
+      {
+        throw new RuntimeException(ex);
+      }
+      return;
+    }
+
+    if (m_file.length() == m_state.length && m_file.lastModified() == m_state.lastModified)
+    {
+      return;
+    }
+
+    try
+    {
+      if (m_mode == Mode.SNAPSHOT)
+      {
+        m_state.index = readSnapshot(m_file);
+        m_state.stamp(m_file);
+        return;
+      }
+
+      replayLog(m_file.length() > m_state.length && m_log.readGeneration() == m_state.generation);
+    }
+    catch (IOException ex)
+    {
+      throw new RuntimeException(ex);
+    }
+  }
+
+  /**
+   * Reconstruir o mapa em memória a partir do log.
+   *
+   * Um registro incompleto ou com CRC inválido no final do log (por exemplo, uma escrita interrompida) é ignorado, assim como os seguintes, e é descartado do arquivo apenas com o lock exclusivo. Da mesma forma, o índice só é reconstruído com o lock exclusivo.
+   *
+   * Deve ser invocado com LOCK e com um lock do arquivo.
+   *
+   * @param incremental se true, apenas os registros posteriores ao tamanho já conhecido do log são aplicados ao mapa atual.
+   *
+   * @throws IOException
+   */
+  private void replayLog(final boolean incremental) throws IOException
+  {
+    final ReminderLogFile.Replay replay = incremental
+            ? m_log.replayAppended(m_state.index, m_state.length, m_state.generation, m_state.totalRecords)
+            : m_log.replay(s_indexEnabled);
+    final HashMap<String,long[]> offsets = replay.offsets;
+    final long generation = replay.generation;
+    final long validLength = replay.length;
+    final boolean exclusive = isExclusivelyLocked();
+
+    if (validLength != m_file.length() && exclusive)
+    {
+      m_log.truncate(validLength);
+    }
+
+    m_state.index = replay.index;
+    m_state.generation = generation;
+    m_state.totalRecords = replay.totalRecords;
+    m_state.loaded = true;
+    m_state.stamp(m_file);
+    m_state.length = validLength;
+
+    if (!exclusive)
+    {
+      return;
+    }
+
+    if (!s_indexEnabled)
+    {
+      discardIndex();
+      return;
+    }
+
+    final ReminderIndexFile indexFile = index();
+
+    if (indexFile.isValidFor(generation, validLength))
+    {
+      return;
+    }
+
+    if (offsets != null)
+    {
+      indexFile.rebuild(offsets, generation, validLength);
+    }
+    else
+    {
+      replayLog(false);
+    }
+  }
+
+  /**
+   * Reescrever o log contendo apenas os pares especificados.
+   *
+   * O novo log é escrito em um arquivo temporário que, após o fsync, substitui o atual com uma renomeação atômica.
+   *
+   * Deve ser invocado com LOCK.
+   *
+   * @param states
+   * @param generation
+   *
+   * @throws RuntimeException
+   */
+  private void rewriteLog(final Map<String,LocationReminderDetails> states, final long generation)
+  {
+    final HashMap<String,LocationReminderDetails> index = new HashMap<>(states);
+    final HashMap<String,long[]> offsets = new HashMap<>();
+
+    try
+    {
+      final long length = m_log.writeTemporary(index, generation, offsets);
+
+      if (s_indexEnabled)
+      {
+        index().invalidate();
+      }
+
+      m_log.replaceWithTemporary();
+
+      m_state.index = index;
+      m_state.generation = generation;
+      m_state.totalRecords = index.size();
+      m_state.loaded = true;
+      m_state.stamp(m_file);
+
+      if (s_indexEnabled)
+      {
+        index().rebuild(offsets, generation, length);
+      }
+      else
+      {
+        discardIndex();
+      }
+    }
+    catch (IOException ex)
+    {
+      throw new RuntimeException(ex);
+    }
+  }
+
+  /**
+   * Anexar os registros especificados ao final do log, com uma única escrita e um único fsync, e aplicá-los ao mapa em memória, na ordem especificada.
+   *
+   * Deve ser invocado com LOCK e com o lock exclusivo.
+   *
+   * @param records
+   *
+   * @throws RuntimeException
+   */
+  private void appendRecords(final List<ReminderLogFile.Record> records)
+  {
+    final long start = m_state.length;
+
+    try
+    {
+      final ReminderIndexFile indexFile = s_indexEnabled ? index() : null;
+      final boolean indexed = indexFile != null && indexFile.isValidFor(m_state.generation, start);
+
+      if (indexFile != null)
+      {
+        indexFile.invalidate();
+      }
+      else
+      {
+        discardIndex();
+      }
+
+      final long[] lengths = m_log.append(records);
+
+      long offset = start;
+
+      if (indexed)
+      {
+        try(final RandomAccessFile log = new RandomAccessFile(m_file, "r"))
+        {
+          int i = 0;
+
+          for (ReminderLogFile.Record record : records)
+          {
+            if (record.operation == ReminderLogFile.RECORD_PUT)
+            {
+              indexFile.put(record.key, offset, (int) lengths[i], ReminderLogFile.matcherFor(record.key, log));
+            }
+            else
+            {
+              indexFile.remove(record.key, ReminderLogFile.matcherFor(record.key, log));
+            }
+
+            offset += lengths[i++];
+          }
+        }
+
+        indexFile.commit(m_state.generation, offset);
+      }
+    }
+    catch (IOException ex)
+    {
+      throw new RuntimeException(ex);
+    }
+
+    for (ReminderLogFile.Record record : records)
+    {
+      if (record.operation == ReminderLogFile.RECORD_PUT)
+      {
+        m_state.index.put(record.key, record.details);
+      }
+      else
+      {
+        m_state.index.remove(record.key);
+      }
+    }
+
+    m_state.totalRecords += records.size();
+    m_state.stamp(m_file);
+  }
+
+  /**
+   * Obter o índice do arquivo, abrindo-o se necessário.
+   *
+   * Deve ser invocado com LOCK.
+   *
+   * @return o índice.
+   *
+   * @throws IOException
+   */
+  private ReminderIndexFile index() throws IOException
+  {
+    if (m_state.indexFile == null)
+    {
+      m_state.indexFile = new ReminderIndexFile(new File(m_file.getParentFile(), FILE_NAME + INDEX_SUFFIX));
+      m_state.indexDiscarded = false;
+    }
+
+    return m_state.indexFile;
+  }
+
+  /**
+   * Fechar e apagar o arquivo do índice, caso exista.
+   *
+   * Deve ser invocado com LOCK.
+   *
+   * @throws IOException
+   */
+  private void discardIndex() throws IOException
+  {
+    if (m_state.indexFile != null)
+    {
+      m_state.indexFile.close();
+      m_state.indexFile = null;
+    }
+
+    if (!m_state.indexDiscarded)
+    {
+      new File(m_file.getParentFile(), FILE_NAME + INDEX_SUFFIX).delete();
+      m_state.indexDiscarded = true;
+    }
+  }
+
+  /**
+   * Agendar a compactação do log em background, caso a proporção de registros obsoletos tenha alcançado o limite.
+   */
+  private void scheduleCompactionIfNeeded()
+  {
+    if (m_mode != Mode.LOG)
+    {
+      return;
+    }
+
+    final int total;
+    final int live;
+
+    synchronized (LOCK)
+    {
+      total = m_state.totalRecords;
+      live = m_state.index.size();
+    }
+
+    if (total < MIN_RECORDS_FOR_COMPACTION || (double) (total - live) / total < s_compactionGarbageRatio)
+    {
+      return;
+    }
+
+    COMPACTION_EXECUTOR.execute(this::compact);
+  }
+
+  /**
+   * Verificar se o arquivo especificado está no formato de Mode.SNAPSHOT.
+   *
+   * @param file
+   *
+   * @return true se o arquivo inicia com o cabeçalho de um ObjectOutputStream.
+   *
+   * @throws IOException
+   */
+  private static boolean isSnapshotFile(final File file) throws IOException
+  {
+    try(final FileInputStream stream = new FileInputStream(file))
+    {
+      return stream.read() == 0xAC && stream.read() == 0xED;
+    }
+  }
+
+  /**
+   * Desserializar um mapa no formato de Mode.SNAPSHOT.
+   *
+   * @param file
+   *
+   * @return o mapa.
+   *
+   * @throws RuntimeException
+   */
+  private static HashMap<String,LocationReminderDetails> readSnapshot(final File file)
+  {
+    try(final FileInputStream stream = new FileInputStream(file))
+    {
+      if (stream.available() == 0)
+      {
+        return new HashMap<>();
+      }
+
+      final ObjectInputStream objectStream = new ObjectInputStream(stream);
+      return (HashMap<String,LocationReminderDetails>) objectStream.readObject();
+    }
+    catch(Exception ex)
+    {
+      throw new RuntimeException(ex);
+    }
+  }
+
+  /**
+   * Serializar um mapa no formato de Mode.SNAPSHOT.
+   *
+   * O mapa é escrito em um arquivo temporário que, após o fsync, substitui o atual com uma renomeação atômica.
+   *
+   * @param file
+   * @param states
+   *
+   * @throws RuntimeException
+   */
+  private static void writeSnapshot(final File file, final Map<String,LocationReminderDetails> states)
+  {
+    final File temporary = new File(file.getParentFile(), file.getName() + TEMPORARY_SUFFIX);
+
+    try
+    {
+      try(final FileOutputStream output = new FileOutputStream(temporary, false))
+      {
+        final ObjectOutputStream buffer = new ObjectOutputStream(new BufferedOutputStream(output));
+
+        buffer.writeObject(states instanceof HashMap ? states : new HashMap<>(states));
+        buffer.flush();
+        output.getFD().sync();
+      }
+
+      if (!temporary.renameTo(file))
+      {
+        throw new RuntimeException("Unable to replace the reminder storage file.");
+      }
+
+      syncDirectory(file.getParentFile());
+    }
+    catch(IOException ex)
+    {
+      throw new RuntimeException(ex);
+    }
+  }
+
+  /**
+   * Fazer o fsync do diretório especificado, de forma que uma renomeação nele seja durável.
+   *
+   * Em sistemas de arquivos que não permitem abrir diretórios, é noop.
+   *
+   * @param directory
+   */
+  static void syncDirectory(final File directory)
+  {
+    try(final FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ))
+    {
+      channel.force(true);
+    }
+    catch (IOException ex)
+    {
+      // A renomeação continua atômica, apenas a sua durabilidade depende do sistema de arquivos.
+    }
   }
 
   /**
@@ -159,6 +1190,22 @@ public class ReminderLocalStorage {
   }
 
   private static String FILE_NAME = "reminderStateLocalStorage";
+  private static final String TEMPORARY_SUFFIX = ".tmp";
+  private static final String INDEX_SUFFIX = ".idx";
+  private static final String LOCK_SUFFIX = ".lock";
+  private static final int MIN_RECORDS_FOR_COMPACTION = 64;
+  private static final Object LOCK = new Object();
+  private static final HashMap<String,State> STATES = new HashMap<>();
+  private static final HashMap<String,FileChannel> LOCK_CHANNELS = new HashMap<>();
+  private static final ExecutorService COMPACTION_EXECUTOR = Executors.newSingleThreadExecutor();
+  private static final ExecutorService WRITE_EXECUTOR = Executors.newSingleThreadExecutor();
+  private static FileLock s_heldLock = null;
+  private static ReminderLocalStorage s_instance = null;
+  private static volatile double s_compactionGarbageRatio = 0.5;
+  private static volatile boolean s_indexEnabled = false;
+  private final Mode m_mode;
+  private final State m_state;
   private File m_file;
+  private final ReminderLogFile m_log;
   private Context m_context;
 }
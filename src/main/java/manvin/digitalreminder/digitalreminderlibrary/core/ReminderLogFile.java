@@ -0,0 +1,537 @@
+package manvin.digitalreminder.digitalreminderlibrary.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Classe que representa o arquivo de log de ReminderLocalStorage no modo Mode.LOG.
+ *
+ * O log inicia com um cabeçalho (magic, versão e geração), seguido dos registros. Cada registro guarda a operação (anexo ou remoção), o id, os detalhes no formato de LocationReminderDetailsCodec prefixados pelo seu tamanho e um CRC32. A geração é incrementada sempre que o log é reescrito, de forma que um leitor possa distinguir um log reescrito de um log ao qual apenas foram anexados registros.
+ *
+ * A leitura do log (replay) termina no primeiro registro incompleto ou com CRC inválido. Os anexos são escritos com uma única escrita e um único fsync, e a reescrita (compactação) é feita em um arquivo temporário que, após o fsync, substitui o log com uma renomeação atômica.
+ *
+ * Esta classe não é thread-safe, e não obtém locks: ReminderLocalStorage é responsável pela sincronização entre threads e entre processos.
+ */
+final class ReminderLogFile {
+
+  /**
+   * Classe que representa um anexo ou uma remoção.
+   */
+  static final class Record
+  {
+    Record(final byte operation, final String key, final LocationReminderDetails details)
+    {
+      this.operation = operation;
+      this.key = key;
+      this.details = details;
+    }
+
+    final byte operation;
+    final String key;
+    final LocationReminderDetails details;
+  }
+
+  /**
+   * Classe que representa o resultado da leitura do log.
+   */
+  static final class Replay
+  {
+    Replay(final HashMap<String,LocationReminderDetails> index, final HashMap<String,long[]> offsets)
+    {
+      this.index = index;
+      this.offsets = offsets;
+    }
+
+    /**
+     * Mapa dos ids para os seus detalhes mais recentes.
+     */
+    final HashMap<String,LocationReminderDetails> index;
+    /**
+     * Mapa dos ids para o offset e o tamanho do seu registro mais recente, ou null se não foi coletado.
+     */
+    final HashMap<String,long[]> offsets;
+    long generation;
+    /**
+     * Tamanho do log até o último registro íntegro.
+     */
+    long length;
+    int totalRecords;
+  }
+
+  /**
+   * Exceção lançada quando o índice aponta para um registro que não corresponde ao log, de forma que o log deve ser lido.
+   */
+  static final class StaleIndexException extends IOException
+  {
+    StaleIndexException()
+    {
+      super("The reminder index does not match the log.");
+    }
+  }
+
+  /**
+   * Construir um log a partir do arquivo especificado.
+   *
+   * @param file
+   */
+  ReminderLogFile(final File file)
+  {
+    m_file = file;
+    m_temporary = new File(file.getParentFile(), file.getName() + TEMPORARY_SUFFIX);
+  }
+
+  /**
+   * Ler todo o log.
+   *
+   * @param collectOffsets se true, o offset e o tamanho do registro mais recente de cada id também são coletados.
+   *
+   * @return o resultado.
+   *
+   * @throws IOException se o arquivo não for um log.
+   */
+  Replay replay(final boolean collectOffsets) throws IOException
+  {
+    return read(new Replay(new HashMap<>(), collectOffsets ? new HashMap<>() : null), false);
+  }
+
+  /**
+   * Ler apenas os registros anexados ao log após o tamanho especificado, aplicando-os ao mapa especificado.
+   *
+   * @param index mapa que reflete o log até o tamanho especificado, que é modificado.
+   * @param length
+   * @param generation
+   * @param totalRecords quantidade de registros do log até o tamanho especificado.
+   *
+   * @return o resultado.
+   *
+   * @throws IOException
+   */
+  Replay replayAppended(final HashMap<String,LocationReminderDetails> index, final long length, final long generation, final int totalRecords) throws IOException
+  {
+    final Replay replay = new Replay(index, null);
+
+    replay.length = length;
+    replay.generation = generation;
+    replay.totalRecords = totalRecords;
+
+    return read(replay, true);
+  }
+
+  /**
+   * Descartar tudo o que estiver após o tamanho especificado, por exemplo, um registro interrompido.
+   *
+   * @param length
+   *
+   * @throws IOException
+   */
+  void truncate(final long length) throws IOException
+  {
+    try(final RandomAccessFile file = new RandomAccessFile(m_file, "rw"))
+    {
+      file.setLength(length);
+    }
+  }
+
+  /**
+   * Anexar os registros especificados ao final do log, com uma única escrita e um único fsync.
+   *
+   * @param records
+   *
+   * @return o tamanho de cada registro, na ordem especificada.
+   *
+   * @throws IOException
+   */
+  long[] append(final List<Record> records) throws IOException
+  {
+    final long[] lengths = new long[records.size()];
+
+    try(final FileOutputStream output = new FileOutputStream(m_file, true))
+    {
+      final DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(output));
+      int i = 0;
+
+      for (Record record : records)
+      {
+        lengths[i++] = writeRecord(stream, record.operation, record.key, record.details);
+      }
+
+      stream.flush();
+      output.getFD().sync();
+    }
+
+    return lengths;
+  }
+
+  /**
+   * Escrever, no arquivo temporário, um novo log contendo apenas os pares especificados, e fazer o seu fsync.
+   *
+   * O log só é substituído por replaceWithTemporary.
+   *
+   * @param states
+   * @param generation
+   * @param offsets mapa que recebe o offset e o tamanho do registro de cada id.
+   *
+   * @return o tamanho do novo log.
+   *
+   * @throws IOException
+   */
+  long writeTemporary(final Map<String,LocationReminderDetails> states, final long generation, final Map<String,long[]> offsets) throws IOException
+  {
+    long length = HEADER_LENGTH;
+
+    try(final FileOutputStream output = new FileOutputStream(m_temporary, false))
+    {
+      final DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(output));
+
+      stream.writeInt(MAGIC);
+      stream.writeByte(VERSION);
+      stream.writeLong(generation);
+
+      for (Map.Entry<String,LocationReminderDetails> entry : states.entrySet())
+      {
+        final long recordLength = writeRecord(stream, RECORD_PUT, entry.getKey(), entry.getValue());
+
+        offsets.put(entry.getKey(), new long[] {length, recordLength});
+        length += recordLength;
+      }
+
+      stream.flush();
+      output.getFD().sync();
+    }
+
+    return length;
+  }
+
+  /**
+   * Substituir o log pelo arquivo temporário escrito por writeTemporary, com uma renomeação atômica.
+   *
+   * @throws RuntimeException se o arquivo não puder ser substituído.
+   */
+  void replaceWithTemporary()
+  {
+    if (!m_temporary.renameTo(m_file))
+    {
+      throw new RuntimeException("Unable to replace the reminder storage file.");
+    }
+
+    ReminderLocalStorage.syncDirectory(m_file.getParentFile());
+  }
+
+  /**
+   * Ler a geração registrada no cabeçalho do log.
+   *
+   * @return a geração, ou -1 se o cabeçalho estiver incompleto.
+   *
+   * @throws IOException
+   */
+  long readGeneration() throws IOException
+  {
+    try(final DataInputStream stream = new DataInputStream(new FileInputStream(m_file)))
+    {
+      stream.readInt();
+      stream.readByte();
+      return stream.readLong();
+    }
+    catch (EOFException ex)
+    {
+      return -1;
+    }
+  }
+
+  /**
+   * Verificar se o log foi escrito em uma versão anterior do formato, cujos registros não podem ser misturados aos novos.
+   *
+   * @return true se o log deve ser reescrito.
+   *
+   * @throws IOException
+   */
+  boolean isOutdated() throws IOException
+  {
+    try(final DataInputStream stream = new DataInputStream(new FileInputStream(m_file)))
+    {
+      stream.readInt();
+      return stream.readByte() < VERSION;
+    }
+    catch (EOFException ex)
+    {
+      return true;
+    }
+  }
+
+  /**
+   * Ler do log, por meio do índice, os detalhes da key especificada.
+   *
+   * @param indexFile
+   * @param log
+   * @param key
+   *
+   * @return os detalhes, ou null se a key não estiver presente.
+   *
+   * @throws StaleIndexException se o registro apontado pelo índice não for um registro íntegro da key.
+   * @throws IOException
+   */
+  static LocationReminderDetails readIndexed(final ReminderIndexFile indexFile, final RandomAccessFile log, final String key) throws IOException
+  {
+    final long[] position = indexFile.find(key, matcherFor(key, log));
+
+    if (position == null)
+    {
+      return null;
+    }
+
+    try
+    {
+      log.seek(position[0]);
+
+      final byte operation = log.readByte();
+      final String recordKey = log.readUTF();
+      final int payloadLength = log.readInt();
+
+      if (operation != RECORD_PUT || !key.equals(recordKey) || payloadLength < 0
+              || recordLength(recordKey, payloadLength, true) != position[1] || position[0] + position[1] > log.length())
+      {
+        throw new StaleIndexException();
+      }
+
+      final byte[] payload = new byte[payloadLength];
+      log.readFully(payload);
+
+      if (log.readInt() != checksum(operation, recordKey, payload))
+      {
+        throw new StaleIndexException();
+      }
+
+      return LocationReminderDetailsCodec.decode(payload);
+    }
+    catch (EOFException ex)
+    {
+      throw new StaleIndexException();
+    }
+  }
+
+  /**
+   * Obter um RecordMatcher que confirma se um registro do log pertence a key especificada.
+   *
+   * @param key
+   * @param log
+   *
+   * @return o matcher.
+   */
+  static ReminderIndexFile.RecordMatcher matcherFor(final String key, final RandomAccessFile log)
+  {
+    return (offset, length) ->
+    {
+      try
+      {
+        log.seek(offset + 1);
+        return key.equals(log.readUTF());
+      }
+      catch (EOFException ex)
+      {
+        return false;
+      }
+    };
+  }
+
+  /**
+   * Ler os registros do log, a partir do cabeçalho ou do tamanho já lido, até o primeiro registro incompleto ou corrompido.
+   *
+   * @param replay resultado que recebe os registros lidos.
+   * @param appended se true, a leitura começa no tamanho do resultado, e os registros são considerados no formato atual.
+   *
+   * @return o resultado.
+   *
+   * @throws IOException
+   */
+  private Replay read(final Replay replay, final boolean appended) throws IOException
+  {
+    final long fileLength = m_file.length();
+    boolean checksummed = true;
+
+    try(final FileInputStream file = new FileInputStream(m_file))
+    {
+      final DataInputStream stream;
+
+      if (appended)
+      {
+        file.getChannel().position(replay.length);
+        stream = new DataInputStream(new BufferedInputStream(file));
+      }
+      else
+      {
+        stream = new DataInputStream(new BufferedInputStream(file));
+
+        if (stream.readInt() != MAGIC)
+        {
+          throw new IOException("Unknown reminder storage format.");
+        }
+
+        checksummed = stream.readByte() >= VERSION_CHECKSUM;
+        replay.generation = stream.readLong();
+        replay.length = HEADER_LENGTH;
+      }
+
+      while (true)
+      {
+        final byte operation;
+        final String key;
+        final byte[] payload;
+
+        try
+        {
+          operation = stream.readByte();
+          key = stream.readUTF();
+
+          final int payloadLength = stream.readInt();
+
+          if (payloadLength < 0 || replay.length + recordLength(key, payloadLength, checksummed) > fileLength)
+          {
+            break;
+          }
+
+          payload = new byte[payloadLength];
+          stream.readFully(payload);
+
+          if (checksummed && stream.readInt() != checksum(operation, key, payload))
+          {
+            break;
+          }
+        }
+        catch (EOFException ex)
+        {
+          break;
+        }
+
+        final long length = recordLength(key, payload.length, checksummed);
+
+        if (operation == RECORD_PUT)
+        {
+          replay.index.put(key, LocationReminderDetailsCodec.decode(payload));
+        }
+        else
+        {
+          replay.index.remove(key);
+        }
+
+        if (replay.offsets != null)
+        {
+          if (operation == RECORD_PUT)
+          {
+            replay.offsets.put(key, new long[] {replay.length, length});
+          }
+          else
+          {
+            replay.offsets.remove(key);
+          }
+        }
+
+        replay.totalRecords++;
+        replay.length += length;
+      }
+    }
+
+    return replay;
+  }
+
+  /**
+   * Escrever um registro do log.
+   *
+   * @param stream
+   * @param operation
+   * @param key
+   * @param details
+   *
+   * @return a quantidade de bytes escritos.
+   *
+   * @throws IOException
+   */
+  private static long writeRecord(final DataOutputStream stream, final byte operation, final String key, final LocationReminderDetails details) throws IOException
+  {
+    final byte[] payload = details == null ? new byte[0] : LocationReminderDetailsCodec.encode(details);
+
+    stream.writeByte(operation);
+    stream.writeUTF(key);
+    stream.writeInt(payload.length);
+    stream.write(payload);
+    stream.writeInt(checksum(operation, key, payload));
+
+    return recordLength(key, payload.length, true);
+  }
+
+  /**
+   * Calcular o CRC32 de um registro.
+   *
+   * @param operation
+   * @param key
+   * @param payload
+   *
+   * @return o CRC32.
+   */
+  private static int checksum(final byte operation, final String key, final byte[] payload)
+  {
+    final CRC32 crc = new CRC32();
+
+    crc.update(operation);
+    crc.update(key.getBytes(StandardCharsets.UTF_8));
+    crc.update(payload);
+
+    return (int) crc.getValue();
+  }
+
+  /**
+   * Calcular o tamanho em bytes de um registro.
+   *
+   * @param key
+   * @param payloadLength
+   * @param checksummed se o registro termina com um CRC32.
+   *
+   * @return o tamanho do registro.
+   */
+  private static long recordLength(final String key, final int payloadLength, final boolean checksummed)
+  {
+    int keyLength = 0;
+
+    for (int i = 0; i < key.length(); i++)
+    {
+      final char c = key.charAt(i);
+
+      if (c >= 0x0001 && c <= 0x007F)
+      {
+        keyLength += 1;
+      }
+      else if (c > 0x07FF)
+      {
+        keyLength += 3;
+      }
+      else
+      {
+        keyLength += 2;
+      }
+    }
+
+    return 1 + 2 + keyLength + 4 + payloadLength + (checksummed ? 4 : 0);
+  }
+
+  static final byte RECORD_PUT = 1;
+  static final byte RECORD_REMOVE = 2;
+  private static final String TEMPORARY_SUFFIX = ".tmp";
+  private static final int MAGIC = 0x44524C4C;
+  private static final byte VERSION = 2;
+  private static final byte VERSION_CHECKSUM = 2;
+  private static final int HEADER_LENGTH = 4 + 1 + 8;
+  private final File m_file;
+  private final File m_temporary;
+}
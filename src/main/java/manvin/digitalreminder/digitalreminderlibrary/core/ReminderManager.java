@@ -9,6 +9,7 @@ import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.location.Location;
 import android.os.Parcelable;
+import android.os.SystemClock;
 import android.util.Log;
 import android.util.Pair;
 
@@ -19,6 +20,8 @@ import com.google.android.gms.location.Geofence;
 import com.google.android.gms.location.GeofencingClient;
 import com.google.android.gms.location.GeofencingRequest;
 import com.google.android.gms.location.LocationServices;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
 import manvin.digitalreminder.digitalreminderlibrary.broadcasts.LocationReminderBroadcast;
 import manvin.digitalreminder.digitalreminderlibrary.broadcasts.TimeLocationReminderDispatcherBroadcast;
 import manvin.digitalreminder.digitalreminderlibrary.broadcasts.TimeReminderBroadcast;
@@ -26,13 +29,28 @@ import manvin.digitalreminder.digitalreminderlibrary.broadcasts.TimeReminderBroa
 import java.io.IOException;
 import java.io.Serializable;
 import java.time.LocalTime;
+import java.time.ZoneId;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Classe que representa um gerenciador de lembretes, abstraindo o controle sobre seu ciclo de vida.
  *
- * Esta classe usa File IO para armazenar algumas informações dos lembretes registrados, o que pode funcionar de forma inesperada se diferentes threads a usarem ao mesmo tempo. Assim, esta classe não é thread-safe.
+ * Esta classe usa ReminderLocalStorage para armazenar os lembretes registrados, que pode ser usado ao mesmo tempo por diferentes threads e processos (por exemplo, por um Broadcast em execução enquanto a aplicação registra um lembrete).
+ *
+ * Os métodos com sufixo Async executam a mesma operação em um executor serial dedicado, fora da thread que os invoca, e podem ser usados a partir da thread principal. As versões síncronas bloqueiam até que ReminderLocalStorage tenha escrito os lembretes, e não devem ser invocadas a partir da thread principal.
  */
 public class ReminderManager {
 
@@ -50,6 +68,21 @@ public class ReminderManager {
     Saturday,
   }
 
+  /**
+   * Enum que especifica como os alarmes de lembretes baseados no tempo são armados.
+   */
+  public enum SchedulerMode
+  {
+    /**
+     * Cada lembrete arma o seu próprio alarme exato.
+     */
+    PER_REMINDER,
+    /**
+     * Todos os lembretes são mantidos por ReminderScheduler, que arma apenas o alarme mais próximo.
+     */
+    SINGLE_ALARM,
+  }
+
   /**
    * Interface que representa um Listener para lembretes baseado no tempo.
    */
@@ -105,6 +138,18 @@ public class ReminderManager {
     m_context = context;
   }
 
+  /**
+   * Definir como os alarmes dos próximos lembretes baseados no tempo registrados serão armados.
+   *
+   * Lembretes já registrados não são afetados.
+   *
+   * @param mode
+   */
+  public static void setSchedulerMode(@NonNull final SchedulerMode mode)
+  {
+    s_schedulerMode = mode;
+  }
+
   /**
    * Registrar um lembrete baseado no tempo.
    *
@@ -117,21 +162,158 @@ public class ReminderManager {
    * @param time
    * @param listener
    */
-  @SuppressLint("MissingPermission")
   public void registerTimeReminder(final String id, final DayOfWeek dayOfWeek, @NonNull final LocalTime time, @NonNull final TimeReminderListener listener)
   {
-    final AlarmManager alarmManager = (AlarmManager) m_context.getSystemService(Context.ALARM_SERVICE);
-    final Intent intent = new Intent(m_context, TimeReminderBroadcast.class);
+    registerTimeReminder(id, EnumSet.of(dayOfWeek), time, listener);
+  }
+
+  /**
+   * Registrar um lembrete baseado no tempo que se repete nos dias da semana especificados.
+   *
+   * Um único alarme cobre todos os dias: quando o lembrete é acionado, o alarme é armado para o próximo dia do conjunto.
+   *
+   * Quando o lembrete for acionado, o listener é notificado com o dia da semana atual.
+   *
+   * Note que o listener tem de ser Parcelable.
+   *
+   * @param id
+   * @param daysOfWeek
+   * @param time
+   * @param listener
+   */
+  public void registerTimeReminder(final String id, @NonNull final EnumSet<DayOfWeek> daysOfWeek, @NonNull final LocalTime time, @NonNull final TimeReminderListener listener)
+  {
+    registerTimeReminder(id, daysOfWeek, time, listener, 0);
+  }
+
+  /**
+   * Registrar um lembrete baseado no tempo que se repete nos dias da semana especificados e que tolera ser acionado antes ou depois do horário.
+   *
+   * Com tolerância, o alarme é armado com uma janela em vez de exato, e o sistema pode acioná-lo junto a outros alarmes. Com SchedulerMode.SINGLE_ALARM, ReminderScheduler agrupa em um único acionamento os lembretes cujas janelas se intersectam.
+   *
+   * Note que alarmes com janela não são acionados enquanto o dispositivo está em Doze.
+   *
+   * Os detalhes do lembrete são guardados em ReminderLocalStorage, e o alarme carrega apenas o id. O listener é guardado pela sua chave em ListenerRegistry, caso implemente ListenerRegistry.Keyed, pelo nome da sua classe, caso implemente ListenerRegistry.Stateless, ou como um Parcel serializado.
+   *
+   * @param id
+   * @param daysOfWeek
+   * @param time
+   * @param listener
+   * @param toleranceInMs quanto o lembrete pode ser acionado antes ou depois do horário, no máximo MAX_TIME_REMINDER_TOLERANCE_IN_MS, ou 0 para um alarme exato.
+   *
+   * @throws IllegalArgumentException se a tolerância for inválida.
+   */
+  @SuppressLint("MissingPermission")
+  public void registerTimeReminder(final String id, @NonNull final EnumSet<DayOfWeek> daysOfWeek, @NonNull final LocalTime time, @NonNull final TimeReminderListener listener, final int toleranceInMs)
+  {
+    checkTolerance(toleranceInMs);
+
+    if (s_schedulerMode == SchedulerMode.SINGLE_ALARM)
+    {
+      new ReminderScheduler(m_context).scheduleTimeReminder(id, toDaysOfWeekMask(daysOfWeek), time, listener, toleranceInMs);
+      return;
+    }
+
+    final LocationReminderDetails details = new LocationReminderDetails(daysOfWeek, time, toleranceInMs, listener);
+
+    try
+    {
+      ReminderLocalStorage.getInstance(m_context).append(new Pair<>(id, details));
+    }
+    catch (IOException ex)
+    {
+      throw new RuntimeException(ex);
+    }
+
+    armTimeReminder(m_context, id, details);
+  }
+
+  /**
+   * Armar o alarme próprio de um lembrete baseado no tempo, na próxima ocorrência do seu horário.
+   *
+   * O Intent do alarme carrega apenas o id, e um alarme previamente armado para o mesmo id é substituído.
+   *
+   * @param context
+   * @param id
+   * @param details
+   */
+  static void armTimeReminder(final Context context, final String id, final LocationReminderDetails details)
+  {
+    final AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+    final Intent intent = new Intent(context, TimeReminderBroadcast.class);
 
     intent.setIdentifier(id);
-    intent.putExtra("dayOfWeek", dayOfWeek);
-    intent.putExtra("time", time);
-    intent.putExtra("listener", listener);
 
-    final Calendar target = getNextWeekDayAfterNow(dayOfWeek, time);
-    final PendingIntent operation = PendingIntent.getBroadcast(m_context, REQUEST_TIME_CODE, intent, REQUEST_IMMUTABLE_CREATE_FLAGS);
+    final long target = getNextOccurrenceAfterNow(details.getDaysOfWeekMask(), details.m_time);
+    final PendingIntent operation = PendingIntent.getBroadcast(context, REQUEST_TIME_CODE, intent, REQUEST_IMMUTABLE_CREATE_FLAGS);
+
+    setAlarmWindow(alarmManager, target - details.m_toleranceInMs, target + details.m_toleranceInMs, operation);
+  }
 
-    alarmManager.setExactAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, target.getTimeInMillis(), operation);
+  /**
+   * Verificar a tolerância de um lembrete baseado no tempo.
+   *
+   * @param toleranceInMs
+   *
+   * @throws IllegalArgumentException se a tolerância for inválida.
+   */
+  private static void checkTolerance(final int toleranceInMs)
+  {
+    if (toleranceInMs < 0 || toleranceInMs > MAX_TIME_REMINDER_TOLERANCE_IN_MS)
+    {
+      throw new IllegalArgumentException("Invalid tolerance: " + toleranceInMs);
+    }
+  }
+
+  /**
+   * Registrar vários lembretes baseados no tempo.
+   *
+   * É equivalente a invocar registerTimeReminder para cada lembrete, mas os detalhes de todos os lembretes são guardados em ReminderLocalStorage com uma única escrita e, com SchedulerMode.SINGLE_ALARM, agendados em ReminderScheduler com uma única persistência da fila. Todas as tolerâncias são verificadas antes de qualquer registro.
+   *
+   * @param reminders
+   *
+   * @return uma task já completa, que representa o resultado agregado dos registros.
+   *
+   * @throws IllegalArgumentException se alguma tolerância for inválida.
+   */
+  @SuppressLint("MissingPermission")
+  public Task<Void> registerTimeReminders(final Collection<TimeReminderRequest> reminders)
+  {
+    final SchedulerMode schedulerMode = s_schedulerMode;
+    final LinkedHashMap<String, LocationReminderDetails> details = new LinkedHashMap<>();
+
+    for (TimeReminderRequest reminder : reminders)
+    {
+      checkTolerance(reminder.m_toleranceInMs);
+      details.put(reminder.m_id, new LocationReminderDetails(reminder.m_daysOfWeek, reminder.m_time, reminder.m_toleranceInMs, reminder.m_listener).withSchedulerMode(schedulerMode));
+    }
+
+    if (details.isEmpty())
+    {
+      return Tasks.forResult(null);
+    }
+
+    try
+    {
+      ReminderLocalStorage.getInstance(m_context).appendAll(details);
+    }
+    catch (IOException ex)
+    {
+      throw new RuntimeException(ex);
+    }
+
+    if (schedulerMode == SchedulerMode.SINGLE_ALARM)
+    {
+      new ReminderScheduler(m_context).scheduleTimeReminders(details);
+      return Tasks.forResult(null);
+    }
+
+    for (Map.Entry<String, LocationReminderDetails> entry : details.entrySet())
+    {
+      armTimeReminder(m_context, entry.getKey(), entry.getValue());
+    }
+
+    return Tasks.forResult(null);
   }
 
   /**
@@ -146,8 +328,40 @@ public class ReminderManager {
    * @param locationDetails
    * @param listener
    */
-  @SuppressLint("MissingPermission")
   public void registerLocationReminder(final String id, final DayOfWeek dayOfWeek, final Pair<Location, String> locationDetails, final LocationReminderListener listener)
+  {
+    registerLocationReminder(id, dayOfWeek, locationDetails, listener, GeofenceParameters.DEFAULT);
+  }
+
+  /**
+   * Registrar um lembrete baseado na Localização com os parâmetros de geofence especificados.
+   *
+   * @param id
+   * @param dayOfWeek
+   * @param locationDetails
+   * @param listener
+   * @param geofenceParameters
+   */
+  public void registerLocationReminder(final String id, final DayOfWeek dayOfWeek, final Pair<Location, String> locationDetails, final LocationReminderListener listener, @NonNull final GeofenceParameters geofenceParameters)
+  {
+    registerLocationReminders(Collections.singletonList(new LocationReminderRequest(id, dayOfWeek, locationDetails, listener, geofenceParameters)));
+  }
+
+  /**
+   * Registrar vários lembretes baseados na Localização.
+   *
+   * O armazenamento é escrito apenas uma vez, e os geofences são agrupados no menor número de GeofencingRequest permitido pela plataforma.
+   *
+   * Apenas os geofences dos lembretes ativos no dia atual são armados. Os demais são armados por GeofenceRollover na virada do seu dia.
+   *
+   * Se GeofenceQuotaManager estiver habilitado, os lembretes são apenas armazenados e o conjunto armado é rebalanceado.
+   *
+   * @param reminders
+   *
+   * @return uma task que é completada quando todos os geofences forem adicionados, ou que falha se algum deles falhar.
+   */
+  @SuppressLint("MissingPermission")
+  public Task<Void> registerLocationReminders(final Collection<LocationReminderRequest> reminders)
   {
     if (ActivityCompat.checkSelfPermission(m_context, Manifest.permission.ACCESS_FINE_LOCATION) != PackageManager.PERMISSION_GRANTED
             || ActivityCompat.checkSelfPermission(m_context, Manifest.permission.ACCESS_BACKGROUND_LOCATION) != PackageManager.PERMISSION_GRANTED )
@@ -156,40 +370,48 @@ public class ReminderManager {
       throw new RuntimeException("Manifest.permission.ACCESS_FINE_LOCATION and Manifest.permission.ACCESS_BACKGROUND_LOCATION are necessary.");
     }
 
-    final Location location = locationDetails.first;
+    final HashMap<String, LocationReminderDetails> states = new HashMap<>();
+    final ArrayList<Geofence> geofences = new ArrayList<>();
+    final DayOfWeek today = getDayOfWeek();
 
-    final Geofence geofance = new Geofence.Builder()
-            .setRequestId(id)
-            .setCircularRegion(location.getLatitude(), location.getLongitude(), 1000)
-            .setExpirationDuration(Geofence.NEVER_EXPIRE)
-            .setTransitionTypes(Geofence.GEOFENCE_TRANSITION_ENTER)
-            .build();
+    for (LocationReminderRequest reminder : reminders)
+    {
+      final Location location = reminder.m_locationDetails.first;
+      final LocationReminderDetails details = new LocationReminderDetails(reminder.m_dayOfWeek, location, reminder.m_locationDetails.second, reminder.m_listener)
+              .withGeofenceParameters(reminder.m_geofenceParameters);
 
-    final GeofencingRequest.Builder operationBuilder = new GeofencingRequest.Builder();
+      states.put(reminder.m_id, details);
 
-    operationBuilder
-            .setInitialTrigger(0)
-            .addGeofence(geofance);
+      if (details.isActiveOn(today))
+      {
+        geofences.add(buildLocationGeofence(reminder.m_id, details, null));
+      }
+    }
 
     try
     {
-      final ReminderLocalStorage storage = new ReminderLocalStorage(m_context);
-      final LocationReminderDetails state = new LocationReminderDetails(dayOfWeek, locationDetails.first, locationDetails.second, listener);
+      final ReminderLocalStorage storage = ReminderLocalStorage.getInstance(m_context);
 
-      storage.append(new Pair<>(id, state));
+      storage.appendAll(states);
+      new GeofenceRollover(m_context).scheduleNext();
+
+      final GeofenceQuotaManager quotaManager = new GeofenceQuotaManager(m_context);
+
+      if (quotaManager.isEnabled())
+      {
+        return quotaManager.rebalance();
+      }
 
-      final Intent intent = new Intent(m_context, LocationReminderBroadcast.class);
       final GeofencingClient geofencingClient = LocationServices.getGeofencingClient(m_context);
+      final PendingIntent operation = getLocationReminderOperation(m_context);
+      final ArrayList<Task<Void>> tasks = new ArrayList<>();
 
-      final PendingIntent operation = PendingIntent.getBroadcast(m_context, REQUEST_LOCATION_CODE, intent, REQUEST_MUTABLE_CREATE_FLAGS);
+      for (GeofencingRequest request : buildLocationGeofencingRequests(geofences))
+      {
+        tasks.add(geofencingClient.addGeofences(request, operation));
+      }
 
-      geofencingClient.addGeofences(operationBuilder.build(), operation)
-              .addOnSuccessListener((result)->{
-                /* TODO */})
-              .addOnFailureListener((exception)->
-              {
-                /* TODO */
-              });
+      return Tasks.whenAll(tasks);
     }
     catch (Exception ex)
     {
@@ -209,24 +431,61 @@ public class ReminderManager {
    * @param locationDetails
    * @param listener
    */
-  @SuppressLint("MissingPermission")
   public void registerTimeLocationReminder(final String id, final DayOfWeek dayOfWeek, @NonNull final LocalTime time, final Pair<Location, String> locationDetails, final TimeLocationReminderListener listener)
   {
-    final AlarmManager alarmManager = (AlarmManager) m_context.getSystemService(Context.ALARM_SERVICE);
-    final Intent intent = new Intent(m_context, TimeLocationReminderDispatcherBroadcast.class);
-
-    intent.setIdentifier(id);
+    registerTimeLocationReminder(id, EnumSet.of(dayOfWeek), time, locationDetails, listener);
+  }
 
-    final Calendar target = getNextWeekDayAfterNow(dayOfWeek, time);
-    final PendingIntent operation = PendingIntent.getBroadcast(m_context, REQUEST_TIME_LOCATION_DISPATCHER_CODE, intent, REQUEST_IMMUTABLE_CREATE_FLAGS);
+  /**
+   * Registrar um lembrete baseado na Localização e no tempo que se repete nos dias da semana especificados.
+   *
+   * Apenas um registro é armazenado e um único alarme cobre todos os dias.
+   *
+   * Quando o lembrete for acionado, o listener é notificado com o dia da semana atual.
+   *
+   * Note que o listener tem de ser Parcelable.
+   * @param id
+   * @param daysOfWeek
+   * @param time
+   * @param locationDetails
+   * @param listener
+   */
+  public void registerTimeLocationReminder(final String id, @NonNull final EnumSet<DayOfWeek> daysOfWeek, @NonNull final LocalTime time, final Pair<Location, String> locationDetails, final TimeLocationReminderListener listener)
+  {
+    registerTimeLocationReminder(id, daysOfWeek, time, locationDetails, listener, GeofenceParameters.DEFAULT);
+  }
 
+  /**
+   * Registrar um lembrete baseado na Localização e no tempo com os parâmetros de geofence especificados.
+   *
+   * O alarme é armado com a antecedência de armação dos parâmetros, e o geofence temporário dura a janela de armação.
+   *
+   * @param id
+   * @param daysOfWeek
+   * @param time
+   * @param locationDetails
+   * @param listener
+   * @param geofenceParameters
+   */
+  @SuppressLint("MissingPermission")
+  public void registerTimeLocationReminder(final String id, @NonNull final EnumSet<DayOfWeek> daysOfWeek, @NonNull final LocalTime time, final Pair<Location, String> locationDetails, final TimeLocationReminderListener listener, @NonNull final GeofenceParameters geofenceParameters)
+  {
     try {
-      final ReminderLocalStorage storage = new ReminderLocalStorage(m_context);
-      final LocationReminderDetails state = new LocationReminderDetails(dayOfWeek, time, locationDetails.first, locationDetails.second, listener);
+      final SchedulerMode schedulerMode = s_schedulerMode;
+      final ReminderLocalStorage storage = ReminderLocalStorage.getInstance(m_context);
+      final LocationReminderDetails state = new LocationReminderDetails(daysOfWeek, time, locationDetails.first, locationDetails.second, listener)
+              .withGeofenceParameters(geofenceParameters)
+              .withSchedulerMode(schedulerMode);
 
       storage.append(new Pair<>(id, state));
 
-      alarmManager.setExactAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, target.getTimeInMillis(), operation);
+      if (schedulerMode == SchedulerMode.SINGLE_ALARM)
+      {
+        new ReminderScheduler(m_context).scheduleTimeLocationReminder(id, geofenceParameters.getArmingDaysOfWeekMask(toDaysOfWeekMask(daysOfWeek), time), geofenceParameters.getArmingTime(time));
+        return;
+      }
+
+      armTimeLocationReminder(m_context, id, state);
     }
     catch(Exception exception)
     {
@@ -235,20 +494,47 @@ public class ReminderManager {
   }
 
   /**
-   * Desregistra um lembrete baseado no tempo.
+   * Armar o alarme próprio de um lembrete baseado na localização e no tempo, na próxima ocorrência do seu horário de armação.
    *
-   * Caso não haja um lembrete baseado no tempo com o id especificado, este métdo é noop.
+   * Um alarme previamente armado para o mesmo id é substituído.
    *
+   * @param context
    * @param id
+   * @param details
    */
-  public void unregisterTimeReminder(final String id)
+  @SuppressLint("MissingPermission")
+  static void armTimeLocationReminder(final Context context, final String id, final LocationReminderDetails details)
   {
-    final AlarmManager manager = (AlarmManager) m_context.getSystemService(Context.ALARM_SERVICE);
-    final Intent intent = new Intent(m_context, TimeReminderBroadcast.class);
+    final GeofenceParameters parameters = details.getGeofenceParameters();
+    final AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+    final Intent intent = new Intent(context, TimeLocationReminderDispatcherBroadcast.class);
 
     intent.setIdentifier(id);
 
-    final PendingIntent operation = PendingIntent.getBroadcast(m_context, REQUEST_TIME_CODE, intent, REQUEST_DELETE_FLAGS);
+    final long target = getNextOccurrenceAfterNow(parameters.getArmingDaysOfWeekMask(details.getDaysOfWeekMask(), details.m_time), parameters.getArmingTime(details.m_time));
+
+    // Um alarme rearmado com REQUEST_TIME_CODE por versões anteriores não seria substituído, e dispararia em paralelo.
+    cancelTimeLocationReminderAlarm(context, id);
+
+    final PendingIntent operation = PendingIntent.getBroadcast(context, REQUEST_TIME_LOCATION_DISPATCHER_CODE, intent, REQUEST_IMMUTABLE_CREATE_FLAGS);
+
+    alarmManager.setExactAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, target, operation);
+  }
+
+  /**
+   * Cancelar o alarme próprio de um lembrete baseado no tempo, armado por armTimeReminder, caso exista.
+   *
+   * @param context
+   * @param id
+   */
+  static void cancelTimeReminderAlarm(final Context context, final String id)
+  {
+    final AlarmManager manager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+    final Intent intent = new Intent(context, TimeReminderBroadcast.class);
+
+    intent.setIdentifier(id);
+
+    final PendingIntent operation = PendingIntent.getBroadcast(context, REQUEST_TIME_CODE, intent, REQUEST_DELETE_FLAGS);
 
     if (operation != null)
     {
@@ -256,6 +542,54 @@ public class ReminderManager {
     }
   }
 
+  /**
+   * Cancelar o alarme próprio de um lembrete baseado na localização e no tempo, armado por armTimeLocationReminder, caso exista.
+   *
+   * O alarme rearmado com REQUEST_TIME_CODE por versões anteriores de TimeLocationReminderDispatcherBroadcast também é cancelado.
+   *
+   * @param context
+   * @param id
+   */
+  static void cancelTimeLocationReminderAlarm(final Context context, final String id)
+  {
+    final AlarmManager manager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+    final Intent intent = new Intent(context, TimeLocationReminderDispatcherBroadcast.class);
+
+    intent.setIdentifier(id);
+
+    for (int requestCode : new int[] { REQUEST_TIME_LOCATION_DISPATCHER_CODE, REQUEST_TIME_CODE })
+    {
+      final PendingIntent operation = PendingIntent.getBroadcast(context, requestCode, intent, REQUEST_DELETE_FLAGS);
+
+      if (operation != null)
+      {
+        manager.cancel(operation);
+      }
+    }
+  }
+
+  /**
+   * Desregistra um lembrete baseado no tempo.
+   *
+   * Caso não haja um lembrete baseado no tempo com o id especificado, este métdo é noop.
+   *
+   * @param id
+   */
+  public void unregisterTimeReminder(final String id)
+  {
+    cancelTimeReminderAlarm(m_context, id);
+    new ReminderScheduler(m_context).unschedule(id);
+
+    try
+    {
+      ReminderLocalStorage.getInstance(m_context).remove(id);
+    }
+    catch (IOException ex)
+    {
+      throw new RuntimeException(ex);
+    }
+  }
+
   /**
    * Desregistra um lembrete baseado na Localização.
    *
@@ -264,41 +598,370 @@ public class ReminderManager {
    * @param id
    */
   public void unregisterLocationReminder(final String id)
+  {
+    removeLocationReminder(id);
+  }
+
+  /**
+   * Desregistra um lembrete baseado na Localizaçã e no Tempo.
+   *
+   * Caso não haja um lembrete baseado no tempo com o id especificado, este métdo é noop.
+   *
+   * @param id
+   */
+  public void unregisterTimeLocationReminder(final String id)
+  {
+    cancelTimeLocationReminderAlarm(m_context, id);
+
+    final AlarmManager manager = (AlarmManager) m_context.getSystemService(Context.ALARM_SERVICE);
+    final Intent intent = new Intent(m_context, TimeLocationReminderDispatcherBroadcast.class);
+
+    intent.setIdentifier(id);
+    intent.setAction(TimeLocationReminderDispatcherBroadcast.ACTION_THROW);
+
+    final PendingIntent deferred = PendingIntent.getBroadcast(m_context, REQUEST_TIME_LOCATION_DEFERRED_CODE, intent, REQUEST_DELETE_FLAGS);
+
+    if (deferred != null)
+    {
+      manager.cancel(deferred);
+    }
+
+    new ReminderScheduler(m_context).unschedule(id);
+
+    // O geofence temporário pode já ter sido armado pelo dispatcher dentro da janela do lembrete.
+    final ArrayList<String> ids = new ArrayList<>();
+
+    ids.add(id);
+    LocationServices.getGeofencingClient(m_context).removeGeofences(ids);
+
+    try
+    {
+      ReminderLocalStorage.getInstance(m_context).remove(id);
+    }
+    catch (IOException ex)
+    {
+      throw new RuntimeException(ex);
+    }
+  }
+
+  /**
+   * Versão assíncrona de registerTimeReminder.
+   *
+   * @param id
+   * @param dayOfWeek
+   * @param time
+   * @param listener
+   *
+   * @return um future completado quando o alarme for armado.
+   */
+  public CompletableFuture<Void> registerTimeReminderAsync(final String id, final DayOfWeek dayOfWeek, @NonNull final LocalTime time, @NonNull final TimeReminderListener listener)
+  {
+    return registerTimeReminderAsync(id, EnumSet.of(dayOfWeek), time, listener);
+  }
+
+  /**
+   * Versão assíncrona de registerTimeReminder para vários dias da semana.
+   *
+   * @param id
+   * @param daysOfWeek
+   * @param time
+   * @param listener
+   *
+   * @return um future completado quando o alarme for armado.
+   */
+  public CompletableFuture<Void> registerTimeReminderAsync(final String id, @NonNull final EnumSet<DayOfWeek> daysOfWeek, @NonNull final LocalTime time, @NonNull final TimeReminderListener listener)
+  {
+    return runAsync(() ->
+    {
+      registerTimeReminder(id, daysOfWeek, time, listener);
+      return Tasks.forResult(null);
+    });
+  }
+
+  /**
+   * Versão assíncrona de registerTimeReminders.
+   *
+   * @param reminders
+   *
+   * @return um future completado quando todos os alarmes forem armados.
+   */
+  public CompletableFuture<Void> registerTimeRemindersAsync(final Collection<TimeReminderRequest> reminders)
+  {
+    return runAsync(() -> registerTimeReminders(reminders));
+  }
+
+  /**
+   * Versão assíncrona de registerLocationReminder.
+   *
+   * @param id
+   * @param dayOfWeek
+   * @param locationDetails
+   * @param listener
+   *
+   * @return um future completado quando o armazenamento for escrito e o geofence for adicionado, ou completado com a exceção de qualquer um deles.
+   */
+  public CompletableFuture<Void> registerLocationReminderAsync(final String id, final DayOfWeek dayOfWeek, final Pair<Location, String> locationDetails, final LocationReminderListener listener)
+  {
+    return registerLocationRemindersAsync(Collections.singletonList(new LocationReminderRequest(id, dayOfWeek, locationDetails, listener)));
+  }
+
+  /**
+   * Versão assíncrona de registerLocationReminders.
+   *
+   * @param reminders
+   *
+   * @return um future completado quando o armazenamento for escrito e todos os geofences forem adicionados, ou completado com a exceção de qualquer um deles.
+   */
+  public CompletableFuture<Void> registerLocationRemindersAsync(final Collection<LocationReminderRequest> reminders)
+  {
+    return runAsync(() -> registerLocationReminders(reminders));
+  }
+
+  /**
+   * Versão assíncrona de registerTimeLocationReminder.
+   *
+   * @param id
+   * @param dayOfWeek
+   * @param time
+   * @param locationDetails
+   * @param listener
+   *
+   * @return um future completado quando o armazenamento for escrito e o alarme for armado.
+   */
+  public CompletableFuture<Void> registerTimeLocationReminderAsync(final String id, final DayOfWeek dayOfWeek, @NonNull final LocalTime time, final Pair<Location, String> locationDetails, final TimeLocationReminderListener listener)
+  {
+    return registerTimeLocationReminderAsync(id, EnumSet.of(dayOfWeek), time, locationDetails, listener);
+  }
+
+  /**
+   * Versão assíncrona de registerTimeLocationReminder para vários dias da semana.
+   *
+   * @param id
+   * @param daysOfWeek
+   * @param time
+   * @param locationDetails
+   * @param listener
+   *
+   * @return um future completado quando o armazenamento for escrito e o alarme for armado.
+   */
+  public CompletableFuture<Void> registerTimeLocationReminderAsync(final String id, @NonNull final EnumSet<DayOfWeek> daysOfWeek, @NonNull final LocalTime time, final Pair<Location, String> locationDetails, final TimeLocationReminderListener listener)
+  {
+    return runAsync(() ->
+    {
+      registerTimeLocationReminder(id, daysOfWeek, time, locationDetails, listener);
+      return Tasks.forResult(null);
+    });
+  }
+
+  /**
+   * Versão assíncrona de unregisterTimeReminder.
+   *
+   * @param id
+   *
+   * @return um future completado quando o alarme for cancelado.
+   */
+  public CompletableFuture<Void> unregisterTimeReminderAsync(final String id)
+  {
+    return runAsync(() ->
+    {
+      unregisterTimeReminder(id);
+      return Tasks.forResult(null);
+    });
+  }
+
+  /**
+   * Versão assíncrona de unregisterLocationReminder.
+   *
+   * @param id
+   *
+   * @return um future completado quando o armazenamento for escrito e o geofence for removido, ou completado com a exceção de qualquer um deles.
+   */
+  public CompletableFuture<Void> unregisterLocationReminderAsync(final String id)
+  {
+    return runAsync(() -> removeLocationReminder(id));
+  }
+
+  /**
+   * Versão assíncrona de unregisterTimeLocationReminder.
+   *
+   * @param id
+   *
+   * @return um future completado quando o alarme for cancelado.
+   */
+  public CompletableFuture<Void> unregisterTimeLocationReminderAsync(final String id)
+  {
+    return runAsync(() ->
+    {
+      unregisterTimeLocationReminder(id);
+      return Tasks.forResult(null);
+    });
+  }
+
+  /**
+   * Remover o geofence e o armazenamento de um lembrete baseado na Localização.
+   *
+   * @param id
+   *
+   * @return uma task que é completada quando o geofence for removido e, se GeofenceQuotaManager estiver habilitado, o conjunto armado for rebalanceado.
+   */
+  private Task<Void> removeLocationReminder(final String id)
   {
     final GeofencingClient geofencingClient = LocationServices.getGeofencingClient(m_context);
+    final ArrayList<Task<Void>> tasks = new ArrayList<>();
     final ArrayList<String> ids = new ArrayList<>();
 
     ids.add(id);
-    geofencingClient.removeGeofences(ids);
+    tasks.add(geofencingClient.removeGeofences(ids));
 
     try {
-      final ReminderLocalStorage storage = new ReminderLocalStorage(m_context);
+      final ReminderLocalStorage storage = ReminderLocalStorage.getInstance(m_context);
       storage.remove(id);
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
+
+    final GeofenceQuotaManager quotaManager = new GeofenceQuotaManager(m_context);
+
+    if (quotaManager.isEnabled())
+    {
+      quotaManager.forget(id);
+      tasks.add(quotaManager.rebalance());
+    }
+
+    return Tasks.whenAll(tasks);
   }
 
   /**
-   * Desregistra um lembrete baseado na Localizaçã e no Tempo.
+   * Executar a operação especificada em IO_EXECUTOR.
    *
-   * Caso não haja um lembrete baseado no tempo com o id especificado, este métdo é noop.
+   * O future é completado apenas quando a task retornada pela operação for completada, ou excepcionalmente se a operação ou a task falharem.
+   *
+   * @param operation
+   *
+   * @return o future.
+   */
+  private static CompletableFuture<Void> runAsync(final Callable<Task<Void>> operation)
+  {
+    final CompletableFuture<Void> future = new CompletableFuture<>();
+
+    IO_EXECUTOR.execute(() ->
+    {
+      try
+      {
+        operation.call().addOnCompleteListener(IO_EXECUTOR, task ->
+        {
+          if (task.isSuccessful())
+          {
+            future.complete(null);
+          }
+          else
+          {
+            future.completeExceptionally(task.getException());
+          }
+        });
+      }
+      catch (Exception ex)
+      {
+        future.completeExceptionally(ex);
+      }
+    });
+
+    return future;
+  }
+
+  /**
+   * Construir o geofence de um lembrete baseado apenas na localização.
    *
    * @param id
+   * @param details
+   * @param deviceLocation localização conhecida do dispositivo, usada pela responsividade adaptativa, ou null.
+   *
+   * @return o geofence.
    */
-  public void unregisterTimeLocationReminder(final String id)
+  static Geofence buildLocationGeofence(final String id, final LocationReminderDetails details, final Location deviceLocation)
   {
-    final AlarmManager manager = (AlarmManager) m_context.getSystemService(Context.ALARM_SERVICE);
-    final Intent intent = new Intent(m_context, TimeLocationReminderDispatcherBroadcast.class);
+    return details.getGeofenceParameters().buildGeofence(id, details.m_latitude, details.m_longitude, Geofence.NEVER_EXPIRE, deviceLocation);
+  }
 
-    intent.setIdentifier(id);
+  /**
+   * Obter a última localização conhecida do dispositivo, caso não seja mais antiga que a idade especificada.
+   *
+   * Deve ser invocado fora da thread principal. Em qualquer falha, retorna null.
+   *
+   * @param context
+   * @param maxAgeInMs
+   *
+   * @return a localização, ou null.
+   */
+  @SuppressLint("MissingPermission")
+  public static Location getRecentLocation(final Context context, final long maxAgeInMs)
+  {
+    try
+    {
+      final Location location = Tasks.await(LocationServices.getFusedLocationProviderClient(context).getLastLocation(), LOCATION_TIMEOUT_IN_MS, TimeUnit.MILLISECONDS);
 
-    final PendingIntent operation = PendingIntent.getBroadcast(m_context, REQUEST_TIME_CODE, intent, REQUEST_DELETE_FLAGS);
+      if (location != null && SystemClock.elapsedRealtimeNanos() - location.getElapsedRealtimeNanos() <= TimeUnit.MILLISECONDS.toNanos(maxAgeInMs))
+      {
+        return location;
+      }
+    }
+    catch (Exception ex)
+    {
+      Log.w(TAG, "Last location unavailable: " + ex);
+    }
 
-    if (operation != null)
+    return null;
+  }
+
+  /**
+   * Agrupar os geofences especificados no menor número de GeofencingRequest permitido pela plataforma.
+   *
+   * @param geofences
+   *
+   * @return as requisições.
+   */
+  static ArrayList<GeofencingRequest> buildLocationGeofencingRequests(final List<Geofence> geofences)
+  {
+    return buildGeofencingRequests(geofences, 0);
+  }
+
+  /**
+   * Agrupar os geofences especificados no menor número de GeofencingRequest permitido pela plataforma, com o gatilho inicial especificado.
+   *
+   * @param geofences
+   * @param initialTrigger
+   *
+   * @return as requisições.
+   */
+  public static ArrayList<GeofencingRequest> buildGeofencingRequests(final List<Geofence> geofences, final int initialTrigger)
+  {
+    final ArrayList<GeofencingRequest> requests = new ArrayList<>();
+
+    for (int i = 0; i < geofences.size(); i += MAX_GEOFENCES_PER_REQUEST)
     {
-      manager.cancel(operation);
+      final GeofencingRequest.Builder operationBuilder = new GeofencingRequest.Builder();
+
+      operationBuilder
+              .setInitialTrigger(initialTrigger)
+              .addGeofences(geofences.subList(i, Math.min(i + MAX_GEOFENCES_PER_REQUEST, geofences.size())));
+
+      requests.add(operationBuilder.build());
     }
+
+    return requests;
+  }
+
+  /**
+   * Obter o PendingIntent notificado pelos geofences de lembretes baseados apenas na localização.
+   *
+   * @param context
+   *
+   * @return o PendingIntent.
+   */
+  static PendingIntent getLocationReminderOperation(final Context context)
+  {
+    final Intent intent = new Intent(context, LocationReminderBroadcast.class);
+    return PendingIntent.getBroadcast(context, REQUEST_LOCATION_CODE, intent, REQUEST_MUTABLE_CREATE_FLAGS);
   }
 
   /**
@@ -313,22 +976,110 @@ public class ReminderManager {
    */
   public static Calendar getNextWeekDayAfterNow(final DayOfWeek day, final LocalTime time)
   {
-    final Calendar now = Calendar.getInstance();
-    final Calendar target = (Calendar) now.clone();
+    return getNextWeekDayAfterNow(toDaysOfWeekMask(EnumSet.of(day)), time);
+  }
 
-    target.set(Calendar.DAY_OF_WEEK, dayOfWeekToCalendarDayOfWeek(day));
-    target.set(Calendar.HOUR_OF_DAY, time.getHour());
-    target.set(Calendar.MINUTE, time.getMinute());
-    target.set(Calendar.SECOND, time.getSecond());
+  /**
+   * Armar um alarme que pode ser acionado a qualquer momento da janela especificada.
+   *
+   * O início da janela é limitado ao momento atual. Se a janela for vazia, o alarme é exato e acionado mesmo em Doze.
+   *
+   * @param alarmManager
+   * @param windowStart em epoch millis.
+   * @param windowEnd em epoch millis.
+   * @param operation
+   */
+  @SuppressLint("MissingPermission")
+  public static void setAlarmWindow(final AlarmManager alarmManager, final long windowStart, final long windowEnd, final PendingIntent operation)
+  {
+    final long start = Math.max(windowStart, System.currentTimeMillis());
 
-    if (target.compareTo(now) <= 0)
+    if (windowEnd <= start)
     {
-      target.add(Calendar.DAY_OF_WEEK, 7);
+      alarmManager.setExactAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, windowEnd, operation);
+      return;
     }
 
+    alarmManager.setWindow(AlarmManager.RTC_WAKEUP, start, windowEnd - start, operation);
+  }
+
+  /**
+   * Obter a próxima ocorrência, posterior ao momento atual, de qualquer um dos dias da semana da máscara especificada com o horário especificado.
+   *
+   * @param daysOfWeekMask máscara produzida por toDaysOfWeekMask.
+   * @param time
+   *
+   * @return próxima ocorrência de um dos dias da semana com o horário especificado.
+   *
+   * @throws IllegalArgumentException se a máscara não tiver nenhum dia.
+   */
+  public static Calendar getNextWeekDayAfterNow(final int daysOfWeekMask, final LocalTime time)
+  {
+    final Calendar target = Calendar.getInstance();
+
+    target.setTimeInMillis(getNextOccurrenceAfterNow(daysOfWeekMask, time));
+
     return target;
   }
 
+  /**
+   * Obter, em epoch millis, a próxima ocorrência posterior ao momento atual de qualquer um dos dias da semana da máscara especificada com o horário especificado, no fuso padrão do sistema.
+   *
+   * Diferente de getNextWeekDayAfterNow, não aloca Calendar (ver ReminderRecurrence).
+   *
+   * @param daysOfWeekMask máscara produzida por toDaysOfWeekMask.
+   * @param time
+   *
+   * @return próxima ocorrência em epoch millis.
+   *
+   * @throws IllegalArgumentException se a máscara não tiver nenhum dia.
+   */
+  public static long getNextOccurrenceAfterNow(final int daysOfWeekMask, final LocalTime time)
+  {
+    return ReminderRecurrence.nextOccurrence(daysOfWeekMask, time.toSecondOfDay(), System.currentTimeMillis(), ZoneId.systemDefault());
+  }
+
+  /**
+   * Converter um conjunto de dias da semana em uma máscara de 7 bits, em que o bit i corresponde a DayOfWeek.values()[i].
+   *
+   * @param daysOfWeek
+   *
+   * @return a máscara.
+   */
+  public static int toDaysOfWeekMask(final EnumSet<DayOfWeek> daysOfWeek)
+  {
+    int mask = 0;
+
+    for (DayOfWeek dayOfWeek : daysOfWeek)
+    {
+      mask |= 1 << dayOfWeek.ordinal();
+    }
+
+    return mask;
+  }
+
+  /**
+   * Converter uma máscara produzida por toDaysOfWeekMask em um conjunto de dias da semana.
+   *
+   * @param daysOfWeekMask
+   *
+   * @return o conjunto.
+   */
+  public static EnumSet<DayOfWeek> fromDaysOfWeekMask(final int daysOfWeekMask)
+  {
+    final EnumSet<DayOfWeek> daysOfWeek = EnumSet.noneOf(DayOfWeek.class);
+
+    for (DayOfWeek dayOfWeek : DayOfWeek.values())
+    {
+      if ((daysOfWeekMask & (1 << dayOfWeek.ordinal())) != 0)
+      {
+        daysOfWeek.add(dayOfWeek);
+      }
+    }
+
+    return daysOfWeek;
+  }
+
   /**
    * Converter uma instância de DayOfWeek para uma das constantes de day of week da Calendar Class.
    *
@@ -380,16 +1131,41 @@ public class ReminderManager {
    */
   public static DayOfWeek getDayOfWeek()
   {
-    final Calendar now = Calendar.getInstance();
-    return calendarDayOfWeekToDayOfWeek(now.get(Calendar.DAY_OF_WEEK));
+    return ReminderRecurrence.dayOfWeekAt(System.currentTimeMillis(), ZoneId.systemDefault());
   }
 
+  /**
+   * Quantidade máxima de geofences ativos por aplicação, e portanto por GeofencingRequest.
+   */
+  public static final int MAX_GEOFENCES_PER_REQUEST = 100;
+  /**
+   * Máscara com todos os dias da semana.
+   */
+  public static final int ALL_DAYS_OF_WEEK_MASK = 0x7F;
+  /**
+   * Tempo máximo de espera pela última localização conhecida em getRecentLocation.
+   */
+  public static final long LOCATION_TIMEOUT_IN_MS = 2000;
+  /**
+   * Tolerância máxima de um lembrete baseado no tempo. É menor que o intervalo entre duas ocorrências, de forma que um acionamento antecipado não seja confundido com a próxima ocorrência.
+   */
+  public static final int MAX_TIME_REMINDER_TOLERANCE_IN_MS = 60 * 60 * 1000;
   public static final int REQUEST_TIME_CODE = 1;
   public static final int REQUEST_LOCATION_CODE = 2;
   public static final int REQUEST_TIME_LOCATION_DISPATCHER_CODE = 3;
   public static final int REQUEST_TIME_LOCATION_CODE = 4;
+  public static final int REQUEST_GEOFENCE_QUOTA_CODE = 5;
+  public static final int REQUEST_SCHEDULER_CODE = 6;
+  public static final int REQUEST_GEOFENCE_ROLLOVER_CODE = 7;
+  public static final int REQUEST_TIME_LOCATION_DEFERRED_CODE = 8;
   public static final int REQUEST_IMMUTABLE_CREATE_FLAGS = PendingIntent.FLAG_IMMUTABLE | PendingIntent.FLAG_UPDATE_CURRENT;
   public static final int REQUEST_MUTABLE_CREATE_FLAGS = PendingIntent.FLAG_MUTABLE | PendingIntent.FLAG_UPDATE_CURRENT;
   public static final int REQUEST_DELETE_FLAGS = PendingIntent.FLAG_IMMUTABLE | PendingIntent.FLAG_NO_CREATE;
+  /**
+   * Executor serial em que as operações assíncronas são executadas, de forma que o armazenamento seja escrito fora da thread principal e na ordem das invocações.
+   */
+  static final ExecutorService IO_EXECUTOR = Executors.newSingleThreadExecutor();
+  private static final String TAG = "ReminderManager";
+  private static volatile SchedulerMode s_schedulerMode = SchedulerMode.PER_REMINDER;
   final Context m_context;
 }
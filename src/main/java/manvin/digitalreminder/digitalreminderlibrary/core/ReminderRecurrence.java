@@ -0,0 +1,213 @@
+package manvin.digitalreminder.digitalreminderlibrary.core;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.zone.ZoneRules;
+
+/**
+ * Classe que calcula as próximas ocorrências de lembretes semanais com aritmética sobre epoch, sem instâncias de Calendar.
+ *
+ * Uma agenda é representada por uma máscara de dias da semana (ver ReminderManager.toDaysOfWeekMask) e pelo horário em segundos do dia. Os resultados são instantes em epoch millis.
+ *
+ * As transições de horário de verão seguem a semântica de ZonedDateTime.of: um horário que não existe (gap) é adiantado pela duração da transição, e um horário ambíguo (overlap) usa o offset anterior à transição. Em fusos com offset fixo, nenhum objeto é alocado.
+ */
+public final class ReminderRecurrence {
+
+  /**
+   * Obter a próxima ocorrência de uma agenda estritamente posterior ao instante especificado.
+   *
+   * @param daysOfWeekMask
+   * @param secondOfDay
+   * @param afterMillis
+   * @param zone
+   *
+   * @return a ocorrência em epoch millis.
+   *
+   * @throws IllegalArgumentException se a máscara não tiver nenhum dia ou se o horário for inválido.
+   */
+  public static long nextOccurrence(final int daysOfWeekMask, final int secondOfDay, final long afterMillis, final ZoneId zone)
+  {
+    return nextOccurrence(daysOfWeekMask, secondOfDay, afterMillis, zone.getRules());
+  }
+
+  /**
+   * Obter as próximas ocorrências de uma agenda estritamente posteriores ao instante especificado, em ordem crescente.
+   *
+   * @param daysOfWeekMask
+   * @param secondOfDay
+   * @param afterMillis
+   * @param count
+   * @param zone
+   *
+   * @return as ocorrências em epoch millis.
+   *
+   * @throws IllegalArgumentException se a máscara não tiver nenhum dia ou se o horário for inválido.
+   */
+  public static long[] nextOccurrences(final int daysOfWeekMask, final int secondOfDay, final long afterMillis, final int count, final ZoneId zone)
+  {
+    final ZoneRules rules = zone.getRules();
+    final long[] occurrences = new long[count];
+    long after = afterMillis;
+
+    for (int i = 0; i < count; i++)
+    {
+      after = nextOccurrence(daysOfWeekMask, secondOfDay, after, rules);
+      occurrences[i] = after;
+    }
+
+    return occurrences;
+  }
+
+  /**
+   * Obter a próxima ocorrência de cada uma das agendas especificadas estritamente posterior ao instante especificado.
+   *
+   * A agenda i é formada por daysOfWeekMasks[i] e secondsOfDay[i].
+   *
+   * @param daysOfWeekMasks
+   * @param secondsOfDay
+   * @param afterMillis
+   * @param zone
+   *
+   * @return as ocorrências em epoch millis, na mesma ordem das agendas.
+   *
+   * @throws IllegalArgumentException se os arrays tiverem tamanhos diferentes ou se alguma agenda for inválida.
+   */
+  public static long[] nextOccurrence(final int[] daysOfWeekMasks, final int[] secondsOfDay, final long afterMillis, final ZoneId zone)
+  {
+    if (daysOfWeekMasks.length != secondsOfDay.length)
+    {
+      throw new IllegalArgumentException("daysOfWeekMasks and secondsOfDay must have the same length.");
+    }
+
+    final ZoneRules rules = zone.getRules();
+    final long[] occurrences = new long[daysOfWeekMasks.length];
+
+    for (int i = 0; i < occurrences.length; i++)
+    {
+      occurrences[i] = nextOccurrence(daysOfWeekMasks[i], secondsOfDay[i], afterMillis, rules);
+    }
+
+    return occurrences;
+  }
+
+  /**
+   * Obter o dia da semana do instante especificado no fuso especificado.
+   *
+   * @param millis
+   * @param zone
+   *
+   * @return o dia da semana.
+   */
+  public static ReminderManager.DayOfWeek dayOfWeekAt(final long millis, final ZoneId zone)
+  {
+    final ZoneRules rules = zone.getRules();
+    final long epochSecond = Math.floorDiv(millis, MILLIS_PER_SECOND);
+
+    return DAYS_OF_WEEK[dayOfWeekOrdinal(Math.floorDiv(epochSecond + offsetAt(rules, epochSecond), SECONDS_PER_DAY))];
+  }
+
+  /**
+   * Obter a próxima ocorrência de uma agenda com as regras de fuso já resolvidas.
+   *
+   * @param daysOfWeekMask
+   * @param secondOfDay
+   * @param afterMillis
+   * @param rules
+   *
+   * @return a ocorrência em epoch millis.
+   */
+  private static long nextOccurrence(final int daysOfWeekMask, final int secondOfDay, final long afterMillis, final ZoneRules rules)
+  {
+    if ((daysOfWeekMask & ReminderManager.ALL_DAYS_OF_WEEK_MASK) == 0)
+    {
+      throw new IllegalArgumentException("At least one DayOfWeek is necessary.");
+    }
+
+    if (secondOfDay < 0 || secondOfDay >= SECONDS_PER_DAY)
+    {
+      throw new IllegalArgumentException("Invalid second of day: " + secondOfDay);
+    }
+
+    final long afterSecond = Math.floorDiv(afterMillis, MILLIS_PER_SECOND);
+    final long epochDay = Math.floorDiv(afterSecond + offsetAt(rules, afterSecond), SECONDS_PER_DAY);
+
+    // Uma semana e um dia cobrem o caso em que o único dia da máscara é hoje e o horário já passou.
+    for (long day = epochDay; day <= epochDay + DAYS_PER_WEEK; day++)
+    {
+      if ((daysOfWeekMask & (1 << dayOfWeekOrdinal(day))) == 0)
+      {
+        continue;
+      }
+
+      final long occurrence = localToEpochSecond(rules, day * SECONDS_PER_DAY + secondOfDay) * MILLIS_PER_SECOND;
+
+      if (occurrence > afterMillis)
+      {
+        return occurrence;
+      }
+    }
+
+    throw new IllegalStateException("No occurrence within a week.");
+  }
+
+  /**
+   * Obter o offset, em segundos, do fuso no instante especificado.
+   *
+   * @param rules
+   * @param epochSecond
+   *
+   * @return o offset.
+   */
+  private static int offsetAt(final ZoneRules rules, final long epochSecond)
+  {
+    if (rules.isFixedOffset())
+    {
+      return rules.getOffset(Instant.EPOCH).getTotalSeconds();
+    }
+
+    return rules.getOffset(Instant.ofEpochSecond(epochSecond)).getTotalSeconds();
+  }
+
+  /**
+   * Converter segundos locais (segundos desde 1970-01-01T00:00 no horário local) para epoch seconds.
+   *
+   * @param rules
+   * @param localSecond
+   *
+   * @return os epoch seconds.
+   */
+  private static long localToEpochSecond(final ZoneRules rules, final long localSecond)
+  {
+    if (rules.isFixedOffset())
+    {
+      return localSecond - rules.getOffset(Instant.EPOCH).getTotalSeconds();
+    }
+
+    // Em um gap, getOffset retorna o offset anterior à transição, o que adianta o horário pela duração do gap.
+    return localSecond - rules.getOffset(LocalDateTime.ofEpochSecond(localSecond, 0, ZoneOffset.UTC)).getTotalSeconds();
+  }
+
+  /**
+   * Obter o ordinal de DayOfWeek de um epoch day. O epoch day 0 (1970-01-01) é uma quinta-feira.
+   *
+   * @param epochDay
+   *
+   * @return o ordinal.
+   */
+  private static int dayOfWeekOrdinal(final long epochDay)
+  {
+    return (int) Math.floorMod(epochDay + EPOCH_DAY_OF_WEEK, (long) DAYS_PER_WEEK);
+  }
+
+  private ReminderRecurrence()
+  {
+  }
+
+  private static final long MILLIS_PER_SECOND = 1000;
+  private static final int SECONDS_PER_DAY = 24 * 60 * 60;
+  private static final int DAYS_PER_WEEK = 7;
+  private static final int EPOCH_DAY_OF_WEEK = 4;
+  private static final ReminderManager.DayOfWeek[] DAYS_OF_WEEK = ReminderManager.DayOfWeek.values();
+}
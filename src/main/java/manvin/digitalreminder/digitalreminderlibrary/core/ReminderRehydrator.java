@@ -0,0 +1,146 @@
+package manvin.digitalreminder.digitalreminderlibrary.core;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Classe que rearma os alarmes e geofences dos lembretes após a reinicialização do dispositivo ou a atualização da aplicação, que descartam todos eles.
+ *
+ * A primeira etapa recalcula os disparos de ReminderScheduler, que são rearmados com um único alarme, prepara GeofenceQuotaManager, caso habilitado, para armar novamente todo o seu conjunto, e aplica a virada do dia de GeofenceRollover, que rearma os geofences dos lembretes baseados na localização ativos no dia atual. Em seguida, os alarmes próprios dos lembretes baseados no tempo e dos lembretes baseados na localização e no tempo são rearmados em lotes, em ordem de id, enquanto houver tempo. Se o tempo se esgotar, o id do último lembrete rearmado é retornado, de forma que a próxima etapa continue a partir dele.
+ *
+ * Lembretes baseados no tempo registrados antes de serem guardados em ReminderLocalStorage existem apenas nos extras dos seus PendingIntent e não podem ser rearmados.
+ */
+public class ReminderRehydrator {
+
+  /**
+   * Construir um ReminderRehydrator com o contexto especificado.
+   *
+   * @param context
+   */
+  public ReminderRehydrator(final Context context)
+  {
+    m_context = context;
+  }
+
+  /**
+   * Rearmar os lembretes até que o tempo especificado se esgote.
+   *
+   * Deve ser invocado fora da thread principal.
+   *
+   * @param resumeAfter id retornado pela etapa anterior, ou null para a primeira etapa.
+   * @param budgetInMs tempo disponível para a etapa.
+   *
+   * @return o id do último lembrete rearmado, caso o tempo tenha se esgotado antes de todos os lembretes serem rearmados, ou null.
+   *
+   * @throws RuntimeException
+   */
+  public String rehydrate(final String resumeAfter, final long budgetInMs)
+  {
+    final long deadline = SystemClock.elapsedRealtime() + budgetInMs;
+    final ReminderScheduler scheduler = new ReminderScheduler(m_context);
+    Task<Void> rollover = null;
+
+    if (resumeAfter == null)
+    {
+      scheduler.rehydrate();
+
+      // O conjunto armado persistido pela quota não sobrevive aos geofences descartados.
+      new GeofenceQuotaManager(m_context).prepareRehydration();
+      rollover = new GeofenceRollover(m_context).rollover();
+    }
+
+    final TreeMap<String, LocationReminderDetails> states;
+
+    try
+    {
+      states = new TreeMap<>(ReminderLocalStorage.getInstance(m_context).deserialize());
+    }
+    catch (Exception ex)
+    {
+      throw new RuntimeException(ex);
+    }
+
+    // Lembretes agendados em ReminderScheduler já foram rearmados com o seu alarme.
+    final HashSet<String> scheduled = scheduler.getScheduledIds();
+    final Map<String, LocationReminderDetails> pending = resumeAfter == null ? states : states.tailMap(resumeAfter, false);
+    String last = null;
+    boolean exhausted = false;
+    int batched = 0;
+
+    for (Map.Entry<String, LocationReminderDetails> entry : pending.entrySet())
+    {
+      if (batched == BATCH_SIZE)
+      {
+        if (SystemClock.elapsedRealtime() >= deadline)
+        {
+          exhausted = true;
+          break;
+        }
+
+        batched = 0;
+      }
+
+      last = entry.getKey();
+
+      final LocationReminderDetails details = entry.getValue();
+
+      if (details.m_type == LocationReminderDetails.Type.LOCATION || scheduled.contains(last))
+      {
+        continue;
+      }
+
+      if (details.m_type == LocationReminderDetails.Type.TIME)
+      {
+        ReminderManager.armTimeReminder(m_context, last, details);
+      }
+      else
+      {
+        ReminderManager.armTimeLocationReminder(m_context, last, details);
+      }
+
+      batched++;
+    }
+
+    awaitRollover(rollover, deadline);
+
+    return exhausted ? last : null;
+  }
+
+  /**
+   * Aguardar a virada do dia até o prazo especificado.
+   *
+   * Uma falha é apenas registrada, pois não impede o rearme dos demais lembretes.
+   *
+   * @param rollover
+   * @param deadline
+   */
+  private static void awaitRollover(final Task<Void> rollover, final long deadline)
+  {
+    if (rollover == null)
+    {
+      return;
+    }
+
+    try
+    {
+      Tasks.await(rollover, Math.max(0, deadline - SystemClock.elapsedRealtime()), TimeUnit.MILLISECONDS);
+    }
+    catch (Exception ex)
+    {
+      Log.w(TAG, "Geofences were not rearmed.", ex);
+    }
+  }
+
+  private static final String TAG = "ReminderRehydrator";
+  private static final int BATCH_SIZE = 100;
+  private final Context m_context;
+}
@@ -0,0 +1,951 @@
+package manvin.digitalreminder.digitalreminderlibrary.core;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+import android.util.Pair;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+
+import manvin.digitalreminder.digitalreminderlibrary.broadcasts.TimeLocationReminderDispatcherBroadcast;
+import manvin.digitalreminder.digitalreminderlibrary.broadcasts.TimeReminderBroadcast;
+
+/**
+ * Classe que representa um agendador de lembretes baseados no tempo que usa um único alarme.
+ *
+ * Os próximos disparos de todos os lembretes agendados são mantidos em uma fila de prioridade (min-heap) persistida no armazenamento interno. Apenas o disparo mais próximo é armado no AlarmManager. Quando o alarme é acionado, todos os lembretes vencidos são despachados, reinseridos na fila com o seu próximo disparo, e o próximo disparo da fila é armado.
+ *
+ * Cada lembrete guarda a máscara dos dias da semana em que se repete, de forma que um único registro na fila cubra todo o padrão semanal.
+ *
+ * Lembretes baseados no tempo podem ter uma tolerância, que define uma janela em torno do seu horário. Os lembretes do início da fila cujas janelas se intersectam formam um grupo, que é coberto por um único alarme com a janela da interseção, e são despachados no mesmo acionamento. A quantidade de acionamentos e de acionamentos economizados pelo agrupamento é persistida junto à fila.
+ *
+ * Os lembretes guardam apenas o id, pois seus detalhes estão em ReminderLocalStorage, que são carregados com uma única leitura quando os lembretes são despachados. Lembretes baseados no tempo agendados antes disso guardavam o listener como um Parcel serializado no arquivo da fila; ao carregar um arquivo nesse formato, esses lembretes são migrados para ReminderLocalStorage e a fila é regravada sem os bytes do Parcel.
+ *
+ * O agendador é seguro entre threads e entre processos. Dentro do processo, as operações são serializadas por um monitor. Entre processos, um arquivo de lock ao lado da fila é travado com o lock exclusivo de FileChannel, como em ReminderLocalStorage, durante toda a operação, e a fila é recarregada antes de ser modificada, de forma que a persistência de um processo não sobrescreva a de outro.
+ */
+public class ReminderScheduler {
+
+  /**
+   * Enum que especifica o tipo de um lembrete agendado.
+   */
+  public enum Kind
+  {
+    TIME,
+    TIME_LOCATION,
+  }
+
+  /**
+   * Construir um ReminderScheduler com o contexto especificado.
+   *
+   * @param context
+   */
+  public ReminderScheduler(final Context context)
+  {
+    m_context = context;
+    m_file = new File(context.getDataDir(), FILE_NAME);
+  }
+
+  /**
+   * Agendar um lembrete baseado no tempo.
+   *
+   * Um lembrete previamente agendado com o mesmo id é substituído.
+   *
+   * @param id
+   * @param dayOfWeek
+   * @param time
+   * @param listener
+   */
+  public void scheduleTimeReminder(final String id, final ReminderManager.DayOfWeek dayOfWeek, final LocalTime time, final ReminderManager.TimeReminderListener listener)
+  {
+    scheduleTimeReminder(id, ReminderManager.toDaysOfWeekMask(EnumSet.of(dayOfWeek)), time, listener);
+  }
+
+  /**
+   * Agendar um lembrete baseado no tempo que se repete nos dias da semana da máscara especificada.
+   *
+   * Um lembrete previamente agendado com o mesmo id é substituído.
+   *
+   * @param id
+   * @param daysOfWeek máscara produzida por ReminderManager.toDaysOfWeekMask.
+   * @param time
+   * @param listener
+   */
+  public void scheduleTimeReminder(final String id, final int daysOfWeek, final LocalTime time, final ReminderManager.TimeReminderListener listener)
+  {
+    scheduleTimeReminder(id, daysOfWeek, time, listener, 0);
+  }
+
+  /**
+   * Agendar um lembrete baseado no tempo que se repete nos dias da semana da máscara especificada e que tolera ser despachado antes ou depois do horário.
+   *
+   * Os detalhes do lembrete são guardados em ReminderLocalStorage. Um lembrete previamente agendado com o mesmo id é substituído.
+   *
+   * @param id
+   * @param daysOfWeek máscara produzida por ReminderManager.toDaysOfWeekMask.
+   * @param time
+   * @param listener
+   * @param toleranceInMs ver ReminderManager.registerTimeReminder.
+   */
+  public void scheduleTimeReminder(final String id, final int daysOfWeek, final LocalTime time, final ReminderManager.TimeReminderListener listener, final int toleranceInMs)
+  {
+    try
+    {
+      ReminderLocalStorage.getInstance(m_context).append(new Pair<>(id, new LocationReminderDetails(ReminderManager.fromDaysOfWeekMask(daysOfWeek), time, toleranceInMs, listener).withSchedulerMode(ReminderManager.SchedulerMode.SINGLE_ALARM)));
+    }
+    catch (IOException ex)
+    {
+      throw new RuntimeException(ex);
+    }
+
+    schedule(new Entry(id, Kind.TIME, daysOfWeek, time, toleranceInMs));
+  }
+
+  /**
+   * Agendar vários lembretes baseados no tempo, cujos detalhes já estão em ReminderLocalStorage.
+   *
+   * Todos os lembretes são inseridos na fila com uma única persistência e um único alarme armado. Lembretes previamente agendados com os mesmos ids são substituídos.
+   *
+   * @param reminders detalhes dos lembretes, indexados pelo id.
+   */
+  public void scheduleTimeReminders(final Map<String, LocationReminderDetails> reminders)
+  {
+    final ArrayList<Entry> entries = new ArrayList<>(reminders.size());
+
+    for (Map.Entry<String, LocationReminderDetails> reminder : reminders.entrySet())
+    {
+      final LocationReminderDetails details = reminder.getValue();
+
+      entries.add(new Entry(reminder.getKey(), Kind.TIME, details.getDaysOfWeekMask(), details.m_time, details.m_toleranceInMs));
+    }
+
+    schedule(entries);
+  }
+
+  /**
+   * Agendar um lembrete baseado na localização e no tempo, cujos detalhes já estão em ReminderLocalStorage.
+   *
+   * Um lembrete previamente agendado com o mesmo id é substituído.
+   *
+   * @param id
+   * @param dayOfWeek
+   * @param time
+   */
+  public void scheduleTimeLocationReminder(final String id, final ReminderManager.DayOfWeek dayOfWeek, final LocalTime time)
+  {
+    scheduleTimeLocationReminder(id, ReminderManager.toDaysOfWeekMask(EnumSet.of(dayOfWeek)), time);
+  }
+
+  /**
+   * Agendar um lembrete baseado na localização e no tempo que se repete nos dias da semana da máscara especificada, cujos detalhes já estão em ReminderLocalStorage.
+   *
+   * Um lembrete previamente agendado com o mesmo id é substituído.
+   *
+   * @param id
+   * @param daysOfWeek máscara produzida por ReminderManager.toDaysOfWeekMask.
+   * @param time
+   */
+  public void scheduleTimeLocationReminder(final String id, final int daysOfWeek, final LocalTime time)
+  {
+    schedule(new Entry(id, Kind.TIME_LOCATION, daysOfWeek, time, 0));
+  }
+
+  /**
+   * Remover o lembrete com o id especificado da fila.
+   *
+   * @param id
+   *
+   * @return true se o lembrete estava agendado.
+   */
+  public boolean unschedule(final String id)
+  {
+    synchronized (LOCK)
+    {
+      try(final FileLock lock = lockFile())
+      {
+        load();
+
+        final Entry entry = s_entries.remove(id);
+
+        if (entry == null)
+        {
+          return false;
+        }
+
+        s_queue.remove(entry);
+        persist();
+        armNext();
+
+        return true;
+      }
+      catch (IOException ex)
+      {
+        throw new RuntimeException(ex);
+      }
+    }
+  }
+
+  /**
+   * Obter a quantidade de lembretes agendados.
+   *
+   * @return a quantidade.
+   */
+  public int size()
+  {
+    synchronized (LOCK)
+    {
+      try(final FileLock lock = lockFile())
+      {
+        load();
+        return s_entries.size();
+      }
+      catch (IOException ex)
+      {
+        throw new RuntimeException(ex);
+      }
+    }
+  }
+
+  /**
+   * Obter os ids de todos os lembretes agendados.
+   *
+   * @return uma cópia do conjunto de ids.
+   */
+  public HashSet<String> getScheduledIds()
+  {
+    synchronized (LOCK)
+    {
+      try(final FileLock lock = lockFile())
+      {
+        load();
+        return new HashSet<>(s_entries.keySet());
+      }
+      catch (IOException ex)
+      {
+        throw new RuntimeException(ex);
+      }
+    }
+  }
+
+  /**
+   * Recalcular, a partir do momento atual, o próximo disparo de todos os lembretes agendados e armar o alarme.
+   *
+   * É invocado por ReminderRehydrator após a reinicialização do dispositivo ou a atualização da aplicação, que descartam o alarme armado. Os disparos perdidos enquanto o alarme não estava armado não são despachados.
+   */
+  public void rehydrate()
+  {
+    synchronized (LOCK)
+    {
+      try(final FileLock lock = lockFile())
+      {
+        load();
+
+        final ArrayList<Entry> entries = new ArrayList<>(s_queue);
+        final int[] masks = new int[entries.size()];
+        final int[] secondsOfDay = new int[entries.size()];
+
+        for (int i = 0; i < masks.length; i++)
+        {
+          masks[i] = entries.get(i).m_daysOfWeek;
+          secondsOfDay[i] = entries.get(i).m_time.toSecondOfDay();
+        }
+
+        final long[] fireAts = ReminderRecurrence.nextOccurrence(masks, secondsOfDay, System.currentTimeMillis(), ZoneId.systemDefault());
+
+        s_queue.clear();
+
+        for (int i = 0; i < fireAts.length; i++)
+        {
+          entries.get(i).m_fireAt = fireAts[i];
+          s_queue.add(entries.get(i));
+        }
+
+        persist();
+        armNext();
+      }
+      catch (IOException ex)
+      {
+        throw new RuntimeException(ex);
+      }
+    }
+  }
+
+  /**
+   * Obter a quantidade de acionamentos do alarme do agendador que despacharam algum lembrete.
+   *
+   * @return a quantidade.
+   */
+  public long getWakeupCount()
+  {
+    synchronized (LOCK)
+    {
+      try(final FileLock lock = lockFile())
+      {
+        load();
+        return s_wakeupCount;
+      }
+      catch (IOException ex)
+      {
+        throw new RuntimeException(ex);
+      }
+    }
+  }
+
+  /**
+   * Obter a quantidade de acionamentos economizados, ou seja, de lembretes despachados no acionamento de outro lembrete.
+   *
+   * @return a quantidade.
+   */
+  public long getWakeupsSaved()
+  {
+    synchronized (LOCK)
+    {
+      try(final FileLock lock = lockFile())
+      {
+        load();
+        return s_wakeupsSaved;
+      }
+      catch (IOException ex)
+      {
+        throw new RuntimeException(ex);
+      }
+    }
+  }
+
+  /**
+   * Zerar as estatísticas de acionamentos.
+   */
+  public void resetStatistics()
+  {
+    synchronized (LOCK)
+    {
+      try(final FileLock lock = lockFile())
+      {
+        load();
+        s_wakeupCount = 0;
+        s_wakeupsSaved = 0;
+        persist();
+      }
+      catch (IOException ex)
+      {
+        throw new RuntimeException(ex);
+      }
+    }
+  }
+
+  /**
+   * Despachar todos os lembretes vencidos e armar o próximo alarme.
+   *
+   * É invocado por TimeReminderBroadcast quando o alarme do agendador é acionado.
+   *
+   * Lembretes que vencem no mesmo minuto do alarme, ou cuja janela de tolerância já começou, também são despachados, e os lembretes baseados na localização e no tempo entre eles são carregados com uma única leitura e armados com uma única requisição.
+   */
+  public void dispatchDue()
+  {
+    final ArrayList<Entry> due = new ArrayList<>();
+    final ArrayList<ReminderManager.DayOfWeek> dueDays = new ArrayList<>();
+    final ZoneId zone = ZoneId.systemDefault();
+
+    synchronized (LOCK)
+    {
+      try(final FileLock lock = lockFile())
+      {
+        load();
+
+        final long now = System.currentTimeMillis();
+        final long endOfMinute = now - Math.floorMod(now, MILLIS_PER_MINUTE) + MILLIS_PER_MINUTE;
+
+        while (!s_queue.isEmpty() && (s_queue.peek().m_fireAt < endOfMinute || s_queue.peek().m_fireAt - s_queue.peek().m_toleranceInMs <= now))
+        {
+          due.add(s_queue.poll());
+        }
+
+        for (Entry entry : due)
+        {
+          // O dia notificado é o do disparo, que pode ser diferente do atual se a tolerância atravessar a meia-noite.
+          dueDays.add(ReminderRecurrence.dayOfWeekAt(entry.m_fireAt, zone));
+
+          // Entradas despachadas antes do seu horário não podem ser reagendadas para o mesmo disparo.
+          entry.m_fireAt = ReminderRecurrence.nextOccurrence(entry.m_daysOfWeek, entry.m_time.toSecondOfDay(), Math.max(now, entry.m_fireAt), zone);
+          s_queue.add(entry);
+        }
+
+        if (!due.isEmpty())
+        {
+          s_wakeupCount++;
+          s_wakeupsSaved += due.size() - 1;
+        }
+
+        persist();
+        armNext();
+      }
+      catch (IOException ex)
+      {
+        throw new RuntimeException(ex);
+      }
+    }
+
+    final ArrayList<String> storedIds = new ArrayList<>();
+
+    for (Entry entry : due)
+    {
+      storedIds.add(entry.m_id);
+    }
+
+    final HashMap<String, LocationReminderDetails> stored;
+
+    try
+    {
+      stored = storedIds.isEmpty() ? new HashMap<>() : ReminderLocalStorage.getInstance(m_context).getAll(storedIds, null);
+    }
+    catch (IOException ex)
+    {
+      throw new RuntimeException(ex);
+    }
+
+    final HashMap<String, LocationReminderDetails> timeLocationReminders = new HashMap<>();
+
+    for (int i = 0; i < due.size(); i++)
+    {
+      final Entry entry = due.get(i);
+
+      if (entry.m_kind == Kind.TIME_LOCATION)
+      {
+        if (stored.containsKey(entry.m_id))
+        {
+          timeLocationReminders.put(entry.m_id, stored.get(entry.m_id));
+        }
+        continue;
+      }
+
+      final ReminderManager.TimeReminderListener listener;
+
+      try
+      {
+        listener = stored.containsKey(entry.m_id) ? stored.get(entry.m_id).getTimeReminderListener(m_context.getClassLoader()) : null;
+      }
+      catch (RuntimeException ex)
+      {
+        Log.w(TAG, "Could not recreate the listener of scheduled reminder: " + entry.m_id, ex);
+        continue;
+      }
+
+      if (listener == null)
+      {
+        Log.w(TAG, "Scheduled reminder without registered details: " + entry.m_id);
+        continue;
+      }
+
+      listener.onReminder(m_context, dueDays.get(i), entry.m_time);
+    }
+
+    if (!timeLocationReminders.isEmpty())
+    {
+      TimeLocationReminderDispatcherBroadcast.ThrowLocationReminders(m_context, timeLocationReminders);
+    }
+  }
+
+  /**
+   * Classe que representa um lembrete agendado.
+   */
+  private static final class Entry
+  {
+    Entry(final String id, final Kind kind, final int daysOfWeek, final LocalTime time, final int toleranceInMs)
+    {
+      m_id = id;
+      m_kind = kind;
+      m_daysOfWeek = daysOfWeek;
+      m_time = time;
+      m_toleranceInMs = toleranceInMs;
+    }
+
+    final String m_id;
+    final Kind m_kind;
+    final int m_daysOfWeek;
+    final LocalTime m_time;
+    final int m_toleranceInMs;
+    long m_fireAt;
+  }
+
+  /**
+   * Inserir a entrada na fila, persistir a fila e armar o próximo alarme.
+   *
+   * @param entry
+   */
+  private void schedule(final Entry entry)
+  {
+    schedule(Collections.singletonList(entry));
+  }
+
+  /**
+   * Inserir as entradas na fila, persistir a fila uma única vez e armar o próximo alarme.
+   *
+   * O alarme próprio de cada lembrete, caso tenha sido armado com SchedulerMode.PER_REMINDER, é cancelado para que o lembrete não seja acionado duas vezes.
+   *
+   * @param entries
+   */
+  private void schedule(final List<Entry> entries)
+  {
+    for (Entry entry : entries)
+    {
+      entry.m_fireAt = ReminderManager.getNextOccurrenceAfterNow(entry.m_daysOfWeek, entry.m_time);
+      cancelOwnAlarm(entry.m_id, entry.m_kind);
+    }
+
+    synchronized (LOCK)
+    {
+      try(final FileLock lock = lockFile())
+      {
+        load();
+
+        for (Entry entry : entries)
+        {
+          final Entry previous = s_entries.put(entry.m_id, entry);
+
+          if (previous != null)
+          {
+            s_queue.remove(previous);
+          }
+
+          s_queue.add(entry);
+        }
+
+        persist();
+        armNext();
+      }
+      catch (IOException ex)
+      {
+        throw new RuntimeException(ex);
+      }
+    }
+  }
+
+  /**
+   * Armar o alarme do grupo de disparos mais próximo da fila, ou cancelá-lo se a fila estiver vazia.
+   *
+   * O grupo é formado pelas entradas do início da fila, em ordem de disparo, enquanto a janela de tolerância de cada uma intersecta a janela das anteriores. O alarme é armado com a janela da interseção, que é exato se alguma entrada do grupo não tiver tolerância.
+   *
+   * Deve ser invocado com LOCK.
+   */
+  private void armNext()
+  {
+    final AlarmManager alarmManager = (AlarmManager) m_context.getSystemService(Context.ALARM_SERVICE);
+    final Intent intent = new Intent(m_context, TimeReminderBroadcast.class);
+
+    intent.setAction(ACTION_DISPATCH);
+
+    final PendingIntent operation = PendingIntent.getBroadcast(m_context, ReminderManager.REQUEST_SCHEDULER_CODE, intent, ReminderManager.REQUEST_IMMUTABLE_CREATE_FLAGS);
+
+    if (s_queue.isEmpty())
+    {
+      alarmManager.cancel(operation);
+      return;
+    }
+
+    final ArrayList<Entry> group = new ArrayList<>();
+    long windowStart = Long.MIN_VALUE;
+    long windowEnd = Long.MAX_VALUE;
+
+    while (!s_queue.isEmpty())
+    {
+      final Entry entry = s_queue.peek();
+      final long start = Math.max(windowStart, entry.m_fireAt - entry.m_toleranceInMs);
+      final long end = Math.min(windowEnd, entry.m_fireAt + entry.m_toleranceInMs);
+
+      if (start > end)
+      {
+        break;
+      }
+
+      group.add(s_queue.poll());
+      windowStart = start;
+      windowEnd = end;
+    }
+
+    s_queue.addAll(group);
+    ReminderManager.setAlarmWindow(alarmManager, windowStart, windowEnd, operation);
+  }
+
+  /**
+   * Carregar a fila do arquivo, caso ainda não tenha sido carregada ou o arquivo tenha sido modificado por outro processo.
+   *
+   * Como toda persistência substitui o arquivo por uma renomeação, a identidade do arquivo (FileKey) também é comparada, além do tamanho e da data de modificação.
+   *
+   * Um arquivo corrompido é tratado como vazio: a fila é reconstruída com rebuild, persistida e o próximo alarme é armado.
+   *
+   * Deve ser invocado com LOCK e com o lock do arquivo.
+   *
+   * @throws RuntimeException
+   */
+  private void load()
+  {
+    if (s_entries != null && m_file.length() == s_length && m_file.lastModified() == s_lastModified && Objects.equals(fileKeyOf(m_file), s_fileKey))
+    {
+      return;
+    }
+
+    final HashMap<String, Entry> entries = new HashMap<>();
+    final PriorityQueue<Entry> queue = new PriorityQueue<>(INITIAL_CAPACITY, (first, second) -> Long.compare(first.m_fireAt, second.m_fireAt));
+    final HashMap<String, LocationReminderDetails> migrated = new HashMap<>();
+    boolean rewrite = false;
+    long wakeupCount = 0;
+    long wakeupsSaved = 0;
+
+    if (m_file.exists() && m_file.length() > 0)
+    {
+      try(final DataInputStream stream = new DataInputStream(new BufferedInputStream(new FileInputStream(m_file))))
+      {
+        if (stream.readInt() != MAGIC)
+        {
+          throw new IOException("Unknown reminder schedule format.");
+        }
+
+        final byte version = stream.readByte();
+
+        if (version < VERSION_INITIAL || version > VERSION)
+        {
+          throw new IOException("Unknown reminder schedule version: " + version);
+        }
+
+        rewrite = version < VERSION;
+
+        if (version >= VERSION_TOLERANCE)
+        {
+          wakeupCount = stream.readLong();
+          wakeupsSaved = stream.readLong();
+        }
+
+        final int count = stream.readInt();
+
+        for (int i = 0; i < count; i++)
+        {
+          final long fireAt = stream.readLong();
+          final Kind kind = Kind.values()[stream.readUnsignedByte()];
+          final String id = stream.readUTF();
+          final int dayOfWeek = stream.readUnsignedByte();
+          final int daysOfWeek = version >= VERSION_DAYS_OF_WEEK_MASK ? dayOfWeek : 1 << dayOfWeek;
+          final LocalTime time = LocalTime.ofSecondOfDay(stream.readInt());
+          final int toleranceInMs = version >= VERSION_TOLERANCE ? stream.readInt() : 0;
+
+          if (kind == Kind.TIME && version < VERSION_WITHOUT_LISTENERS)
+          {
+            final int length = stream.readInt();
+
+            // Entre VERSION_STORED_TIME_REMINDERS e VERSION_WITHOUT_LISTENERS, lembretes sem listener já têm os detalhes em ReminderLocalStorage.
+            if (version < VERSION_STORED_TIME_REMINDERS || length >= 0)
+            {
+              final byte[] listener = new byte[length];
+
+              stream.readFully(listener);
+
+              migrated.put(id, migrate(daysOfWeek, time, toleranceInMs, listener));
+            }
+          }
+
+          final Entry entry = new Entry(id, kind, daysOfWeek, time, toleranceInMs);
+
+          entry.m_fireAt = fireAt;
+          entries.put(id, entry);
+          queue.add(entry);
+        }
+      }
+      catch (IOException | RuntimeException ex)
+      {
+        // Um arquivo corrompido é tratado como vazio, e a fila é reconstruída a partir de ReminderLocalStorage.
+        Log.w(TAG, "Reminder schedule file is corrupt, rebuilding it from the reminder storage.", ex);
+        entries.clear();
+        queue.clear();
+        migrated.clear();
+        wakeupCount = 0;
+        wakeupsSaved = 0;
+        rebuild(entries, queue);
+        rewrite = true;
+      }
+    }
+
+    s_entries = entries;
+    s_queue = queue;
+    s_wakeupCount = wakeupCount;
+    s_wakeupsSaved = wakeupsSaved;
+    s_length = m_file.length();
+    s_lastModified = m_file.lastModified();
+    s_fileKey = fileKeyOf(m_file);
+
+    if (!migrated.isEmpty())
+    {
+      try
+      {
+        ReminderLocalStorage.getInstance(m_context).appendAll(migrated);
+      }
+      catch (IOException ex)
+      {
+        throw new RuntimeException(ex);
+      }
+    }
+
+    // Arquivos em versões anteriores são regravados sem os listeners, que passam a estar apenas em ReminderLocalStorage.
+    if (rewrite)
+    {
+      persist();
+      armNext();
+    }
+  }
+
+  /**
+   * Reconstruir a fila a partir dos lembretes baseados no tempo e dos lembretes baseados na localização e no tempo guardados em ReminderLocalStorage.
+   *
+   * Apenas os lembretes registrados com SchedulerMode.SINGLE_ALARM (ver LocationReminderDetails.getSchedulerMode) voltam para a fila, e os seus alarmes próprios, caso existam, são cancelados para que não sejam acionados duas vezes. Os alarmes próprios dos demais são rearmados, já que um lembrete gravado antes do modo de agendamento ser guardado pode ter estado na fila.
+   *
+   * @param entries
+   * @param queue
+   */
+  private void rebuild(final HashMap<String, Entry> entries, final PriorityQueue<Entry> queue)
+  {
+    final HashMap<String, LocationReminderDetails> states;
+
+    try
+    {
+      states = ReminderLocalStorage.getInstance(m_context).deserialize();
+    }
+    catch (IOException ex)
+    {
+      throw new RuntimeException(ex);
+    }
+
+    for (Map.Entry<String, LocationReminderDetails> state : states.entrySet())
+    {
+      final String id = state.getKey();
+      final LocationReminderDetails details = state.getValue();
+      final Entry entry;
+
+      if (details.m_type == LocationReminderDetails.Type.LOCATION)
+      {
+        continue;
+      }
+
+      if (details.getSchedulerMode() != ReminderManager.SchedulerMode.SINGLE_ALARM)
+      {
+        if (details.m_type == LocationReminderDetails.Type.TIME)
+        {
+          ReminderManager.armTimeReminder(m_context, id, details);
+        }
+        else
+        {
+          ReminderManager.armTimeLocationReminder(m_context, id, details);
+        }
+
+        continue;
+      }
+
+      if (details.m_type == LocationReminderDetails.Type.TIME)
+      {
+        entry = new Entry(id, Kind.TIME, details.getDaysOfWeekMask(), details.m_time, details.m_toleranceInMs);
+      }
+      else
+      {
+        final GeofenceParameters parameters = details.getGeofenceParameters();
+
+        entry = new Entry(id, Kind.TIME_LOCATION, parameters.getArmingDaysOfWeekMask(details.getDaysOfWeekMask(), details.m_time), parameters.getArmingTime(details.m_time), 0);
+      }
+
+      cancelOwnAlarm(id, entry.m_kind);
+      entry.m_fireAt = ReminderManager.getNextOccurrenceAfterNow(entry.m_daysOfWeek, entry.m_time);
+      entries.put(id, entry);
+      queue.add(entry);
+    }
+  }
+
+  /**
+   * Cancelar o alarme próprio de um lembrete, armado com SchedulerMode.PER_REMINDER, caso exista.
+   *
+   * @param id
+   * @param kind
+   */
+  private void cancelOwnAlarm(final String id, final Kind kind)
+  {
+    if (kind == Kind.TIME)
+    {
+      ReminderManager.cancelTimeReminderAlarm(m_context, id);
+    }
+    else
+    {
+      ReminderManager.cancelTimeLocationReminderAlarm(m_context, id);
+    }
+  }
+
+  /**
+   * Obter os detalhes de um lembrete baseado no tempo cujo listener foi guardado no arquivo como um Parcel serializado, para migrá-lo para ReminderLocalStorage.
+   *
+   * Os bytes do Parcel são mantidos como estão, sem reconstruir o listener.
+   *
+   * @param daysOfWeek
+   * @param time
+   * @param toleranceInMs
+   * @param listener bytes do Parcel.
+   *
+   * @return os detalhes.
+   */
+  private static LocationReminderDetails migrate(final int daysOfWeek, final LocalTime time, final int toleranceInMs, final byte[] listener)
+  {
+    final EnumSet<ReminderManager.DayOfWeek> days = ReminderManager.fromDaysOfWeekMask(daysOfWeek);
+
+    return new LocationReminderDetails(LocationReminderDetails.Type.TIME, days.iterator().next(), daysOfWeek, time, null, null, null, null, null, GeofenceParameters.DEFAULT, toleranceInMs, listener, null, null, null, ReminderManager.SchedulerMode.SINGLE_ALARM);
+  }
+
+  /**
+   * Persistir a fila no arquivo.
+   *
+   * A fila é escrita em um arquivo temporário próprio que, após o fsync, substitui o atual com uma renomeação atômica, de forma que uma interrupção durante a escrita não corrompa a fila.
+   *
+   * Deve ser invocado com LOCK e com o lock do arquivo.
+   *
+   * @throws RuntimeException
+   */
+  private void persist()
+  {
+    final File temporary;
+
+    try
+    {
+      temporary = File.createTempFile(FILE_NAME, TEMPORARY_SUFFIX, m_file.getParentFile());
+    }
+    catch (IOException ex)
+    {
+      throw new RuntimeException(ex);
+    }
+
+    try
+    {
+      try(final FileOutputStream output = new FileOutputStream(temporary))
+      {
+        final DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(output));
+
+        stream.writeInt(MAGIC);
+        stream.writeByte(VERSION);
+        stream.writeLong(s_wakeupCount);
+        stream.writeLong(s_wakeupsSaved);
+        stream.writeInt(s_entries.size());
+
+        for (Entry entry : s_queue)
+        {
+          stream.writeLong(entry.m_fireAt);
+          stream.writeByte(entry.m_kind.ordinal());
+          stream.writeUTF(entry.m_id);
+          stream.writeByte(entry.m_daysOfWeek);
+          stream.writeInt(entry.m_time.toSecondOfDay());
+          stream.writeInt(entry.m_toleranceInMs);
+        }
+
+        stream.flush();
+        output.getFD().sync();
+      }
+
+      if (!temporary.renameTo(m_file))
+      {
+        throw new IOException("Unable to replace the reminder schedule file.");
+      }
+
+      ReminderLocalStorage.syncDirectory(m_file.getParentFile());
+    }
+    catch (IOException ex)
+    {
+      temporary.delete();
+      throw new RuntimeException(ex);
+    }
+
+    s_length = m_file.length();
+    s_lastModified = m_file.lastModified();
+    s_fileKey = fileKeyOf(m_file);
+  }
+
+  /**
+   * Obter o lock exclusivo entre processos do arquivo da fila.
+   *
+   * Deve ser invocado com LOCK, pois FileChannel não permite que duas threads do mesmo processo mantenham locks sobrepostos.
+   *
+   * @return o lock, que deve ser liberado pelo chamador.
+   *
+   * @throws IOException
+   */
+  private FileLock lockFile() throws IOException
+  {
+    if (s_lockChannel == null)
+    {
+      s_lockChannel = new RandomAccessFile(new File(m_file.getParentFile(), FILE_NAME + LOCK_SUFFIX), "rw").getChannel();
+    }
+
+    return s_lockChannel.lock();
+  }
+
+  /**
+   * Obter a identidade do arquivo especificado no sistema de arquivos.
+   *
+   * @param file
+   *
+   * @return a identidade, ou null se o arquivo não existir ou o sistema de arquivos não a fornecer.
+   */
+  private static Object fileKeyOf(final File file)
+  {
+    try
+    {
+      return Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+    }
+    catch (IOException ex)
+    {
+      return null;
+    }
+  }
+
+  /**
+   * Action do Intent usado pelo alarme do agendador.
+   */
+  public static final String ACTION_DISPATCH = "manvin.digitalreminder.digitalreminderlibrary.action.DISPATCH_SCHEDULE";
+  private static final String TAG = "ReminderScheduler";
+  private static final String FILE_NAME = "reminderSchedule";
+  private static final String TEMPORARY_SUFFIX = ".tmp";
+  private static final String LOCK_SUFFIX = ".lock";
+  private static final int MAGIC = 0x44524C53;
+  private static final byte VERSION = 5;
+  private static final byte VERSION_INITIAL = 1;
+  private static final byte VERSION_DAYS_OF_WEEK_MASK = 2;
+  private static final byte VERSION_TOLERANCE = 3;
+  private static final byte VERSION_STORED_TIME_REMINDERS = 4;
+  private static final byte VERSION_WITHOUT_LISTENERS = 5;
+  private static final int INITIAL_CAPACITY = 16;
+  private static final long MILLIS_PER_MINUTE = 60 * 1000;
+  private static final Object LOCK = new Object();
+  private static HashMap<String, Entry> s_entries = null;
+  private static PriorityQueue<Entry> s_queue = null;
+  private static long s_length;
+  private static long s_lastModified;
+  private static Object s_fileKey;
+  private static FileChannel s_lockChannel = null;
+  private static long s_wakeupCount;
+  private static long s_wakeupsSaved;
+  private final Context m_context;
+  private final File m_file;
+}
@@ -0,0 +1,80 @@
+package manvin.digitalreminder.digitalreminderlibrary.core;
+
+import java.time.LocalTime;
+import java.util.EnumSet;
+
+/**
+ * Classe que representa os parâmetros de registro de um lembrete baseado no tempo.
+ *
+ * É usada no registro em lote por ReminderManager.registerTimeReminders.
+ *
+ * Um lembrete pode se repetir em vários dias da semana, representados por m_daysOfWeek. Nesse caso, m_dayOfWeek é o primeiro deles.
+ */
+public class TimeReminderRequest
+{
+  /**
+   * Construir os parâmetros de registro de um lembrete baseado no tempo.
+   *
+   * @param id
+   * @param dayOfWeek
+   * @param time
+   * @param listener
+   */
+  public TimeReminderRequest(final String id, final ReminderManager.DayOfWeek dayOfWeek, final LocalTime time, final ReminderManager.TimeReminderListener listener)
+  {
+    this(id, dayOfWeek, time, listener, 0);
+  }
+
+  /**
+   * Construir os parâmetros de registro de um lembrete baseado no tempo com tolerância.
+   *
+   * @param id
+   * @param dayOfWeek
+   * @param time
+   * @param listener
+   * @param toleranceInMs ver ReminderManager.registerTimeReminder.
+   */
+  public TimeReminderRequest(final String id, final ReminderManager.DayOfWeek dayOfWeek, final LocalTime time, final ReminderManager.TimeReminderListener listener, final int toleranceInMs)
+  {
+    this(id, EnumSet.of(dayOfWeek), time, listener, toleranceInMs);
+  }
+
+  /**
+   * Construir os parâmetros de registro de um lembrete baseado no tempo que se repete nos dias da semana especificados.
+   *
+   * @param id
+   * @param daysOfWeek
+   * @param time
+   * @param listener
+   */
+  public TimeReminderRequest(final String id, final EnumSet<ReminderManager.DayOfWeek> daysOfWeek, final LocalTime time, final ReminderManager.TimeReminderListener listener)
+  {
+    this(id, daysOfWeek, time, listener, 0);
+  }
+
+  /**
+   * Construir os parâmetros de registro de um lembrete baseado no tempo que se repete nos dias da semana especificados, com tolerância.
+   *
+   * @param id
+   * @param daysOfWeek
+   * @param time
+   * @param listener
+   * @param toleranceInMs ver ReminderManager.registerTimeReminder.
+   */
+  public TimeReminderRequest(final String id, final EnumSet<ReminderManager.DayOfWeek> daysOfWeek, final LocalTime time, final ReminderManager.TimeReminderListener listener, final int toleranceInMs)
+  {
+    m_id = id;
+    m_dayOfWeek = daysOfWeek.iterator().next();
+    m_daysOfWeek = EnumSet.copyOf(daysOfWeek);
+    m_time = time;
+    m_listener = listener;
+    m_toleranceInMs = toleranceInMs;
+  }
+
+  public final String m_id;
+  public final ReminderManager.DayOfWeek m_dayOfWeek;
+  public final EnumSet<ReminderManager.DayOfWeek> m_daysOfWeek;
+  public final LocalTime m_time;
+  public final ReminderManager.TimeReminderListener m_listener;
+  public final int m_toleranceInMs;
+}